@@ -0,0 +1,272 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.gogo.runtime.CommandProcessorImpl;
+import org.apache.felix.gogo.runtime.threadio.ThreadIOImpl;
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Converter;
+import org.apache.felix.service.command.Descriptor;
+import org.apache.felix.service.command.Parameter;
+import org.jline.terminal.Terminal;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.log.LogService;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Utilities for benchmarks.
+ * <p>
+ * Benchmarks do not start an OSGi framework: a command processor is created
+ * as a lightweight stand-in, and components are wired by hand.
+ *
+ * @author Stamina Framework developers
+ */
+final class BenchmarkSupport {
+    /**
+     * Output stream discarding all bytes.
+     */
+    static final OutputStream NULL_OUTPUT = new OutputStream() {
+        @Override
+        public void write(int b) {
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) {
+        }
+    };
+
+    /**
+     * Log service discarding all entries.
+     */
+    static final LogService NULL_LOG = (LogService) Proxy.newProxyInstance(LogService.class.getClassLoader(),
+            new Class<?>[]{LogService.class}, (proxy, method, args) -> null);
+
+    /**
+     * Bundle context ignoring listeners: no bundle nor service events are ever sent.
+     */
+    static final BundleContext NULL_CONTEXT = (BundleContext) Proxy.newProxyInstance(
+            BundleContext.class.getClassLoader(), new Class<?>[]{BundleContext.class}, (proxy, method, args) -> null);
+
+    private BenchmarkSupport() {
+    }
+
+    /**
+     * Command processor running outside of an OSGi framework.
+     */
+    static final class StandIn implements Closeable {
+        private final ThreadIOImpl threadIO = new ThreadIOImpl();
+        final CommandProcessorImpl processor;
+
+        StandIn() {
+            threadIO.start();
+            processor = new CommandProcessorImpl(threadIO);
+            processor.addCommand("bench", new BenchCommands());
+        }
+
+        /**
+         * Create a command session, discarding all output.
+         */
+        CommandSession createSession() {
+            return processor.createSession(new ByteArrayInputStream(new byte[0]), NULL_OUTPUT, NULL_OUTPUT);
+        }
+
+        @Override
+        public void close() {
+            threadIO.stop();
+        }
+    }
+
+    /**
+     * Shell components wired to a stand-in command processor.
+     * Commands from this shell are available in scope <code>shell</code>.
+     * Command services are not tracked: the command index is always empty.
+     */
+    static final class ShellComponents implements Closeable {
+        private final StandIn standIn;
+        final CommandIndex commandIndex = new CommandIndex();
+        final CommandStats commandStats = new CommandStats();
+        final ConverterRegistry converters = converterRegistry();
+        final ResultCache resultCache = new ResultCache();
+        final CommandWatchdog watchdog = new CommandWatchdog();
+        final BackgroundJobs backgroundJobs = new BackgroundJobs();
+        private final CommandSearch commandSearch = new CommandSearch();
+        private final ShellCommands shellCommands = new ShellCommands();
+
+        ShellComponents(final StandIn standIn) {
+            this.standIn = standIn;
+            inject(commandIndex, "logService", NULL_LOG);
+            inject(commandStats, "logService", NULL_LOG);
+            commandStats.activate();
+            inject(resultCache, "commandIndex", commandIndex);
+            resultCache.activate(NULL_CONTEXT, defaultConfig(ResultCache.Config.class));
+            inject(watchdog, "commandIndex", commandIndex);
+            inject(watchdog, "logService", NULL_LOG);
+            watchdog.activate(defaultConfig(CommandWatchdog.Config.class));
+            inject(backgroundJobs, "processor", standIn.processor);
+            inject(backgroundJobs, "commandStats", commandStats);
+            inject(backgroundJobs, "resultCache", resultCache);
+            inject(backgroundJobs, "logService", NULL_LOG);
+            backgroundJobs.activate(defaultConfig(BackgroundJobs.Config.class));
+            inject(commandSearch, "commandIndex", commandIndex);
+            commandSearch.activate();
+            inject(shellCommands, "processor", standIn.processor);
+            inject(shellCommands, "commandIndex", commandIndex);
+            inject(shellCommands, "commandSearch", commandSearch);
+            inject(shellCommands, "commandStats", commandStats);
+            inject(shellCommands, "converters", converters);
+            inject(shellCommands, "backgroundJobs", backgroundJobs);
+            standIn.processor.addCommand("shell", shellCommands);
+        }
+
+        /**
+         * Create a shell running commands on a terminal, using default configuration.
+         * The shell must be closed once done.
+         */
+        Shell openShell(Terminal terminal) {
+            final Shell shell = new Shell();
+            inject(shell, "processor", standIn.processor);
+            inject(shell, "logService", NULL_LOG);
+            inject(shell, "commandIndex", commandIndex);
+            inject(shell, "commandStats", commandStats);
+            inject(shell, "converters", converters);
+            inject(shell, "backgroundJobs", backgroundJobs);
+            inject(shell, "resultCache", resultCache);
+            inject(shell, "watchdog", watchdog);
+            shell.open(terminal, defaultConfig(Shell.Config.class));
+            return shell;
+        }
+
+        @Override
+        public void close() {
+            backgroundJobs.deactivate();
+            commandSearch.deactivate();
+            watchdog.deactivate();
+            resultCache.deactivate();
+            commandStats.deactivate();
+        }
+    }
+
+    /**
+     * Create a component configuration using default values.
+     */
+    static <T> T defaultConfig(Class<T> configType) {
+        return configType.cast(Proxy.newProxyInstance(configType.getClassLoader(),
+                new Class<?>[]{configType}, (proxy, method, args) -> method.getDefaultValue()));
+    }
+
+    /**
+     * Create a converter registry holding converters from this shell.
+     */
+    static ConverterRegistry converterRegistry() {
+        final ConverterRegistry converters = new ConverterRegistry();
+        inject(converters, "logService", NULL_LOG);
+        final ExceptionConverter exceptionConverter = new ExceptionConverter();
+        exceptionConverter.activate(defaultConfig(ExceptionConverter.Config.class));
+        addConverter(converters, exceptionConverter, "java.lang.Exception");
+        addConverter(converters, new ClassConverter(), "java.lang.Class");
+        addConverter(converters, new CommandNotFoundConverter(),
+                "org.apache.felix.gogo.runtime.CommandNotFoundException");
+        final LazyResultConverter lazyResultConverter = new LazyResultConverter();
+        lazyResultConverter.activate(defaultConfig(LazyResultConverter.Config.class));
+        addConverter(converters, lazyResultConverter, "java.util.Collection", "java.util.Iterator",
+                "java.util.stream.BaseStream", "[Ljava.lang.Object;");
+        return converters;
+    }
+
+    private static void addConverter(ConverterRegistry converters, Converter converter, String... classes) {
+        final Map<String, Object> props = new HashMap<>(2);
+        props.put(Converter.CONVERTER_CLASSES, classes);
+        converters.addConverter(converter, props);
+    }
+
+    /**
+     * Set a component field, as a Declarative Services runtime would do.
+     */
+    static void inject(Object component, String fieldName, Object value) {
+        try {
+            final Field f = component.getClass().getDeclaredField(fieldName);
+            f.setAccessible(true);
+            f.set(component, value);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot inject field " + fieldName, e);
+        }
+    }
+
+    /**
+     * Commands used by benchmarks.
+     */
+    public static class BenchCommands {
+        public String echo(String value) {
+            return value;
+        }
+
+        public void lines(int count) {
+            for (int i = 0; i < count; ++i) {
+                System.out.println("line " + i);
+            }
+        }
+
+        public List<String> list(int count) {
+            final List<String> items = new ArrayList<>(count);
+            for (int i = 0; i < count; ++i) {
+                items.add("item " + i);
+            }
+            return items;
+        }
+
+        public void fail(String message) {
+            throw new IllegalStateException(message);
+        }
+
+        public long wc() throws IOException {
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(System.in));
+            long n = 0;
+            while (reader.readLine() != null) {
+                ++n;
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Commands used to build large synthetic command sets.
+     */
+    public static class SyntheticCommands {
+        @Descriptor("List items")
+        public void list(@Descriptor("display all items")
+                         @Parameter(names = {"-a", "--all"}, presentValue = "true", absentValue = "false")
+                                 boolean all) {
+        }
+
+        @Descriptor("Display item information")
+        public void info(@Descriptor("item identifier") long id) {
+        }
+
+        @Descriptor("Start an item")
+        public void start(@Descriptor("start level")
+                          @Parameter(names = {"-l", "--level"}, absentValue = "1") int level,
+                          @Descriptor("item identifiers") long... ids) {
+        }
+    }
+}
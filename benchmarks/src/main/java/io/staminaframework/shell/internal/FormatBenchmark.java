@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.gogo.runtime.CommandNotFoundException;
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Converter;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@link ConverterRegistry#format(CommandSession, Object, int)},
+ * using converters from this shell.
+ * Formatting with {@link CommandSession#format(Object, int)}, which walks
+ * every converter registered in the command processor, is the baseline.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class FormatBenchmark {
+    @Param({"10", "200"})
+    public int stackDepth;
+    /**
+     * Formatting path: <code>registry</code> or <code>session</code> (baseline).
+     */
+    @Param({"registry", "session"})
+    public String path;
+
+    private BenchmarkSupport.StandIn standIn;
+    private CommandSession session;
+    private ConverterRegistry converters;
+    private Exception exception;
+    private CommandNotFoundException commandNotFound;
+
+    @Setup
+    public void setup() {
+        standIn = new BenchmarkSupport.StandIn();
+        final ExceptionConverter exceptionConverter = new ExceptionConverter();
+        exceptionConverter.activate(BenchmarkSupport.defaultConfig(ExceptionConverter.Config.class));
+        standIn.processor.addConverter(exceptionConverter);
+        standIn.processor.addConverter(new ClassConverter());
+        standIn.processor.addConverter(new CommandNotFoundConverter());
+        session = standIn.createSession();
+        converters = "registry".equals(path) ? BenchmarkSupport.converterRegistry() : null;
+
+        exception = new IllegalStateException("Failure", recurse(stackDepth, 3));
+        commandNotFound = new CommandNotFoundException("foo:bar");
+    }
+
+    private static Exception recurse(int depth, int causes) {
+        if (depth > 0) {
+            return recurse(depth - 1, causes);
+        }
+        final Exception cause = causes > 1 ? recurse(0, causes - 1) : null;
+        return new RuntimeException("Cause #" + causes, cause);
+    }
+
+    private CharSequence format(Object target, int level) {
+        return converters == null ? session.format(target, level) : converters.format(session, target, level);
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+        standIn.close();
+    }
+
+    @Benchmark
+    public CharSequence inspectException() {
+        return format(exception, Converter.INSPECT);
+    }
+
+    @Benchmark
+    public CharSequence lineException() {
+        return format(exception, Converter.LINE);
+    }
+
+    @Benchmark
+    public CharSequence inspectClass() {
+        return format(String.class, Converter.INSPECT);
+    }
+
+    @Benchmark
+    public CharSequence commandNotFound() {
+        return format(commandNotFound, Converter.INSPECT);
+    }
+}
@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.PrintStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@link ShellCommands#help(CommandSession)} and command search,
+ * using large synthetic command sets.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class HelpBenchmark {
+    private static final String[] FUNCTIONS = {"list", "info", "start"};
+
+    @Param({"100", "1000", "5000"})
+    public int commands;
+
+    private BenchmarkSupport.StandIn standIn;
+    private CommandSession session;
+    private ShellCommands shellCommands;
+    private PrintStream stdout;
+    private String scopedName;
+    private String unscopedName;
+
+    @Setup
+    public void setup() {
+        standIn = new BenchmarkSupport.StandIn();
+        final CommandIndex index = new CommandIndex();
+        final BenchmarkSupport.SyntheticCommands target = new BenchmarkSupport.SyntheticCommands();
+        final int scopes = Math.max(1, commands / FUNCTIONS.length);
+        for (int i = 0; i < scopes; ++i) {
+            final String scope = "scope" + i;
+            for (final String function : FUNCTIONS) {
+                standIn.processor.addCommand(scope, target, function);
+                final CommandMetadata cmd = new CommandMetadata(scope, function, null);
+                cmd.resolve(target.getClass());
+                index.register(cmd);
+            }
+        }
+        scopedName = "scope" + (scopes / 2) + ":start";
+        unscopedName = "info";
+
+        final CommandSearch search = new CommandSearch();
+        BenchmarkSupport.inject(search, "commandIndex", index);
+        search.activate();
+
+        shellCommands = new ShellCommands();
+        BenchmarkSupport.inject(shellCommands, "commandIndex", index);
+        BenchmarkSupport.inject(shellCommands, "commandSearch", search);
+        session = standIn.createSession();
+
+        // Help is printed to the standard output.
+        stdout = System.out;
+        System.setOut(new PrintStream(BenchmarkSupport.NULL_OUTPUT));
+    }
+
+    @TearDown
+    public void tearDown() {
+        System.setOut(stdout);
+        session.close();
+        standIn.close();
+    }
+
+    @Benchmark
+    public void listCommands() {
+        shellCommands.help(session);
+    }
+
+    @Benchmark
+    public void helpScopedCommand() {
+        shellCommands.help(session, false, scopedName);
+    }
+
+    @Benchmark
+    public void helpUnscopedCommand() {
+        shellCommands.help(session, false, unscopedName);
+    }
+
+    @Benchmark
+    public void searchCommands() {
+        shellCommands.help(session, true, "start", "level");
+    }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandSession;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark for {@link CommandSession#execute(CharSequence)}.
+ *
+ * @author Stamina Framework developers
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SessionExecuteBenchmark {
+    private BenchmarkSupport.StandIn standIn;
+    private CommandSession session;
+
+    @Setup
+    public void setup() {
+        standIn = new BenchmarkSupport.StandIn();
+        session = standIn.createSession();
+    }
+
+    @TearDown
+    public void tearDown() {
+        session.close();
+        standIn.close();
+    }
+
+    @Benchmark
+    public Object trivialCommand() throws Exception {
+        return session.execute("bench:echo hello");
+    }
+
+    @Benchmark
+    public Object unscopedCommand() throws Exception {
+        return session.execute("echo hello");
+    }
+
+    @Benchmark
+    public Object pipelinedCommand() throws Exception {
+        return session.execute("bench:lines 100 | bench:wc");
+    }
+}
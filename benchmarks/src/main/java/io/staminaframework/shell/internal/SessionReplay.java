@@ -0,0 +1,536 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.Function;
+import org.jline.terminal.Terminal;
+import org.jline.terminal.TerminalBuilder;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.*;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replay command transcripts using concurrent sessions, and report
+ * throughput, latency percentiles and allocation rate.
+ * <p>
+ * A transcript is either a script (one command per line, as for <code>shell:run</code>),
+ * or an audit log file (<code>.jsonl</code>): commands from each recorded session
+ * (grouped by session identifier) are replayed as a transcript.
+ * Each session replays a transcript in a loop, on a dumb terminal, running commands
+ * as the console shell does: result caching, timeouts, statistics, result history,
+ * and printing results formatted with converters from this shell.
+ * <p>
+ * Commands available in benchmarks are <code>bench:*</code> and <code>shell:*</code>.
+ * Other commands used in transcripts are replaced with commands doing nothing,
+ * so that shell overhead is measured instead of command-not-found errors.
+ * <p>
+ * When a target rate is set, commands are scheduled at fixed intervals, and latencies
+ * are measured from the scheduled time: a slow command delays the next ones,
+ * which is included in measured latencies.
+ * <pre>
+ * java -cp benchmarks.jar io.staminaframework.shell.internal.SessionReplay \
+ *     --sessions 8 --rate 2000 --duration 30 monitoring.txt
+ * </pre>
+ *
+ * @author Stamina Framework developers
+ */
+public final class SessionReplay {
+    /**
+     * Transcript used when none is set: the last command fails,
+     * in order to include exception formatting.
+     */
+    private static final List<String> DEFAULT_TRANSCRIPT = Arrays.asList(
+            "bench:echo hello",
+            "bench:lines 20 | bench:wc",
+            "bench:list 50",
+            "bench:fail expected");
+
+    /**
+     * Scope of commands replacing unscoped commands which are not available.
+     */
+    private static final String STUB_SCOPE = "replay";
+    private static final Function NO_OP = (session, arguments) -> null;
+
+    private final BenchmarkSupport.StandIn standIn;
+    private final BenchmarkSupport.ShellComponents components;
+    private final int sessions;
+    private final double rate;
+    private final long warmupNanos;
+    private final long durationNanos;
+    private final List<List<String>> transcripts;
+
+    private SessionReplay(final int sessions, final double rate, final long warmupNanos,
+                          final long durationNanos, final List<List<String>> transcripts) {
+        this.sessions = sessions;
+        this.rate = rate;
+        this.warmupNanos = warmupNanos;
+        this.durationNanos = durationNanos;
+        this.transcripts = transcripts;
+        standIn = new BenchmarkSupport.StandIn();
+        components = new BenchmarkSupport.ShellComponents(standIn);
+    }
+
+    public static void main(String[] args) throws Exception {
+        int sessions = 4;
+        double rate = 0;
+        long warmup = 2;
+        long duration = 10;
+        final List<String> files = new ArrayList<>(2);
+        for (int i = 0; i < args.length; ++i) {
+            final String arg = args[i];
+            if (("--sessions".equals(arg) || "-s".equals(arg)) && i + 1 < args.length) {
+                sessions = Integer.parseInt(args[++i]);
+            } else if (("--rate".equals(arg) || "-r".equals(arg)) && i + 1 < args.length) {
+                rate = Double.parseDouble(args[++i]);
+            } else if (("--warmup".equals(arg) || "-w".equals(arg)) && i + 1 < args.length) {
+                warmup = Long.parseLong(args[++i]);
+            } else if (("--duration".equals(arg) || "-d".equals(arg)) && i + 1 < args.length) {
+                duration = Long.parseLong(args[++i]);
+            } else if (arg.startsWith("-")) {
+                System.err.println("Usage: SessionReplay [--sessions N] [--rate COMMANDS_PER_SECOND] "
+                        + "[--warmup SECONDS] [--duration SECONDS] [TRANSCRIPT...]");
+                System.exit(2);
+                return;
+            } else {
+                files.add(arg);
+            }
+        }
+
+        final List<List<String>> transcripts = new ArrayList<>(files.size());
+        for (final String file : files) {
+            transcripts.addAll(file.endsWith(".jsonl") ? loadAuditLog(file) : loadScript(file));
+        }
+        transcripts.removeIf(List::isEmpty);
+        if (transcripts.isEmpty()) {
+            transcripts.add(DEFAULT_TRANSCRIPT);
+        }
+
+        final SessionReplay replay = new SessionReplay(Math.max(1, sessions), Math.max(0, rate),
+                TimeUnit.SECONDS.toNanos(Math.max(0, warmup)), TimeUnit.SECONDS.toNanos(Math.max(1, duration)),
+                transcripts);
+        try {
+            final Set<String> unknownCommands = replay.unknownCommands();
+            if (!unknownCommands.isEmpty()) {
+                System.out.println("Commands not available in benchmarks are replaced with no-op commands: "
+                        + String.join(", ", unknownCommands));
+                replay.addStubs(unknownCommands);
+            }
+            replay.run();
+        } finally {
+            replay.components.close();
+            replay.standIn.close();
+        }
+    }
+
+    /**
+     * Add commands doing nothing. Unscoped commands are added to a dedicated scope.
+     */
+    private void addStubs(Set<String> names) {
+        for (final String name : names) {
+            final int i = name.indexOf(':');
+            if (i < 0) {
+                standIn.processor.addCommand(STUB_SCOPE, NO_OP, name);
+            } else {
+                standIn.processor.addCommand(name.substring(0, i), NO_OP, name.substring(i + 1));
+            }
+        }
+    }
+
+    /**
+     * Get commands used in transcripts, which are not available in the command processor.
+     */
+    private Set<String> unknownCommands() {
+        final Set<String> commands = standIn.processor.getCommands();
+        final Set<String> names = new TreeSet<>();
+        for (final List<String> transcript : transcripts) {
+            for (final String line : transcript) {
+                commandNames(line, names);
+            }
+        }
+        names.removeIf(name -> {
+            if (name.indexOf(':') >= 0) {
+                return commands.contains(name);
+            }
+            for (final String cmd : commands) {
+                if (cmd.endsWith(":" + name)) {
+                    return true;
+                }
+            }
+            return false;
+        });
+        return names;
+    }
+
+    /**
+     * Collect command names used in a command-line: the first word of each pipeline element.
+     * Commands in closures or in parentheses are not collected.
+     */
+    private static void commandNames(String line, Collection<String> names) {
+        char quote = 0;
+        int depth = 0;
+        int wordStart = -1;
+        boolean expectCommand = true;
+        for (int i = 0; i <= line.length(); ++i) {
+            // A blank is added to the end of the line, in order to end the last word.
+            final char c = i < line.length() ? line.charAt(i) : ' ';
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                continue;
+            }
+            if (wordStart >= 0) {
+                if (!Character.isWhitespace(c) && c != '|' && c != ';') {
+                    continue;
+                }
+                // A word holding or followed by '=' is an assignment.
+                final String word = line.substring(wordStart, i);
+                int next = i;
+                while (next < line.length() && Character.isWhitespace(line.charAt(next))) {
+                    ++next;
+                }
+                if (word.indexOf('=') < 0 && (next == line.length() || line.charAt(next) != '=')) {
+                    names.add(word.toLowerCase());
+                }
+                wordStart = -1;
+            }
+            switch (c) {
+                case '"':
+                case '\'':
+                    quote = c;
+                    expectCommand = false;
+                    break;
+                case '{':
+                case '(':
+                case '[':
+                    ++depth;
+                    expectCommand = false;
+                    break;
+                case '}':
+                case ')':
+                case ']':
+                    --depth;
+                    break;
+                case '|':
+                case ';':
+                    expectCommand = depth == 0;
+                    break;
+                default:
+                    if (Character.isWhitespace(c)) {
+                        break;
+                    }
+                    if (expectCommand && depth == 0 && Character.isJavaIdentifierStart(c)) {
+                        wordStart = i;
+                    }
+                    expectCommand = false;
+                    break;
+            }
+        }
+    }
+
+    private void run() throws InterruptedException {
+        System.out.println(String.format("Replaying %d transcript(s) with %d session(s), target rate: %s",
+                transcripts.size(), sessions, rate == 0 ? "unthrottled" : rate + " commands/s"));
+
+        final Replayer[] replayers = new Replayer[sessions];
+        final Thread[] threads = new Thread[sessions];
+        final CountDownLatch measuring = new CountDownLatch(sessions);
+        final CountDownLatch finished = new CountDownLatch(sessions);
+        final CountDownLatch released = new CountDownLatch(1);
+        final long startTime = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100);
+        final long measureTime = startTime + warmupNanos;
+        final long endTime = measureTime + durationNanos;
+        for (int i = 0; i < sessions; ++i) {
+            // Sessions are started with an offset, so that commands are evenly scheduled.
+            final long intervalNanos = rate == 0 ? 0 : (long) (TimeUnit.SECONDS.toNanos(1) * sessions / rate);
+            replayers[i] = new Replayer(transcripts.get(i % transcripts.size()),
+                    startTime + intervalNanos * i / sessions, measureTime, endTime, intervalNanos,
+                    measuring, finished, released);
+            threads[i] = new Thread(replayers[i], "Session Replay " + (i + 1));
+            threads[i].start();
+        }
+
+        // Allocations are measured for all threads, including command processor threads:
+        // sessions wait until allocations are measured before their threads end.
+        final Map<Long, Long> allocationsBefore;
+        final long measureStart;
+        final long elapsed;
+        final long allocated;
+        try {
+            measuring.await();
+            allocationsBefore = allocatedBytes();
+            measureStart = System.nanoTime();
+            finished.await();
+            elapsed = System.nanoTime() - measureStart;
+            allocated = allocatedSince(allocationsBefore);
+        } finally {
+            released.countDown();
+        }
+        for (final Thread t : threads) {
+            t.join();
+        }
+
+        final LatencyHistogram latencies = new LatencyHistogram();
+        long errors = 0;
+        for (final Replayer r : replayers) {
+            latencies.add(r.latencies);
+            errors += r.errors;
+        }
+        final double seconds = elapsed / 1e9;
+        System.out.println(String.format("Commands: %d (%d errors) in %.1f s: %.1f commands/s",
+                latencies.count(), errors, seconds, latencies.count() / seconds));
+        System.out.println(String.format("%10s %10s %10s %10s %10s %10s",
+                "MEAN(ms)", "P50(ms)", "P90(ms)", "P99(ms)", "P99.9(ms)", "MAX(ms)"));
+        System.out.println(String.format("%10.3f %10.3f %10.3f %10.3f %10.3f %10.3f",
+                CommandStats.toMillis(latencies.mean()), CommandStats.toMillis(latencies.percentile(50)),
+                CommandStats.toMillis(latencies.percentile(90)), CommandStats.toMillis(latencies.percentile(99)),
+                CommandStats.toMillis(latencies.percentile(99.9)), CommandStats.toMillis(latencies.max())));
+        if (allocated < 0) {
+            System.out.println("Allocation rate: not available on this JVM");
+        } else {
+            System.out.println(String.format("Allocation rate: %.1f MiB/s (%.1f KiB/command)",
+                    allocated / seconds / (1024 * 1024),
+                    latencies.count() == 0 ? 0 : allocated / 1024d / latencies.count()));
+        }
+    }
+
+    /**
+     * Get bytes allocated by each live thread.
+     *
+     * @return allocated bytes by thread identifier, or <code>null</code> if not supported
+     */
+    private static Map<Long, Long> allocatedBytes() {
+        final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        final com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+        if (!sunBean.isThreadAllocatedMemorySupported() || !sunBean.isThreadAllocatedMemoryEnabled()) {
+            return null;
+        }
+        final long[] ids = sunBean.getAllThreadIds();
+        final long[] bytes = sunBean.getThreadAllocatedBytes(ids);
+        final Map<Long, Long> result = new HashMap<>(ids.length * 2);
+        for (int i = 0; i < ids.length; ++i) {
+            if (bytes[i] >= 0) {
+                result.put(ids[i], bytes[i]);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get bytes allocated by live threads since a snapshot.
+     * Allocations from threads which ended in between are not included:
+     * session threads are still alive when this method is called.
+     *
+     * @return allocated bytes, or <code>-1</code> if not supported
+     */
+    private static long allocatedSince(Map<Long, Long> before) {
+        final Map<Long, Long> after = allocatedBytes();
+        if (before == null || after == null) {
+            return -1;
+        }
+        long total = 0;
+        for (final Map.Entry<Long, Long> e : after.entrySet()) {
+            final Long b = before.get(e.getKey());
+            total += Math.max(0, e.getValue() - (b == null ? 0 : b));
+        }
+        return total;
+    }
+
+    private static List<List<String>> loadScript(String file) throws IOException {
+        final List<String> lines = new ArrayList<>(32);
+        try (final BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            // Use the same rules as scripts run with shell:run.
+            final ScriptRunner runner = new ScriptRunner(line -> lines.add(line), true);
+            runner.run(reader);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return Collections.singletonList(lines);
+    }
+
+    /**
+     * Load commands from an audit log, grouped by session identifier.
+     * Commands recorded without a session identifier are grouped together.
+     */
+    private static List<List<String>> loadAuditLog(String file) throws IOException {
+        final Map<String, List<String>> bySession = new LinkedHashMap<>();
+        try (final BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String command = jsonString(line, "command");
+                if (command != null) {
+                    final String session = jsonString(line, "session");
+                    bySession.computeIfAbsent(String.valueOf(session), k -> new ArrayList<>(32)).add(command);
+                }
+            }
+        }
+        return new ArrayList<>(bySession.values());
+    }
+
+    /**
+     * Extract a string value from a JSON object written by {@link AuditLog}.
+     */
+    private static String jsonString(String json, String key) {
+        final String prefix = "\"" + key + "\":\"";
+        final int start = json.indexOf(prefix);
+        if (start < 0) {
+            return null;
+        }
+        final StringBuilder buf = new StringBuilder(64);
+        for (int i = start + prefix.length(); i < json.length(); ++i) {
+            final char c = json.charAt(i);
+            if (c == '"') {
+                return buf.toString();
+            }
+            if (c != '\\' || i + 1 >= json.length()) {
+                buf.append(c);
+                continue;
+            }
+            final char e = json.charAt(++i);
+            switch (e) {
+                case 'n':
+                    buf.append('\n');
+                    break;
+                case 'r':
+                    buf.append('\r');
+                    break;
+                case 't':
+                    buf.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 < json.length()) {
+                        buf.append((char) Integer.parseInt(json.substring(i + 1, i + 5), 16));
+                        i += 4;
+                    }
+                    break;
+                default:
+                    buf.append(e);
+                    break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Replay a transcript in a session, until the end of the measurement.
+     */
+    private final class Replayer implements Runnable {
+        private final List<String> transcript;
+        private final long startTime;
+        private final long measureTime;
+        private final long endTime;
+        private final long intervalNanos;
+        private final CountDownLatch measuring;
+        private final CountDownLatch finished;
+        private final CountDownLatch released;
+        final LatencyHistogram latencies = new LatencyHistogram();
+        long errors;
+
+        Replayer(final List<String> transcript, final long startTime, final long measureTime,
+                 final long endTime, final long intervalNanos, final CountDownLatch measuring,
+                 final CountDownLatch finished, final CountDownLatch released) {
+            this.transcript = transcript;
+            this.startTime = startTime;
+            this.measureTime = measureTime;
+            this.endTime = endTime;
+            this.intervalNanos = intervalNanos;
+            this.measuring = measuring;
+            this.finished = finished;
+            this.released = released;
+        }
+
+        @Override
+        public void run() {
+            final Terminal terminal;
+            try {
+                terminal = TerminalBuilder.builder()
+                        .name("replay")
+                        .type(Terminal.TYPE_DUMB)
+                        .system(false)
+                        .streams(new ByteArrayInputStream(new byte[0]), BenchmarkSupport.NULL_OUTPUT)
+                        .build();
+            } catch (IOException e) {
+                measuring.countDown();
+                finished.countDown();
+                throw new UncheckedIOException(e);
+            }
+            final Shell shell = components.openShell(terminal);
+            boolean measured = false;
+            long scheduled = startTime;
+            try {
+                for (int i = 0; ; i = (i + 1) % transcript.size()) {
+                    if (intervalNanos != 0) {
+                        long delay;
+                        while ((delay = scheduled - System.nanoTime()) > 0) {
+                            LockSupport.parkNanos(delay);
+                        }
+                    } else {
+                        scheduled = System.nanoTime();
+                    }
+                    if (scheduled - endTime >= 0) {
+                        break;
+                    }
+                    if (!measured && scheduled - measureTime >= 0) {
+                        measured = true;
+                        measuring.countDown();
+                    }
+
+                    final boolean success;
+                    try {
+                        success = shell.execute(transcript.get(i));
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
+                    }
+                    if (measured) {
+                        // With a target rate, latency includes the delay before the command was run.
+                        latencies.record(System.nanoTime() - scheduled);
+                        if (!success) {
+                            ++errors;
+                        }
+                    }
+                    scheduled += intervalNanos;
+                }
+            } finally {
+                if (!measured) {
+                    measuring.countDown();
+                }
+                finished.countDown();
+                try {
+                    released.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                shell.close();
+                try {
+                    terminal.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+}
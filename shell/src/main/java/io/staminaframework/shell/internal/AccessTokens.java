@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+
+/**
+ * Utilities for tokens required from remote clients.
+ *
+ * @author Stamina Framework developers
+ */
+final class AccessTokens {
+    private AccessTokens() {
+    }
+
+    /**
+     * Generate a random token.
+     */
+    static String generate() {
+        final byte[] random = new byte[24];
+        new SecureRandom().nextBytes(random);
+        final StringBuilder buf = new StringBuilder(random.length * 2);
+        for (final byte b : random) {
+            buf.append(String.format("%02x", b & 0xff));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Check a token sent by a client, in constant time.
+     */
+    static boolean matches(byte[] expected, String actual) {
+        return actual != null && MessageDigest.isEqual(expected, actual.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Write client settings to a file, only readable by the current user.
+     */
+    static void write(Path file, int port, String token) throws IOException {
+        Files.deleteIfExists(file);
+        try {
+            Files.createFile(file, PosixFilePermissions.asFileAttribute(
+                    PosixFilePermissions.fromString("rw-------")));
+        } catch (UnsupportedOperationException e) {
+            Files.createFile(file);
+        }
+        try (final Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            out.write("port=" + port + "\n");
+            out.write("token=" + token + "\n");
+        }
+    }
+}
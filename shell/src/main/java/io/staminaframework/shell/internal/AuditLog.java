@@ -0,0 +1,322 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.*;
+import org.osgi.service.log.LogService;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Audit log of executed commands.
+ * <p>
+ * Records are queued in a lock-free ring buffer, and written by a background
+ * thread to a rotating file, using the JSON Lines format.
+ * The writer thread sleeps while no record is available,
+ * and is woken up when a record is added.
+ * Recording a command never blocks: when the ring buffer is full,
+ * new records are dropped and counted. The number of dropped records
+ * is written to the audit log as a <code>dropped</code> record,
+ * as soon as the writer catches up.
+ * <p>
+ * This component is only enabled when its configuration is available.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = AuditLog.class,
+        configurationPid = "io.staminaframework.shell.audit",
+        configurationPolicy = ConfigurationPolicy.REQUIRE)
+public class AuditLog {
+    @interface Config {
+        /**
+         * Get path to audit log file.
+         * Default file is located in the bundle data area.
+         */
+        String path() default "";
+
+        /**
+         * Get maximum size (in bytes) of an audit log file before it is rotated.
+         */
+        long maxFileSize() default 10485760;
+
+        /**
+         * Get number of rotated audit log files to keep.
+         */
+        int maxFiles() default 5;
+
+        /**
+         * Get maximum number of records waiting to be written.
+         */
+        int bufferSize() default 8192;
+
+        /**
+         * Get maximum time (in milliseconds) before records are written to disk.
+         */
+        long flushInterval() default 1000;
+    }
+
+    /**
+     * Maximum time the writer thread sleeps, in case a wake-up is missed.
+     */
+    private static final long FALLBACK_POLL_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    @Reference
+    private LogService logService;
+    private RingBuffer<Record> records;
+    private final AtomicLong dropped = new AtomicLong();
+    private volatile boolean running;
+    private volatile Thread writerThread;
+    /**
+     * Set while the writer thread is sleeping, or about to sleep.
+     */
+    private volatile boolean writerWaiting;
+    private Config config;
+    private Path file;
+
+    @Activate
+    void activate(BundleContext bundleContext, Config config) throws IOException {
+        this.config = config;
+        if (config.path().isEmpty()) {
+            final File dataFile = bundleContext.getDataFile("audit.log");
+            if (dataFile == null) {
+                throw new IOException("No persistent storage available for audit log");
+            }
+            file = dataFile.toPath();
+        } else {
+            file = new File(config.path()).toPath();
+        }
+        final Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        records = new RingBuffer<>(config.bufferSize());
+        running = true;
+        final Thread t = new Thread(this::writeRecords, "Stamina Shell Audit Log");
+        t.setDaemon(true);
+        writerThread = t;
+        t.start();
+        logService.log(LogService.LOG_INFO, "Writing shell audit log to " + file);
+    }
+
+    @Deactivate
+    void deactivate() {
+        running = false;
+        final Thread t = writerThread;
+        if (t != null) {
+            LockSupport.unpark(t);
+            try {
+                t.join(4000);
+            } catch (InterruptedException ignore) {
+            }
+            writerThread = null;
+        }
+    }
+
+    /**
+     * Record a command execution. This method never blocks.
+     *
+     * @param line      executed command-line
+     * @param session   session label
+     * @param startTime execution start time, in milliseconds since epoch
+     * @param nanos     execution time, in nanoseconds
+     * @param error     error raised by the command, <code>null</code> if the command succeeded
+     */
+    public void record(String line, String session, long startTime, long nanos, Throwable error) {
+        final Record r = new Record(line, session, startTime, nanos,
+                error == null ? null : error.getClass().getName());
+        if (!running || !records.offer(r)) {
+            dropped.incrementAndGet();
+        }
+        if (writerWaiting) {
+            writerWaiting = false;
+            final Thread t = writerThread;
+            if (t != null) {
+                LockSupport.unpark(t);
+            }
+        }
+    }
+
+    private void writeRecords() {
+        final long flushInterval = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.flushInterval()));
+        final StringBuilder buf = new StringBuilder(256);
+        Writer out = null;
+        long fileSize = 0;
+        long lastFlush = System.nanoTime();
+        boolean unflushed = false;
+        try {
+            while (true) {
+                final boolean stopping = !running;
+                Record r;
+                while ((r = records.poll()) != null || dropped.get() != 0) {
+                    buf.setLength(0);
+                    if (r == null) {
+                        formatDropped(dropped.getAndSet(0), buf);
+                    } else {
+                        format(r, buf);
+                    }
+                    if (out == null) {
+                        fileSize = Files.exists(file) ? Files.size(file) : 0;
+                        if (fileSize >= config.maxFileSize()) {
+                            rotate();
+                            fileSize = 0;
+                        }
+                        out = new OutputStreamWriter(Files.newOutputStream(file,
+                                StandardOpenOption.CREATE, StandardOpenOption.APPEND), StandardCharsets.UTF_8);
+                    }
+                    out.append(buf);
+                    // Approximate size: most characters are ASCII.
+                    fileSize += buf.length();
+                    unflushed = true;
+                    if (fileSize >= config.maxFileSize()) {
+                        out.close();
+                        out = null;
+                        unflushed = false;
+                    }
+                }
+                if (unflushed && (stopping || System.nanoTime() - lastFlush >= flushInterval)) {
+                    out.flush();
+                    unflushed = false;
+                    lastFlush = System.nanoTime();
+                }
+                if (stopping) {
+                    break;
+                }
+                writerWaiting = true;
+                // Records added before the flag was set are written first.
+                if (!records.isEmpty() || dropped.get() != 0 || !running) {
+                    writerWaiting = false;
+                    continue;
+                }
+                final long sleep = unflushed
+                        ? flushInterval - (System.nanoTime() - lastFlush) : FALLBACK_POLL_INTERVAL;
+                LockSupport.parkNanos(this, Math.min(sleep, FALLBACK_POLL_INTERVAL));
+                writerWaiting = false;
+            }
+        } catch (IOException e) {
+            logService.log(LogService.LOG_ERROR, "Failed to write shell audit log: audit is disabled", e);
+            running = false;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {
+                }
+            }
+        }
+    }
+
+    private void rotate() throws IOException {
+        final int maxFiles = Math.max(1, config.maxFiles());
+        final String name = file.getFileName().toString();
+        Files.deleteIfExists(file.resolveSibling(name + "." + maxFiles));
+        for (int i = maxFiles - 1; i >= 1; --i) {
+            final Path src = file.resolveSibling(name + "." + i);
+            if (Files.exists(src)) {
+                Files.move(src, file.resolveSibling(name + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, file.resolveSibling(name + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void format(Record r, StringBuilder buf) {
+        buf.append("{\"time\":").append(r.startTime)
+                .append(",\"session\":");
+        appendString(r.session, buf);
+        buf.append(",\"command\":");
+        appendString(r.line, buf);
+        buf.append(",\"durationMicros\":").append(r.nanos / 1000)
+                .append(",\"outcome\":\"").append(r.error == null ? "success" : "failure").append('"');
+        if (r.error != null) {
+            buf.append(",\"exception\":");
+            appendString(r.error, buf);
+        }
+        buf.append("}\n");
+    }
+
+    private static void formatDropped(long count, StringBuilder buf) {
+        buf.append("{\"time\":").append(System.currentTimeMillis())
+                .append(",\"dropped\":").append(count).append("}\n");
+    }
+
+    private static void appendString(String s, StringBuilder buf) {
+        if (s == null) {
+            buf.append("null");
+            return;
+        }
+        buf.append('"');
+        for (int i = 0; i < s.length(); ++i) {
+            final char c = s.charAt(i);
+            switch (c) {
+                case '"':
+                    buf.append("\\\"");
+                    break;
+                case '\\':
+                    buf.append("\\\\");
+                    break;
+                case '\n':
+                    buf.append("\\n");
+                    break;
+                case '\r':
+                    buf.append("\\r");
+                    break;
+                case '\t':
+                    buf.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        buf.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        buf.append(c);
+                    }
+                    break;
+            }
+        }
+        buf.append('"');
+    }
+
+    /**
+     * Audit record.
+     */
+    private static final class Record {
+        final String line;
+        final String session;
+        final long startTime;
+        final long nanos;
+        final String error;
+
+        Record(final String line, final String session, final long startTime,
+               final long nanos, final String error) {
+            this.line = line;
+            this.session = session;
+            this.startTime = startTime;
+            this.nanos = nanos;
+            this.error = error;
+        }
+    }
+}
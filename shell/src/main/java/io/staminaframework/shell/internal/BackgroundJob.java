@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandSession;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * Command running in background.
+ *
+ * @author Stamina Framework developers
+ */
+final class BackgroundJob {
+    /**
+     * Background job state.
+     */
+    enum State {
+        QUEUED, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    private final int id;
+    private final String line;
+    private final CommandSession owner;
+    private final CompletableFuture<Object> completion = new CompletableFuture<>();
+    private volatile State state = State.QUEUED;
+    private volatile long startTime;
+    private volatile long endTime;
+    private volatile Future<?> task;
+    private volatile boolean cancelRequested;
+
+    BackgroundJob(final int id, final String line, final CommandSession owner) {
+        this.id = id;
+        this.line = line;
+        this.owner = owner;
+    }
+
+    /**
+     * Get job identifier.
+     */
+    public int id() {
+        return id;
+    }
+
+    /**
+     * Get executed command-line.
+     */
+    public String line() {
+        return line;
+    }
+
+    /**
+     * Get the session this job was started from.
+     */
+    public CommandSession owner() {
+        return owner;
+    }
+
+    /**
+     * Get job state.
+     */
+    public State state() {
+        return state;
+    }
+
+    /**
+     * Get job running time, in nanoseconds.
+     */
+    public long runningTime() {
+        final long start = startTime;
+        if (start == 0) {
+            return 0;
+        }
+        final long end = endTime;
+        return (end == 0 ? System.nanoTime() : end) - start;
+    }
+
+    /**
+     * Get a future completed with the command result when this job ends.
+     */
+    public CompletableFuture<Object> completion() {
+        return completion;
+    }
+
+    /**
+     * Cancel this job, interrupting the command if it is running.
+     */
+    public void cancel() {
+        cancelRequested = true;
+        final Future<?> t = task;
+        if (t != null) {
+            t.cancel(true);
+        }
+        synchronized (this) {
+            if (state != State.QUEUED) {
+                return;
+            }
+            state = State.CANCELLED;
+        }
+        completion.cancel(false);
+    }
+
+    void submitted(Future<?> task) {
+        this.task = task;
+    }
+
+    /**
+     * Mark this job as running.
+     *
+     * @return <code>false</code> if this job was cancelled
+     */
+    synchronized boolean start() {
+        if (state != State.QUEUED) {
+            return false;
+        }
+        startTime = System.nanoTime();
+        state = State.RUNNING;
+        return true;
+    }
+
+    void complete(Object result) {
+        finish(State.DONE);
+        completion.complete(result);
+    }
+
+    void fail(Throwable error) {
+        finish(cancelRequested ? State.CANCELLED : State.FAILED);
+        completion.completeExceptionally(error);
+    }
+
+    private synchronized void finish(State newState) {
+        if (startTime != 0) {
+            endTime = System.nanoTime();
+        }
+        state = newState;
+    }
+
+    boolean isFinished() {
+        final State s = state;
+        return s == State.DONE || s == State.FAILED || s == State.CANCELLED;
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandProcessor;
+import org.apache.felix.service.command.CommandSession;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.log.LogService;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Run commands in background, using a bounded pool of threads.
+ * <p>
+ * Each background job runs in its own session, which is initialized
+ * with variables from the session the job was started from.
+ * Listeners are notified when a job is submitted, and when it ends.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = BackgroundJobs.class, configurationPid = "io.staminaframework.shell")
+public class BackgroundJobs {
+    @interface Config {
+        /**
+         * Get number of threads running background jobs.
+         */
+        int backgroundWorkers() default 4;
+
+        /**
+         * Get maximum number of background jobs waiting for a thread.
+         */
+        int backgroundQueueSize() default 64;
+
+        /**
+         * Get number of finished background jobs kept for display.
+         */
+        int finishedJobsKept() default 32;
+    }
+
+    /**
+     * Listener notified of background job events.
+     * A job is always reported as submitted before it is reported as finished.
+     */
+    interface Listener {
+        void jobSubmitted(BackgroundJob job);
+
+        void jobFinished(BackgroundJob job);
+    }
+
+    @Reference
+    private CommandProcessor processor;
+    @Reference
+    private CommandStats commandStats;
+    @Reference
+    private ResultCache resultCache;
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile AuditLog auditLog;
+    @Reference
+    private LogService logService;
+    private final Map<Integer, BackgroundJob> jobs = new ConcurrentSkipListMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    private final AtomicInteger nextId = new AtomicInteger(1);
+    private ThreadPoolExecutor executor;
+    private int finishedJobsKept;
+
+    @Activate
+    void activate(Config config) {
+        finishedJobsKept = Math.max(0, config.finishedJobsKept());
+        final int workers = Math.max(1, config.backgroundWorkers());
+        final AtomicInteger threadCount = new AtomicInteger();
+        executor = new ThreadPoolExecutor(workers, workers, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, config.backgroundQueueSize())),
+                r -> {
+                    final Thread t = new Thread(r, "Stamina Shell Background Job " + threadCount.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                });
+        executor.allowCoreThreadTimeOut(true);
+    }
+
+    @Deactivate
+    void deactivate() {
+        executor.shutdownNow();
+        for (final BackgroundJob job : jobs.values()) {
+            job.cancel();
+        }
+        jobs.clear();
+        listeners.clear();
+    }
+
+    /**
+     * Register a listener.
+     */
+    void addListener(Listener listener) {
+        listeners.add(listener);
+    }
+
+    /**
+     * Unregister a listener.
+     */
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get the command-line to run in background, if this line ends with <code>&amp;</code>.
+     *
+     * @return command-line without trailing <code>&amp;</code>, or <code>null</code>
+     */
+    static String backgroundCommand(String line) {
+        final String cmd = line.trim();
+        final int len = cmd.length();
+        if (len < 2 || cmd.charAt(len - 1) != '&') {
+            return null;
+        }
+        final char prev = cmd.charAt(len - 2);
+        if (prev == '&' || prev == '\\') {
+            return null;
+        }
+        final String bgCmd = cmd.substring(0, len - 1).trim();
+        return bgCmd.isEmpty() ? null : bgCmd;
+    }
+
+    /**
+     * Run a command-line in background.
+     *
+     * @param owner session this job is started from
+     * @param line  command-line to execute
+     * @return new background job
+     * @throws RejectedExecutionException if too many jobs are waiting to be executed
+     */
+    public BackgroundJob submit(CommandSession owner, String line) {
+        final BackgroundJob job = new BackgroundJob(nextId.getAndIncrement(), line, owner);
+        jobs.put(job.id(), job);
+        try {
+            job.submitted(executor.submit(() -> run(job)));
+        } catch (RejectedExecutionException e) {
+            jobs.remove(job.id());
+            throw new RejectedExecutionException(
+                    "Too many background jobs: wait for running jobs to end", e);
+        }
+        notifyListeners(job, true);
+        // Listeners are notified when the job ends, even if it is cancelled while queued.
+        job.completion().whenComplete((result, error) -> notifyListeners(job, false));
+        pruneFinishedJobs();
+        return job;
+    }
+
+    /**
+     * Get background jobs, ordered by identifier.
+     */
+    public List<BackgroundJob> jobs() {
+        return new ArrayList<>(jobs.values());
+    }
+
+    /**
+     * Get background jobs started from a session.
+     */
+    public List<BackgroundJob> jobs(CommandSession owner) {
+        final List<BackgroundJob> result = new ArrayList<>();
+        for (final BackgroundJob job : jobs.values()) {
+            if (job.owner() == owner) {
+                result.add(job);
+            }
+        }
+        return result;
+    }
+
+    private void run(BackgroundJob job) {
+        if (!job.start()) {
+            return;
+        }
+        final long startTime = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        CommandSession session = null;
+        try {
+            session = Sessions.fork(processor, job.owner());
+            final Object result = resultCache.execute(session, job.line());
+            commandStats.record(job.line(), System.nanoTime() - start, false);
+            audit(job, startTime, System.nanoTime() - start, null);
+            job.complete(result);
+        } catch (Throwable e) {
+            commandStats.record(job.line(), System.nanoTime() - start, true);
+            audit(job, startTime, System.nanoTime() - start, e);
+            job.fail(e);
+        } finally {
+            if (session != null) {
+                session.close();
+            }
+        }
+    }
+
+    private void audit(BackgroundJob job, long startTime, long nanos, Throwable error) {
+        final AuditLog audit = auditLog;
+        if (audit != null) {
+            audit.record(job.line(), "job:" + job.id(), startTime, nanos, error);
+        }
+    }
+
+    private void notifyListeners(BackgroundJob job, boolean submitted) {
+        for (final Listener listener : listeners) {
+            try {
+                if (submitted) {
+                    listener.jobSubmitted(job);
+                } else {
+                    listener.jobFinished(job);
+                }
+            } catch (Exception e) {
+                logService.log(LogService.LOG_WARNING, "Background job listener failed", e);
+            }
+        }
+    }
+
+    private void pruneFinishedJobs() {
+        int finished = 0;
+        for (final BackgroundJob job : jobs.values()) {
+            if (job.isFinished()) {
+                ++finished;
+            }
+        }
+        // Jobs are sorted by identifier: oldest jobs are removed first.
+        for (final BackgroundJob job : jobs.values()) {
+            if (finished <= finishedJobsKept) {
+                break;
+            }
+            if (job.isFinished()) {
+                jobs.remove(job.id());
+                --finished;
+            }
+        }
+    }
+}
@@ -18,23 +18,66 @@ package io.staminaframework.shell.internal;
 
 
 import org.apache.felix.service.command.Converter;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.namespace.PackageNamespace;
+import org.osgi.framework.wiring.BundleCapability;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * {@link Converter} implementation related to {@link Class} instances.
+ * <p>
+ * Class names are resolved using bundles exporting the class package.
+ * Resolved classes and unknown class names are cached, until a bundle
+ * is resolved, unresolved, updated or uninstalled.
  *
  * @author Stamina Framework developers
  */
 @Component(service = Converter.class,
         property = Converter.CONVERTER_CLASSES + "=java.lang.Class")
 public class ClassConverter implements Converter {
+    /**
+     * Maximum number of unknown class names kept in cache.
+     */
+    private static final int MAX_MISSING_CLASSES = 1024;
+
+    private final Map<String, ResolvedClass> classes = new ConcurrentHashMap<>();
+    private final Set<String> missingClasses = ConcurrentHashMap.newKeySet();
+    private volatile Map<String, List<Bundle>> exporters;
+    private volatile int exportersGeneration;
+    private final BundleListener bundleListener = this::bundleChanged;
+    private BundleContext bundleContext;
+
+    @Activate
+    void activate(BundleContext bundleContext) {
+        this.bundleContext = bundleContext;
+        bundleContext.addBundleListener(bundleListener);
+    }
+
+    @Deactivate
+    void deactivate() {
+        try {
+            bundleContext.removeBundleListener(bundleListener);
+        } catch (IllegalStateException ignore) {
+        }
+        classes.clear();
+        missingClasses.clear();
+        exporters = null;
+        bundleContext = null;
+    }
+
     @Override
     public Object convert(Class<?> desiredType, Object in) throws Exception {
-        if (desiredType == Class.class) {
-            try {
-                Class.forName(in.toString());
-            } catch (ClassNotFoundException ignore) {
-            }
+        if (desiredType == Class.class && in instanceof CharSequence) {
+            return resolve(in.toString().trim());
         }
         return null;
     }
@@ -51,4 +94,114 @@ public class ClassConverter implements Converter {
         }
         return null;
     }
+
+    private Class<?> resolve(String className) {
+        final ResolvedClass cached = classes.get(className);
+        if (cached != null) {
+            return cached.clazz;
+        }
+        if (className.isEmpty() || missingClasses.contains(className)) {
+            return null;
+        }
+
+        final BundleContext ctx = bundleContext;
+        if (ctx == null) {
+            return null;
+        }
+        final int i = className.lastIndexOf('.');
+        final String pkg = i < 0 ? "" : className.substring(0, i);
+        final List<Bundle> bundles = getExporters(ctx).get(pkg);
+        if (bundles != null) {
+            for (final Bundle b : bundles) {
+                final Class<?> clazz = loadClass(b, className);
+                if (clazz != null) {
+                    classes.put(className, new ResolvedClass(clazz, b.getBundleId()));
+                    return clazz;
+                }
+            }
+        }
+
+        // Use system bundle for classes from the JRE, which are not exported.
+        final Bundle sys = ctx.getBundle(0);
+        final Class<?> clazz = sys == null ? null : loadClass(sys, className);
+        if (clazz != null) {
+            classes.put(className, new ResolvedClass(clazz, 0));
+            return clazz;
+        }
+
+        if (missingClasses.size() >= MAX_MISSING_CLASSES) {
+            missingClasses.clear();
+        }
+        missingClasses.add(className);
+        return null;
+    }
+
+    private static Class<?> loadClass(Bundle bundle, String className) {
+        try {
+            return bundle.loadClass(className);
+        } catch (ClassNotFoundException | IllegalStateException e) {
+            return null;
+        }
+    }
+
+    private Map<String, List<Bundle>> getExporters(BundleContext ctx) {
+        Map<String, List<Bundle>> result = exporters;
+        if (result != null) {
+            return result;
+        }
+        final int generation = exportersGeneration;
+        result = new HashMap<>(256);
+        for (final Bundle b : ctx.getBundles()) {
+            final BundleWiring wiring = b.adapt(BundleWiring.class);
+            if (wiring == null) {
+                continue;
+            }
+            final List<BundleCapability> caps = wiring.getCapabilities(PackageNamespace.PACKAGE_NAMESPACE);
+            if (caps == null) {
+                continue;
+            }
+            for (final BundleCapability cap : caps) {
+                final Object pkg = cap.getAttributes().get(PackageNamespace.PACKAGE_NAMESPACE);
+                if (pkg != null) {
+                    result.computeIfAbsent(pkg.toString(), k -> new ArrayList<>(1)).add(b);
+                }
+            }
+        }
+        if (generation == exportersGeneration) {
+            // Do not keep this index if a bundle was changed meanwhile.
+            exporters = result;
+        }
+        return result;
+    }
+
+    private void bundleChanged(BundleEvent event) {
+        switch (event.getType()) {
+            case BundleEvent.RESOLVED:
+                // New packages may be available.
+                ++exportersGeneration;
+                exporters = null;
+                missingClasses.clear();
+                break;
+            case BundleEvent.UNRESOLVED:
+            case BundleEvent.UPDATED:
+            case BundleEvent.UNINSTALLED:
+                ++exportersGeneration;
+                exporters = null;
+                final long bundleId = event.getBundle().getBundleId();
+                classes.values().removeIf(c -> c.bundleId == bundleId);
+                break;
+            default:
+                break;
+        }
+    }
+
+    private static final class ResolvedClass {
+        final Class<?> clazz;
+        final long bundleId;
+
+        ResolvedClass(final Class<?> clazz, final long bundleId) {
+            this.clazz = clazz;
+            this.bundleId = bundleId;
+        }
+    }
 }
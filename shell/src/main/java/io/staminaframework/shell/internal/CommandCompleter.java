@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.jline.reader.Candidate;
+import org.jline.reader.Completer;
+import org.jline.reader.LineReader;
+import org.jline.reader.ParsedLine;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link Completer} implementation for commands, flags and options.
+ * <p>
+ * Command names (with or without scope) are kept in prefix trees, which
+ * are updated as commands are added to or removed from the command index.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = CommandCompleter.class)
+public class CommandCompleter implements Completer, CommandIndex.Listener {
+    /**
+     * Maximum number of candidates returned by a completion.
+     */
+    private static final int MAX_CANDIDATES = 1000;
+
+    @Reference
+    private CommandIndex commandIndex;
+    private final PrefixTrie<Candidate> names = new PrefixTrie<>();
+    private final PrefixTrie<Candidate> functions = new PrefixTrie<>();
+    private final Map<String, Set<String>> functionNames = new HashMap<>();
+    private final Map<String, List<Candidate>> options = new ConcurrentHashMap<>();
+
+    @Activate
+    void activate() {
+        commandIndex.addListener(this);
+    }
+
+    @Deactivate
+    void deactivate() {
+        commandIndex.removeListener(this);
+    }
+
+    @Override
+    public void commandAdded(CommandMetadata command) {
+        String description = null;
+        final Map<String, Candidate> opts = new TreeMap<>();
+        for (final CommandMetadata.Signature sig : command.signatures()) {
+            if (description == null) {
+                description = sig.description();
+            }
+            addOptions(sig.flags(), opts);
+            addOptions(sig.options(), opts);
+        }
+        options.put(command.name(), new ArrayList<>(opts.values()));
+        names.put(command.name(),
+                new Candidate(command.name(), command.name(), null, description, null, null, true));
+
+        // The same function may be available in several scopes.
+        synchronized (functionNames) {
+            final Set<String> cmdNames = functionNames.computeIfAbsent(command.function(), k -> new HashSet<>(2));
+            if (cmdNames.isEmpty()) {
+                functions.put(command.function(),
+                        new Candidate(command.function(), command.function(), null, description, null, null, true));
+            }
+            cmdNames.add(command.name());
+        }
+    }
+
+    @Override
+    public void commandRemoved(CommandMetadata command) {
+        names.remove(command.name());
+        options.remove(command.name());
+        synchronized (functionNames) {
+            final Set<String> cmdNames = functionNames.get(command.function());
+            if (cmdNames != null) {
+                cmdNames.remove(command.name());
+                if (cmdNames.isEmpty()) {
+                    functionNames.remove(command.function());
+                    functions.remove(command.function());
+                }
+            }
+        }
+    }
+
+    private static void addOptions(Collection<CommandMetadata.Option> src, Map<String, Candidate> dst) {
+        for (final CommandMetadata.Option opt : src) {
+            for (final String name : opt.names()) {
+                dst.put(name, new Candidate(name, name, null, opt.description(), null, null, true));
+            }
+        }
+    }
+
+    @Override
+    public void complete(LineReader reader, ParsedLine line, List<Candidate> candidates) {
+        final String word = line.word().substring(0, Math.min(line.word().length(), line.wordCursor()));
+        final String command = findCommand(line);
+        if (command == null) {
+            // Complete a command name.
+            final String prefix = word.toLowerCase();
+            names.collect(prefix, candidates, MAX_CANDIDATES);
+            if (prefix.indexOf(':') < 0) {
+                functions.collect(prefix, candidates, MAX_CANDIDATES);
+            }
+        } else if (word.startsWith("-")) {
+            // Complete a flag or an option.
+            final CommandMetadata cmd = commandIndex.lookup(command);
+            if (cmd == null) {
+                return;
+            }
+            final List<Candidate> opts = options.get(cmd.name());
+            if (opts != null) {
+                for (final Candidate c : opts) {
+                    if (c.value().startsWith(word)) {
+                        candidates.add(c);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the command being completed.
+     *
+     * @return command name, or <code>null</code> if the current word is a command
+     */
+    private static String findCommand(ParsedLine line) {
+        final List<String> words = line.words();
+        String command = null;
+        for (int i = 0; i < line.wordIndex() && i < words.size(); ++i) {
+            final String w = words.get(i);
+            if (w.equals("|") || w.equals(";") || w.equals("{") || w.equals("(")) {
+                command = null;
+            } else if (command == null) {
+                command = w;
+            }
+            if (w.length() > 1 && (w.endsWith("|") || w.endsWith(";"))) {
+                command = null;
+            }
+        }
+        return command;
+    }
+}
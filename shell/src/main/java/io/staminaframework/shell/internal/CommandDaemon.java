@@ -0,0 +1,333 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandProcessor;
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Converter;
+import org.apache.felix.service.command.Function;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.*;
+import org.osgi.service.log.LogService;
+
+import java.io.*;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Command daemon, executing command-lines sent by local clients.
+ * <p>
+ * The daemon only listens on a loopback address. Clients must send
+ * a token with each request: if no token is configured, a random token
+ * is generated and written with the daemon port to a file in the bundle
+ * data area, which is only readable by the current user.
+ * See {@link DaemonClient} for a client implementation.
+ * <p>
+ * This component is only enabled when its configuration is available.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(configurationPid = "io.staminaframework.shell.daemon",
+        configurationPolicy = ConfigurationPolicy.REQUIRE)
+public class CommandDaemon {
+    @interface Config {
+        /**
+         * Get loopback address to listen to.
+         */
+        String address() default "127.0.0.1";
+
+        /**
+         * Get port to listen to.
+         */
+        int port() default 2020;
+
+        /**
+         * Get token required from clients.
+         * A random token is generated if none is set.
+         */
+        String token() default "";
+
+        /**
+         * Get number of threads used to run commands.
+         */
+        int workers() default 4;
+
+        /**
+         * Get time (in seconds) after which an idle client connection is closed.
+         */
+        int readTimeout() default 30;
+
+        /**
+         * Get time (in milliseconds) after which a command is interrupted.
+         * Set to <code>0</code> to disable timeouts.
+         * This value may be overridden with command service property <code>shell.timeout</code>.
+         */
+        long commandTimeout() default 60000;
+    }
+
+    /**
+     * Name of the file holding daemon port and token, in bundle data area.
+     */
+    static final String DAEMON_FILE = "daemon.properties";
+    /**
+     * Delay (in milliseconds) before accepting connections again after a failure,
+     * doubled after each consecutive failure.
+     */
+    private static final long MIN_ACCEPT_BACKOFF = 10;
+    private static final long MAX_ACCEPT_BACKOFF = 1000;
+
+    @Reference
+    private CommandProcessor processor;
+    @Reference
+    private LogService logService;
+    @Reference
+    private CommandStats commandStats;
+    @Reference
+    private ConverterRegistry converters;
+    @Reference
+    private ResultCache resultCache;
+    @Reference
+    private CommandWatchdog watchdog;
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile AuditLog auditLog;
+    private ServerSocket serverSocket;
+    private ExecutorService workers;
+    private Thread acceptThread;
+    private byte[] token;
+    private Path daemonFile;
+    private int readTimeout;
+    private long commandTimeout;
+    private volatile boolean running;
+
+    @Activate
+    void activate(BundleContext bundleContext, Config config) throws IOException {
+        final InetAddress address = InetAddress.getByName(config.address());
+        if (!address.isLoopbackAddress()) {
+            throw new IOException("Command daemon must listen on a loopback address: " + config.address());
+        }
+        final String tokenValue = config.token().isEmpty() ? AccessTokens.generate() : config.token();
+        token = tokenValue.getBytes(StandardCharsets.UTF_8);
+        readTimeout = (int) TimeUnit.SECONDS.toMillis(Math.max(1, config.readTimeout()));
+        commandTimeout = Math.max(0, config.commandTimeout());
+
+        serverSocket = new ServerSocket();
+        try {
+            serverSocket.bind(new InetSocketAddress(address, config.port()));
+        } catch (IOException e) {
+            serverSocket.close();
+            throw e;
+        }
+        final File dataFile = bundleContext.getDataFile(DAEMON_FILE);
+        if (dataFile != null) {
+            daemonFile = dataFile.toPath();
+            AccessTokens.write(daemonFile, serverSocket.getLocalPort(), tokenValue);
+        }
+
+        final int nbWorkers = Math.max(1, config.workers());
+        final AtomicInteger threadCount = new AtomicInteger();
+        workers = new ThreadPoolExecutor(nbWorkers, nbWorkers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(nbWorkers * 16), r -> {
+            final Thread t = new Thread(r, "Stamina Shell Daemon Worker " + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        running = true;
+        acceptThread = new Thread(this::acceptConnections, "Stamina Shell Daemon");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+        logService.log(LogService.LOG_INFO, "Command daemon listening on "
+                + serverSocket.getLocalSocketAddress()
+                + (daemonFile == null ? "" : ": client settings written to " + daemonFile));
+    }
+
+    @Deactivate
+    void deactivate() {
+        running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ignore) {
+        }
+        if (acceptThread != null) {
+            acceptThread.interrupt();
+            try {
+                acceptThread.join(4000);
+            } catch (InterruptedException ignore) {
+            }
+            acceptThread = null;
+        }
+        workers.shutdownNow();
+        if (daemonFile != null) {
+            try {
+                Files.deleteIfExists(daemonFile);
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    private void acceptConnections() {
+        long backoff = 0;
+        while (running) {
+            final Socket socket;
+            try {
+                socket = serverSocket.accept();
+                backoff = 0;
+            } catch (IOException e) {
+                if (!running) {
+                    break;
+                }
+                // Do not spin when failures persist (such as when file descriptors are exhausted).
+                backoff = backoff == 0 ? MIN_ACCEPT_BACKOFF : Math.min(backoff * 2, MAX_ACCEPT_BACKOFF);
+                logService.log(LogService.LOG_WARNING,
+                        "Failed to accept daemon client: retrying in " + backoff + " ms", e);
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    break;
+                }
+                continue;
+            }
+            try {
+                workers.execute(() -> serve(socket));
+            } catch (RejectedExecutionException e) {
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private void serve(Socket socket) {
+        try {
+            socket.setSoTimeout(readTimeout);
+            socket.setTcpNoDelay(true);
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            // Several requests may be sent using the same connection.
+            while (running) {
+                final int magic;
+                try {
+                    magic = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (magic != DaemonProtocol.MAGIC) {
+                    DaemonProtocol.writeResponse(out, DaemonProtocol.STATUS_REJECTED,
+                            DaemonProtocol.LEVEL_NONE, 2, "Invalid request");
+                    break;
+                }
+                final String clientToken = DaemonProtocol.readString(in, DaemonProtocol.MAX_REQUEST_LENGTH);
+                final String line = DaemonProtocol.readString(in, DaemonProtocol.MAX_REQUEST_LENGTH);
+                if (!AccessTokens.matches(token, clientToken)) {
+                    logService.log(LogService.LOG_WARNING,
+                            "Rejected daemon client with invalid token: " + socket.getRemoteSocketAddress());
+                    DaemonProtocol.writeResponse(out, DaemonProtocol.STATUS_REJECTED,
+                            DaemonProtocol.LEVEL_NONE, 2, "Invalid token");
+                    break;
+                }
+                execute(line, out);
+            }
+        } catch (DaemonProtocol.FrameTooLongException e) {
+            logService.log(LogService.LOG_WARNING, "Closing daemon client connection "
+                    + socket.getRemoteSocketAddress() + ": " + e.getMessage());
+        } catch (SocketException | EOFException ignore) {
+            // Client disconnected.
+        } catch (IOException e) {
+            logService.log(LogService.LOG_DEBUG, "Daemon client error", e);
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    private void execute(String line, DataOutputStream out) throws IOException {
+        final ByteArrayOutputStream console = new ByteArrayOutputStream(256);
+        final PrintStream consoleOut = new PrintStream(console, true, "UTF-8");
+        final CommandSession session = processor.createSession(
+                new ByteArrayInputStream(new byte[0]), consoleOut, consoleOut);
+        // Each request is executed in its own session.
+        final String sessionId = Sessions.newId("daemon");
+        session.put(".processor", processor);
+        session.put("SCOPE", "bundle:*");
+        session.put("#PWD", (Function) (s, arguments) -> s.currentDir().toString());
+
+        byte status = DaemonProtocol.STATUS_OK;
+        byte level = DaemonProtocol.LEVEL_NONE;
+        int exitCode = 0;
+        final StringBuilder payload = new StringBuilder(256);
+        final long timeout = watchdog.timeout(session, line, commandTimeout);
+        Object result = null;
+        Exception failure = null;
+        final long startTime = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        final CommandWatchdog.Watch watch = watchdog.watch(session, line, timeout);
+        try {
+            result = resultCache.execute(session, line);
+        } catch (Exception e) {
+            failure = e;
+        } finally {
+            watch.close();
+        }
+        if (watch.isTimedOut()) {
+            // Clear interruption sent by the watchdog.
+            Thread.interrupted();
+            failure = new TimeoutException("Command timed out after " + timeout + " ms: " + line);
+        }
+        final long nanos = System.nanoTime() - start;
+        try {
+            consoleOut.flush();
+            payload.append(console.toString("UTF-8"));
+            if (failure == null) {
+                commandStats.record(line, nanos, false);
+                audit(line, sessionId, startTime, nanos, null);
+                if (result != null) {
+                    level = (byte) Converter.INSPECT;
+                    payload.append(converters.format(session, result, Converter.INSPECT)).append('\n');
+                }
+            } else {
+                commandStats.record(line, nanos, true);
+                audit(line, sessionId, startTime, nanos, failure);
+                status = DaemonProtocol.STATUS_ERROR;
+                exitCode = 1;
+                level = (byte) (failure instanceof IllegalArgumentException || failure instanceof TimeoutException
+                        ? Converter.PART : Converter.INSPECT);
+                payload.append(converters.format(session, failure, level)).append('\n');
+            }
+        } finally {
+            session.close();
+        }
+        DaemonProtocol.writeResponse(out, status, level, exitCode, payload.toString());
+    }
+
+    private void audit(String line, String sessionId, long startTime, long nanos, Throwable error) {
+        final AuditLog audit = auditLog;
+        if (audit != null) {
+            audit.record(line, sessionId, startTime, nanos, error);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignore) {
+        }
+    }
+}
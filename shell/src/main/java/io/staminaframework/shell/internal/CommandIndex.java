@@ -0,0 +1,407 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandProcessor;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.InvalidSyntaxException;
+import org.osgi.framework.ServiceReference;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.log.LogService;
+import org.osgi.util.tracker.ServiceTracker;
+import org.osgi.util.tracker.ServiceTrackerCustomizer;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Index of command metadata.
+ * <p>
+ * Command services are tracked as they come and go: command signatures are
+ * extracted once in a background thread, so that looking up a command
+ * never requires reflection nor getting the command service.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = CommandIndex.class)
+public class CommandIndex {
+    /**
+     * Listener notified when commands are added to or removed from the index.
+     */
+    interface Listener {
+        /**
+         * Called when a command is added. Command signatures are resolved.
+         */
+        void commandAdded(CommandMetadata command);
+
+        /**
+         * Called when a command is removed.
+         */
+        void commandRemoved(CommandMetadata command);
+    }
+
+    private static final String COMMAND_FILTER = "(&("
+            + CommandProcessor.COMMAND_SCOPE + "=*)("
+            + CommandProcessor.COMMAND_FUNCTION + "=*))";
+
+    @Reference
+    private LogService logService;
+    private final ConcurrentNavigableMap<String, CommandMetadata> commands = new ConcurrentSkipListMap<>();
+    private final ConcurrentMap<String, NavigableSet<String>> commandsByFunction = new ConcurrentHashMap<>();
+    private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+    /**
+     * Lock held while commands are added or removed and listeners are notified,
+     * so that listeners are never notified of a command which was removed.
+     */
+    private final Object listenerLock = new Object();
+    private final ConcurrentMap<ServiceReference<?>, Object> resolveLocks = new ConcurrentHashMap<>();
+    private final Object changeMonitor = new Object();
+    private volatile int cacheableCommands;
+    private BundleContext bundleContext;
+    private ExecutorService indexer;
+    private ServiceTracker<Object, List<CommandMetadata>> tracker;
+
+    @Activate
+    void activate(BundleContext bundleContext) throws InvalidSyntaxException {
+        this.bundleContext = bundleContext;
+        indexer = Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, "Stamina Shell Command Indexer");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+        tracker = new ServiceTracker<>(bundleContext,
+                bundleContext.createFilter(COMMAND_FILTER), new CommandTracker());
+        tracker.open(true);
+    }
+
+    @Deactivate
+    void deactivate() {
+        if (tracker != null) {
+            tracker.close();
+            tracker = null;
+        }
+        if (indexer != null) {
+            indexer.shutdownNow();
+            indexer = null;
+        }
+        synchronized (listenerLock) {
+            commands.clear();
+            cacheableCommands = 0;
+        }
+        commandsByFunction.clear();
+        resolveLocks.clear();
+        bundleContext = null;
+    }
+
+    /**
+     * Register a listener. Listener is notified with all indexed commands.
+     */
+    void addListener(Listener listener) {
+        synchronized (listenerLock) {
+            listeners.add(listener);
+            for (final CommandMetadata cmd : commands.values()) {
+                if (cmd.isResolved()) {
+                    listener.commandAdded(cmd);
+                }
+            }
+        }
+    }
+
+    /**
+     * Unregister a listener.
+     */
+    void removeListener(Listener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Get all indexed command names, sorted.
+     */
+    public NavigableSet<String> names() {
+        return commands.keySet();
+    }
+
+    /**
+     * Get indexed commands, sorted by name.
+     */
+    public Collection<CommandMetadata> commands() {
+        return commands.values();
+    }
+
+    /**
+     * Look up a command. If the name is not scoped, the first command
+     * (sorted by name) with a matching function is returned.
+     *
+     * @param name command name, with or without a scope
+     * @return command metadata, or <code>null</code> if none is found
+     */
+    public CommandMetadata lookup(String name) {
+        final String key = name.toLowerCase();
+        final CommandMetadata cmd;
+        if (key.indexOf(':') < 0) {
+            final NavigableSet<String> names = commandsByFunction.get(key);
+            if (names == null || names.isEmpty()) {
+                return null;
+            }
+            try {
+                cmd = commands.get(names.first());
+            } catch (NoSuchElementException e) {
+                return null;
+            }
+        } else {
+            cmd = commands.get(key);
+        }
+        if (cmd != null && !cmd.isResolved()) {
+            // This command was not indexed yet: do it now.
+            resolve(Collections.singletonList(cmd));
+        }
+        return cmd;
+    }
+
+    /**
+     * Get commands with a function, sorted by name.
+     * Command signatures may not be resolved yet.
+     *
+     * @param function command name, without a scope
+     */
+    public List<CommandMetadata> commandsByFunction(String function) {
+        final NavigableSet<String> names = commandsByFunction.get(function.toLowerCase());
+        if (names == null) {
+            return Collections.emptyList();
+        }
+        final List<CommandMetadata> cmds = new ArrayList<>(names.size());
+        for (final String name : names) {
+            final CommandMetadata cmd = commands.get(name);
+            if (cmd != null) {
+                cmds.add(cmd);
+            }
+        }
+        return cmds;
+    }
+
+    /**
+     * Return <code>true</code> if results of some indexed commands may be cached.
+     */
+    boolean hasCacheableCommands() {
+        return cacheableCommands != 0;
+    }
+
+    /**
+     * Add a command to this index. Listeners are only notified
+     * if command signatures are already resolved.
+     */
+    void register(CommandMetadata cmd) {
+        synchronized (listenerLock) {
+            final CommandMetadata previous = commands.put(cmd.name(), cmd);
+            if (previous != null && previous.cacheTtl() != 0) {
+                --cacheableCommands;
+            }
+            if (cmd.cacheTtl() != 0) {
+                ++cacheableCommands;
+            }
+            commandsByFunction.computeIfAbsent(cmd.function(),
+                    k -> new ConcurrentSkipListSet<>()).add(cmd.name());
+            if (cmd.isResolved()) {
+                for (final Listener listener : listeners) {
+                    listener.commandAdded(cmd);
+                }
+            }
+        }
+        fireChange();
+    }
+
+    /**
+     * Notify listeners that command signatures were resolved,
+     * unless this command was removed meanwhile.
+     */
+    private void resolved(CommandMetadata cmd) {
+        synchronized (listenerLock) {
+            if (cmd.isResolved() && commands.get(cmd.name()) == cmd) {
+                for (final Listener listener : listeners) {
+                    listener.commandAdded(cmd);
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove a command from this index.
+     */
+    void unregister(CommandMetadata cmd) {
+        synchronized (listenerLock) {
+            // Only remove this command if it was not replaced by another service.
+            if (!commands.remove(cmd.name(), cmd)) {
+                return;
+            }
+            if (cmd.cacheTtl() != 0) {
+                --cacheableCommands;
+            }
+            final NavigableSet<String> names = commandsByFunction.get(cmd.function());
+            if (names != null) {
+                names.remove(cmd.name());
+            }
+            for (final Listener listener : listeners) {
+                listener.commandRemoved(cmd);
+            }
+        }
+        fireChange();
+    }
+
+    /**
+     * Wait until a command is added to or removed from this index.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @throws InterruptedException if current thread is interrupted
+     */
+    void awaitChange(long timeout) throws InterruptedException {
+        if (timeout <= 0) {
+            return;
+        }
+        synchronized (changeMonitor) {
+            changeMonitor.wait(timeout);
+        }
+    }
+
+    private void fireChange() {
+        synchronized (changeMonitor) {
+            changeMonitor.notifyAll();
+        }
+    }
+
+    private void resolve(List<CommandMetadata> cmds) {
+        final BundleContext ctx = bundleContext;
+        if (ctx == null || cmds.isEmpty()) {
+            return;
+        }
+        final ServiceReference<?> ref = cmds.get(0).reference();
+        if (ref == null) {
+            // This command is not provided by a service.
+            return;
+        }
+        // All commands from the same service are resolved at once:
+        // use the same lock for a service, whatever commands are resolved.
+        // This lock is created when the service is tracked: no lock is available
+        // once the service is removed, and the command must not be resolved.
+        final Object lock = resolveLocks.get(ref);
+        if (lock == null) {
+            return;
+        }
+        synchronized (lock) {
+            boolean resolved = true;
+            for (final CommandMetadata cmd : cmds) {
+                resolved &= cmd.isResolved();
+            }
+            if (resolved) {
+                return;
+            }
+
+            final Object target;
+            try {
+                target = ctx.getService(ref);
+            } catch (IllegalStateException e) {
+                // Bundle context is no longer valid.
+                return;
+            }
+            if (target == null) {
+                return;
+            }
+            try {
+                for (final CommandMetadata cmd : cmds) {
+                    cmd.resolve(target.getClass());
+                }
+            } catch (Exception e) {
+                logService.log(LogService.LOG_WARNING,
+                        "Failed to index command: " + cmds.get(0).name(), e);
+            } finally {
+                try {
+                    ctx.ungetService(ref);
+                } catch (IllegalStateException ignore) {
+                }
+            }
+        }
+    }
+
+    private static String[] toStrings(Object value) {
+        if (value instanceof String[]) {
+            return (String[]) value;
+        }
+        if (value instanceof Collection) {
+            final Collection<?> c = (Collection<?>) value;
+            final String[] result = new String[c.size()];
+            int i = 0;
+            for (final Object o : c) {
+                result[i++] = String.valueOf(o);
+            }
+            return result;
+        }
+        return value == null ? new String[0] : new String[]{value.toString()};
+    }
+
+    private class CommandTracker implements ServiceTrackerCustomizer<Object, List<CommandMetadata>> {
+        @Override
+        public List<CommandMetadata> addingService(ServiceReference<Object> reference) {
+            final Object scope = reference.getProperty(CommandProcessor.COMMAND_SCOPE);
+            final String[] functions = toStrings(reference.getProperty(CommandProcessor.COMMAND_FUNCTION));
+            final List<CommandMetadata> cmds = new ArrayList<>(functions.length);
+            resolveLocks.putIfAbsent(reference, new Object());
+            for (final String function : functions) {
+                final CommandMetadata cmd = new CommandMetadata(String.valueOf(scope), function, reference);
+                cmds.add(cmd);
+                register(cmd);
+            }
+
+            // Command signatures are extracted in a background thread:
+            // getting a service from a tracker callback may lead to
+            // circular component activations.
+            final ExecutorService exec = indexer;
+            if (exec != null) {
+                final List<CommandMetadata> pending = new ArrayList<>(cmds);
+                try {
+                    exec.execute(() -> {
+                        resolve(pending);
+                        for (final CommandMetadata cmd : pending) {
+                            resolved(cmd);
+                        }
+                    });
+                } catch (RejectedExecutionException ignore) {
+                    // Index is being deactivated.
+                }
+            }
+            return cmds;
+        }
+
+        @Override
+        public void modifiedService(ServiceReference<Object> reference, List<CommandMetadata> cmds) {
+            // Scope or functions may have changed: index this command again.
+            removedService(reference, cmds);
+            cmds.clear();
+            cmds.addAll(addingService(reference));
+        }
+
+        @Override
+        public void removedService(ServiceReference<Object> reference, List<CommandMetadata> cmds) {
+            for (final CommandMetadata cmd : cmds) {
+                unregister(cmd);
+            }
+            resolveLocks.remove(reference);
+        }
+    }
+}
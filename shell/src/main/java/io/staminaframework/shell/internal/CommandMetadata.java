@@ -0,0 +1,308 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.gogo.runtime.Reflective;
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Descriptor;
+import org.apache.felix.service.command.Parameter;
+import org.osgi.framework.ServiceReference;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.*;
+
+/**
+ * Metadata about a command: scope, function and signatures.
+ * Signatures are extracted once from the command target using reflection.
+ *
+ * @author Stamina Framework developers
+ */
+final class CommandMetadata {
+    private final String scope;
+    private final String function;
+    private final String name;
+    private final ServiceReference<?> reference;
+    private final long cacheTtl;
+    private final long timeout;
+    private volatile List<Signature> signatures;
+
+    CommandMetadata(final String scope, final String function, final ServiceReference<?> reference) {
+        this.scope = scope.toLowerCase();
+        this.function = function.toLowerCase();
+        this.name = this.scope + ":" + this.function;
+        this.reference = reference;
+        this.cacheTtl = reference == null ? 0 : Math.max(0, toLong(reference.getProperty(ResultCache.CACHE_TTL)));
+        if (reference == null) {
+            this.timeout = 0;
+        } else {
+            // A timeout set for this function overrides the timeout set for the service.
+            Object t = reference.getProperty(CommandWatchdog.COMMAND_TIMEOUT + "." + this.function);
+            if (t == null) {
+                t = reference.getProperty(CommandWatchdog.COMMAND_TIMEOUT);
+            }
+            this.timeout = Math.max(-1, toLong(t));
+        }
+    }
+
+    private static long toLong(Object value) {
+        if (value instanceof Number) {
+            return ((Number) value).longValue();
+        }
+        if (value != null) {
+            try {
+                return Long.parseLong(value.toString().trim());
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Get command scope.
+     */
+    public String scope() {
+        return scope;
+    }
+
+    /**
+     * Get command function.
+     */
+    public String function() {
+        return function;
+    }
+
+    /**
+     * Get command name, using the form <code>scope:function</code>.
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Get the service reference providing this command.
+     */
+    ServiceReference<?> reference() {
+        return reference;
+    }
+
+    /**
+     * Get time (in milliseconds) during which command results may be cached,
+     * or <code>0</code> if results must not be cached.
+     */
+    public long cacheTtl() {
+        return cacheTtl;
+    }
+
+    /**
+     * Get time (in milliseconds) after which this command is interrupted,
+     * <code>0</code> if no timeout is set for this command,
+     * or <code>-1</code> if this command must never be interrupted.
+     */
+    public long timeout() {
+        return timeout;
+    }
+
+    /**
+     * Return <code>true</code> if command signatures have been resolved.
+     */
+    boolean isResolved() {
+        return signatures != null;
+    }
+
+    /**
+     * Get command signatures, or an empty list if this command is not resolved yet.
+     */
+    public List<Signature> signatures() {
+        final List<Signature> s = signatures;
+        return s == null ? Collections.emptyList() : s;
+    }
+
+    void resolve(Class<?> targetClass) {
+        // Use the same method lookup as the Gogo runtime.
+        final Set<String> funcs = new HashSet<>(4);
+        funcs.add("is" + function);
+        funcs.add("get" + function);
+        funcs.add("set" + function);
+        if (Reflective.KEYWORDS.contains(function)) {
+            funcs.add("_" + function);
+        } else {
+            funcs.add(function);
+        }
+        final List<Signature> result = new ArrayList<>(2);
+        for (final Method method : targetClass.getMethods()) {
+            if (funcs.contains(method.getName().toLowerCase())) {
+                result.add(new Signature(method));
+            }
+        }
+        signatures = Collections.unmodifiableList(result);
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+
+    private static <T extends Annotation> T findAnnotation(Annotation[] anns,
+                                                           Class<T> clazz) {
+        for (int i = 0; (anns != null) && (i < anns.length); i++) {
+            if (clazz.isInstance(anns[i])) {
+                return clazz.cast(anns[i]);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Command signature, extracted from a command method.
+     */
+    static final class Signature {
+        private final String methodName;
+        private final String description;
+        private final SortedMap<String, Option> flags = new TreeMap<>();
+        private final SortedMap<String, Option> options = new TreeMap<>();
+        private final List<Argument> arguments = new ArrayList<>(2);
+
+        Signature(final Method m) {
+            methodName = m.getName();
+            final Descriptor d = m.getAnnotation(Descriptor.class);
+            description = d == null ? null : d.value();
+
+            final Class<?>[] paramTypes = m.getParameterTypes();
+            final Annotation[][] anns = m.getParameterAnnotations();
+            for (int paramIdx = 0; paramIdx < anns.length; paramIdx++) {
+                final Class<?> paramType = paramTypes[paramIdx];
+                if (paramType == CommandSession.class) {
+                    /* Do not bother the user with a CommandSession. */
+                    continue;
+                }
+                final Parameter p = findAnnotation(anns[paramIdx], Parameter.class);
+                final Descriptor pd = findAnnotation(anns[paramIdx], Descriptor.class);
+                if (p != null) {
+                    final Option opt = new Option(p.names(),
+                            pd == null ? null : pd.value(), p.absentValue() != null);
+                    if (p.presentValue().equals(Parameter.UNSPECIFIED)) {
+                        options.put(p.names()[0], opt);
+                    } else {
+                        flags.put(p.names()[0], opt);
+                    }
+                } else {
+                    arguments.add(new Argument(paramType.getSimpleName(),
+                            pd == null ? "" : pd.value()));
+                }
+            }
+        }
+
+        /**
+         * Get method name.
+         */
+        public String methodName() {
+            return methodName;
+        }
+
+        /**
+         * Get method description, or <code>null</code> if none.
+         */
+        public String description() {
+            return description;
+        }
+
+        /**
+         * Get flags, sorted by name.
+         */
+        public Collection<Option> flags() {
+            return flags.values();
+        }
+
+        /**
+         * Get options, sorted by name.
+         */
+        public Collection<Option> options() {
+            return options.values();
+        }
+
+        /**
+         * Get positional arguments.
+         */
+        public List<Argument> arguments() {
+            return arguments;
+        }
+    }
+
+    /**
+     * Command flag or option.
+     */
+    static final class Option {
+        private final String[] names;
+        private final String description;
+        private final boolean optional;
+
+        Option(final String[] names, final String description, final boolean optional) {
+            this.names = names;
+            this.description = description;
+            this.optional = optional;
+        }
+
+        /**
+         * Get all names for this option, including aliases.
+         */
+        public String[] names() {
+            return names;
+        }
+
+        /**
+         * Get option description, or <code>null</code> if none.
+         */
+        public String description() {
+            return description;
+        }
+
+        /**
+         * Return <code>true</code> if this option has an absent value.
+         */
+        public boolean isOptional() {
+            return optional;
+        }
+    }
+
+    /**
+     * Command positional argument.
+     */
+    static final class Argument {
+        private final String type;
+        private final String description;
+
+        Argument(final String type, final String description) {
+            this.type = type;
+            this.description = description;
+        }
+
+        /**
+         * Get argument type name.
+         */
+        public String type() {
+            return type;
+        }
+
+        /**
+         * Get argument description.
+         */
+        public String description() {
+            return description;
+        }
+    }
+}
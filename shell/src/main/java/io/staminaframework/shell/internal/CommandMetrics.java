@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Execution metrics for a single command.
+ * <p>
+ * Counters are striped, so that recording from several sessions
+ * does not contend on a single memory location. This class is thread-safe.
+ *
+ * @author Stamina Framework developers
+ */
+final class CommandMetrics {
+    private final String name;
+    private final LongAdder executions = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder totalTime = new LongAdder();
+    private final LongAccumulator maxTime = new LongAccumulator(Math::max, 0);
+    private final AtomicLongArray latencies = new AtomicLongArray(LatencyHistogram.BUCKETS);
+
+    CommandMetrics(final String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get command name.
+     */
+    public String name() {
+        return name;
+    }
+
+    /**
+     * Record a command execution.
+     *
+     * @param nanos  execution time, in nanoseconds
+     * @param failed <code>true</code> if the command failed
+     */
+    public void record(long nanos, boolean failed) {
+        final long value = Math.max(0, nanos);
+        executions.increment();
+        if (failed) {
+            errors.increment();
+        }
+        totalTime.add(value);
+        maxTime.accumulate(value);
+        latencies.incrementAndGet(LatencyHistogram.bucketIndex(value));
+    }
+
+    /**
+     * Get number of executions.
+     */
+    public long executions() {
+        return executions.sum();
+    }
+
+    /**
+     * Get number of failed executions.
+     */
+    public long errors() {
+        return errors.sum();
+    }
+
+    /**
+     * Get a snapshot of execution times.
+     */
+    public LatencyHistogram latencies() {
+        final long[] counts = new long[LatencyHistogram.BUCKETS];
+        for (int i = 0; i < counts.length; ++i) {
+            counts[i] = latencies.get(i);
+        }
+        return new LatencyHistogram(counts, totalTime.sum(), maxTime.get());
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+
+import java.util.*;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Full-text search over command descriptors.
+ * <p>
+ * An inverted index is built from command names, scopes, descriptions,
+ * option names and parameter descriptions. This index is updated as commands
+ * are added to or removed from the command index, so that searching never
+ * requires reflection nor getting a command service.
+ * <p>
+ * Each term is weighted according to where it was found (a term from a command name
+ * is more relevant than a term from a parameter description), and according
+ * to the number of commands using this term.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = CommandSearch.class)
+public class CommandSearch implements CommandIndex.Listener {
+    private static final float FUNCTION_WEIGHT = 10;
+    private static final float SCOPE_WEIGHT = 5;
+    private static final float DESCRIPTION_WEIGHT = 3;
+    private static final float OPTION_WEIGHT = 2;
+    private static final float PARAMETER_WEIGHT = 1;
+    /**
+     * Weight factor applied when a query term is only a prefix of an indexed term.
+     */
+    private static final float PREFIX_FACTOR = 0.5f;
+
+    @Reference
+    private CommandIndex commandIndex;
+    private final NavigableMap<String, Map<String, Float>> postings = new TreeMap<>();
+    private final Map<String, Document> documents = new HashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    @Activate
+    void activate() {
+        commandIndex.addListener(this);
+    }
+
+    @Deactivate
+    void deactivate() {
+        commandIndex.removeListener(this);
+        lock.writeLock().lock();
+        try {
+            postings.clear();
+            documents.clear();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void commandAdded(CommandMetadata command) {
+        final Map<String, Float> terms = new HashMap<>();
+        addTerms(command.function(), FUNCTION_WEIGHT, terms);
+        addTerms(command.scope(), SCOPE_WEIGHT, terms);
+        String description = null;
+        for (final CommandMetadata.Signature sig : command.signatures()) {
+            if (description == null) {
+                description = sig.description();
+            }
+            addTerms(sig.description(), DESCRIPTION_WEIGHT, terms);
+            for (final CommandMetadata.Option opt : sig.flags()) {
+                addOption(opt, terms);
+            }
+            for (final CommandMetadata.Option opt : sig.options()) {
+                addOption(opt, terms);
+            }
+            for (final CommandMetadata.Argument arg : sig.arguments()) {
+                addTerms(arg.description(), PARAMETER_WEIGHT, terms);
+            }
+        }
+
+        lock.writeLock().lock();
+        try {
+            removeDocument(command.name());
+            documents.put(command.name(), new Document(command, description, terms.keySet()));
+            for (final Map.Entry<String, Float> e : terms.entrySet()) {
+                postings.computeIfAbsent(e.getKey(), k -> new HashMap<>(4)).put(command.name(), e.getValue());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public void commandRemoved(CommandMetadata command) {
+        lock.writeLock().lock();
+        try {
+            final Document doc = documents.get(command.name());
+            // Only remove this command if it was not replaced by another service.
+            if (doc != null && doc.command == command) {
+                removeDocument(command.name());
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private void removeDocument(String name) {
+        final Document doc = documents.remove(name);
+        if (doc == null) {
+            return;
+        }
+        for (final String term : doc.terms) {
+            final Map<String, Float> p = postings.get(term);
+            if (p != null) {
+                p.remove(name);
+                if (p.isEmpty()) {
+                    postings.remove(term);
+                }
+            }
+        }
+    }
+
+    private static void addOption(CommandMetadata.Option opt, Map<String, Float> terms) {
+        for (final String name : opt.names()) {
+            // Option names are indexed as is, with and without dashes:
+            // single-letter options such as -c would be dropped by tokenize.
+            final Set<String> nameTerms = new HashSet<>(tokenize(name));
+            final String verbatim = name.toLowerCase();
+            nameTerms.add(verbatim);
+            final String stripped = stripDashes(verbatim);
+            if (!stripped.isEmpty()) {
+                nameTerms.add(stripped);
+            }
+            for (final String term : nameTerms) {
+                terms.merge(term, OPTION_WEIGHT, Float::sum);
+            }
+        }
+        addTerms(opt.description(), PARAMETER_WEIGHT, terms);
+    }
+
+    private static String stripDashes(String name) {
+        int i = 0;
+        while (i < name.length() && name.charAt(i) == '-') {
+            ++i;
+        }
+        return name.substring(i);
+    }
+
+    private static void addTerms(String text, float weight, Map<String, Float> terms) {
+        for (final String term : tokenize(text)) {
+            terms.merge(term, weight, Float::sum);
+        }
+    }
+
+    /**
+     * Split text into lower-case terms.
+     */
+    static List<String> tokenize(String text) {
+        if (text == null || text.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final List<String> terms = new ArrayList<>(8);
+        int start = -1;
+        for (int i = 0; i <= text.length(); ++i) {
+            final boolean letter = i < text.length() && Character.isLetterOrDigit(text.charAt(i));
+            if (letter && start < 0) {
+                start = i;
+            } else if (!letter && start >= 0) {
+                if (i - start > 1) {
+                    terms.add(text.substring(start, i).toLowerCase());
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * Split a query into lower-case terms.
+     * Words starting with a dash are kept as is, in order to match option names.
+     */
+    static Set<String> queryTerms(String query) {
+        final Set<String> terms = new LinkedHashSet<>();
+        if (query == null) {
+            return terms;
+        }
+        for (final String word : query.trim().split("\\s+")) {
+            if (word.length() > 1 && word.charAt(0) == '-') {
+                terms.add(word.toLowerCase());
+            }
+            terms.addAll(tokenize(word));
+        }
+        return terms;
+    }
+
+    /**
+     * Search commands.
+     *
+     * @param query      keywords to look for
+     * @param maxResults maximum number of results
+     * @return matching commands, most relevant first
+     */
+    public List<Hit> search(String query, int maxResults) {
+        final Set<String> queryTerms = queryTerms(query);
+        if (queryTerms.isEmpty() || maxResults <= 0) {
+            return Collections.emptyList();
+        }
+        final Map<String, Hit> hits = new HashMap<>();
+        lock.readLock().lock();
+        try {
+            final int nbDocs = Math.max(1, documents.size());
+            for (final String term : queryTerms) {
+                // Each command is counted once per query term, using its best matching term.
+                final Map<String, Float> termScores = new HashMap<>();
+                for (final Map.Entry<String, Map<String, Float>> e
+                        : postings.subMap(term, true, term + Character.MAX_VALUE, false).entrySet()) {
+                    final float factor = e.getKey().equals(term) ? 1 : PREFIX_FACTOR;
+                    final float idf = (float) Math.log(1 + (double) nbDocs / e.getValue().size());
+                    for (final Map.Entry<String, Float> p : e.getValue().entrySet()) {
+                        termScores.merge(p.getKey(), p.getValue() * idf * factor, Math::max);
+                    }
+                }
+                for (final Map.Entry<String, Float> e : termScores.entrySet()) {
+                    final Hit hit = hits.computeIfAbsent(e.getKey(), k -> {
+                        final Document doc = documents.get(k);
+                        return new Hit(doc.command, doc.description);
+                    });
+                    hit.score += e.getValue();
+                    ++hit.matchedTerms;
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        final List<Hit> results = new ArrayList<>(hits.values());
+        results.sort(null);
+        return results.size() > maxResults ? new ArrayList<>(results.subList(0, maxResults)) : results;
+    }
+
+    private static final class Document {
+        final CommandMetadata command;
+        final String description;
+        final Set<String> terms;
+
+        Document(final CommandMetadata command, final String description, final Set<String> terms) {
+            this.command = command;
+            this.description = description;
+            this.terms = terms;
+        }
+    }
+
+    /**
+     * Search result.
+     */
+    static final class Hit implements Comparable<Hit> {
+        private final CommandMetadata command;
+        private final String description;
+        private float score;
+        private int matchedTerms;
+
+        Hit(final CommandMetadata command, final String description) {
+            this.command = command;
+            this.description = description;
+        }
+
+        /**
+         * Get matching command.
+         */
+        public CommandMetadata command() {
+            return command;
+        }
+
+        /**
+         * Get command description, or <code>null</code> if none.
+         */
+        public String description() {
+            return description;
+        }
+
+        /**
+         * Get relevance score.
+         */
+        public float score() {
+            return score;
+        }
+
+        @Override
+        public int compareTo(Hit o) {
+            // Commands matching more query terms come first.
+            if (matchedTerms != o.matchedTerms) {
+                return matchedTerms > o.matchedTerms ? -1 : 1;
+            }
+            if (score != o.score) {
+                return score > o.score ? -1 : 1;
+            }
+            return command.name().compareTo(o.command.name());
+        }
+    }
+}
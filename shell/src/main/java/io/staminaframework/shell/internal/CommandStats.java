@@ -0,0 +1,278 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.log.LogService;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Command execution statistics.
+ * <p>
+ * Metrics are recorded for each command name, and published as a MBean.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = CommandStats.class)
+public class CommandStats implements CommandStatsMBean {
+    /**
+     * Maximum number of command names: other commands are recorded together.
+     */
+    private static final int MAX_COMMANDS = 1024;
+    private static final String OTHER_COMMANDS = "<other>";
+    private static final String EXPRESSION = "<expression>";
+    private static final String OBJECT_NAME = "io.staminaframework.shell:type=CommandStats";
+    private static final ThreadLocal<NameProbe> PROBES = ThreadLocal.withInitial(NameProbe::new);
+
+    @Reference
+    private LogService logService;
+    private final ConcurrentMap<String, CommandMetrics> metrics = new ConcurrentHashMap<>();
+    private ObjectName objectName;
+
+    @Activate
+    void activate() {
+        try {
+            final ObjectName name = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            objectName = name;
+        } catch (JMException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to register command statistics MBean", e);
+        }
+    }
+
+    @Deactivate
+    void deactivate() {
+        if (objectName != null) {
+            final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            try {
+                server.unregisterMBean(objectName);
+            } catch (JMException ignore) {
+            }
+            objectName = null;
+        }
+        metrics.clear();
+    }
+
+    /**
+     * Record a command execution.
+     *
+     * @param line   executed command-line
+     * @param nanos  execution time, in nanoseconds
+     * @param failed <code>true</code> if the command failed
+     */
+    public void record(CharSequence line, long nanos, boolean failed) {
+        // Look up metrics without allocating a command name.
+        final NameProbe probe = PROBES.get();
+        final CommandMetrics m = probe.set(line) ? metrics.get(probe) : metrics.get(EXPRESSION);
+        probe.clear();
+        if (m != null) {
+            m.record(nanos, failed);
+        } else {
+            getMetrics(commandName(line)).record(nanos, failed);
+        }
+    }
+
+    /**
+     * Get metrics for all executed commands.
+     */
+    public Collection<CommandMetrics> metrics() {
+        return metrics.values();
+    }
+
+    private CommandMetrics getMetrics(String name) {
+        final CommandMetrics m = metrics.get(name);
+        if (m != null) {
+            return m;
+        }
+        if (metrics.size() >= MAX_COMMANDS) {
+            return metrics.computeIfAbsent(OTHER_COMMANDS, CommandMetrics::new);
+        }
+        return metrics.computeIfAbsent(name, CommandMetrics::new);
+    }
+
+    /**
+     * Get the name of the command used in a command-line.
+     */
+    static String commandName(CharSequence line) {
+        final int start = nameStart(line);
+        if (start < 0) {
+            return EXPRESSION;
+        }
+        final int end = nameEnd(line, start);
+        final StringBuilder buf = new StringBuilder(end - start);
+        for (int i = start; i < end; ++i) {
+            buf.append(Character.toLowerCase(line.charAt(i)));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Get the index of the command name in a command-line.
+     *
+     * @return index, or <code>-1</code> if this command-line is an expression
+     */
+    private static int nameStart(CharSequence line) {
+        final int len = line.length();
+        int start = 0;
+        while (start < len && Character.isWhitespace(line.charAt(start))) {
+            ++start;
+        }
+        if (start == len || !Character.isJavaIdentifierStart(line.charAt(start))) {
+            return -1;
+        }
+        return start;
+    }
+
+    private static int nameEnd(CharSequence line, int start) {
+        int end = start + 1;
+        while (end < line.length()) {
+            final char c = line.charAt(end);
+            if (Character.isWhitespace(c) || c == '|' || c == ';') {
+                break;
+            }
+            ++end;
+        }
+        return end;
+    }
+
+    /**
+     * Key matching a command name in a command-line, ignoring case.
+     * Its hash code is the hash code of the lower-case command name,
+     * so that metrics may be looked up without creating a string.
+     */
+    private static final class NameProbe {
+        private CharSequence line;
+        private int start;
+        private int end;
+        private int hash;
+
+        boolean set(CharSequence line) {
+            final int s = nameStart(line);
+            if (s < 0) {
+                return false;
+            }
+            this.line = line;
+            this.start = s;
+            this.end = nameEnd(line, s);
+            int h = 0;
+            for (int i = start; i < end; ++i) {
+                h = 31 * h + Character.toLowerCase(line.charAt(i));
+            }
+            hash = h;
+            return true;
+        }
+
+        void clear() {
+            line = null;
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof String)) {
+                return false;
+            }
+            final String name = (String) obj;
+            if (name.length() != end - start) {
+                return false;
+            }
+            for (int i = 0; i < name.length(); ++i) {
+                if (name.charAt(i) != Character.toLowerCase(line.charAt(start + i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    @Override
+    public long getExecutions() {
+        long n = 0;
+        for (final CommandMetrics m : metrics.values()) {
+            n += m.executions();
+        }
+        return n;
+    }
+
+    @Override
+    public long getErrors() {
+        long n = 0;
+        for (final CommandMetrics m : metrics.values()) {
+            n += m.errors();
+        }
+        return n;
+    }
+
+    @Override
+    public String[] getCommands() {
+        return metrics.keySet().toArray(new String[0]);
+    }
+
+    @Override
+    public long getExecutions(String command) {
+        final CommandMetrics m = metrics.get(command);
+        return m == null ? 0 : m.executions();
+    }
+
+    @Override
+    public long getErrors(String command) {
+        final CommandMetrics m = metrics.get(command);
+        return m == null ? 0 : m.errors();
+    }
+
+    @Override
+    public double getMeanLatency(String command) {
+        final CommandMetrics m = metrics.get(command);
+        return m == null ? 0 : toMillis(m.latencies().mean());
+    }
+
+    @Override
+    public double getLatencyPercentile(String command, double percentile) {
+        final CommandMetrics m = metrics.get(command);
+        return m == null ? 0 : toMillis(m.latencies().percentile(percentile));
+    }
+
+    @Override
+    public double getMaxLatency(String command) {
+        final CommandMetrics m = metrics.get(command);
+        return m == null ? 0 : toMillis(m.latencies().max());
+    }
+
+    @Override
+    public void reset() {
+        metrics.clear();
+    }
+
+    static double toMillis(long nanos) {
+        return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+    }
+}
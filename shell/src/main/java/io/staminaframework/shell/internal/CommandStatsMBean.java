@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+/**
+ * Management interface for command statistics.
+ * Latencies are expressed in milliseconds.
+ *
+ * @author Stamina Framework developers
+ */
+public interface CommandStatsMBean {
+    /**
+     * Get number of command executions.
+     */
+    long getExecutions();
+
+    /**
+     * Get number of failed command executions.
+     */
+    long getErrors();
+
+    /**
+     * Get names of executed commands.
+     */
+    String[] getCommands();
+
+    /**
+     * Get number of executions for a command.
+     */
+    long getExecutions(String command);
+
+    /**
+     * Get number of failed executions for a command.
+     */
+    long getErrors(String command);
+
+    /**
+     * Get mean latency for a command.
+     */
+    double getMeanLatency(String command);
+
+    /**
+     * Get a latency percentile for a command.
+     */
+    double getLatencyPercentile(String command, double percentile);
+
+    /**
+     * Get maximum latency for a command.
+     */
+    double getMaxLatency(String command);
+
+    /**
+     * Clear statistics.
+     */
+    void reset();
+}
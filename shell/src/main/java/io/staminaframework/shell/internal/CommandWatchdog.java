@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Job;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.log.LogService;
+
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watchdog enforcing command timeouts.
+ * <p>
+ * A single thread watches all running commands. When a command times out,
+ * its foreground job is interrupted. If the command is still running after
+ * a grace period, the thread executing the command is interrupted.
+ * If the command is still running after another grace period,
+ * the stack trace of this thread is logged, the command is abandoned
+ * and it is no longer watched.
+ * <p>
+ * A command timeout is read from session variable {@link #TIMEOUT_VARIABLE},
+ * from command service property {@link #COMMAND_TIMEOUT}, or a default timeout is used.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = CommandWatchdog.class, configurationPid = "io.staminaframework.shell")
+public class CommandWatchdog {
+    /**
+     * Command service property: time (in milliseconds) after which the command is interrupted.
+     * A timeout may be set for a single function with property <code>shell.timeout.&lt;function&gt;</code>.
+     * Set to a negative value to disable timeouts.
+     */
+    public static final String COMMAND_TIMEOUT = "shell.timeout";
+    /**
+     * Session variable holding the time (in milliseconds) after which commands are interrupted.
+     */
+    static final String TIMEOUT_VARIABLE = "TIMEOUT";
+
+    @interface Config {
+        /**
+         * Get time (in milliseconds) to wait for a timed out command to stop,
+         * before interrupting its thread.
+         */
+        long timeoutGracePeriod() default 5000;
+    }
+
+    private static final Watch NO_WATCH = new Watch(null, null, null, 0, null, null);
+
+    @Reference
+    private CommandIndex commandIndex;
+    @Reference
+    private LogService logService;
+    private final DelayQueue<Watch> watches = new DelayQueue<>();
+    private long gracePeriod;
+    private Thread watchdogThread;
+
+    @Activate
+    void activate(Config config) {
+        gracePeriod = TimeUnit.MILLISECONDS.toNanos(Math.max(1, config.timeoutGracePeriod()));
+        watchdogThread = new Thread(this::watch, "Stamina Shell Watchdog");
+        watchdogThread.setDaemon(true);
+        watchdogThread.start();
+    }
+
+    @Deactivate
+    void deactivate() {
+        watchdogThread.interrupt();
+        try {
+            watchdogThread.join(4000);
+        } catch (InterruptedException ignore) {
+        }
+        watchdogThread = null;
+        watches.clear();
+    }
+
+    /**
+     * Get the timeout of a command-line.
+     *
+     * @param defaultTimeout timeout used if none is set for this command-line
+     * @return timeout (in milliseconds), or <code>0</code> if there is no timeout
+     */
+    public long timeout(CommandSession session, String line, long defaultTimeout) {
+        final Object value = session.get(TIMEOUT_VARIABLE);
+        if (value instanceof Number) {
+            return Math.max(0, ((Number) value).longValue());
+        } else if (value != null) {
+            try {
+                return Math.max(0, Long.parseLong(value.toString().trim()));
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        final String trimmed = line.trim();
+        final int i = trimmed.indexOf(' ');
+        final CommandMetadata cmd = commandIndex.lookup(i < 0 ? trimmed : trimmed.substring(0, i));
+        if (cmd != null && cmd.timeout() != 0) {
+            return Math.max(0, cmd.timeout());
+        }
+        return Math.max(0, defaultTimeout);
+    }
+
+    /**
+     * Start watching a command executed by the current thread.
+     * The returned watch must be closed once the command is done.
+     *
+     * @param timeout timeout (in milliseconds), or <code>0</code> if there is no timeout
+     */
+    public Watch watch(CommandSession session, String line, long timeout) {
+        return watch(session, line, timeout, null);
+    }
+
+    /**
+     * Start watching a command executed by the current thread.
+     * The returned watch must be closed once the command is done.
+     *
+     * @param timeout       timeout (in milliseconds), or <code>0</code> if there is no timeout
+     * @param abandonAction action run by the watchdog thread when the command is abandoned,
+     *                      or <code>null</code>
+     */
+    public Watch watch(CommandSession session, String line, long timeout, Runnable abandonAction) {
+        if (timeout <= 0) {
+            return NO_WATCH;
+        }
+        final Watch w = new Watch(session, line, Thread.currentThread(),
+                System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout), watches, abandonAction);
+        watches.add(w);
+        return w;
+    }
+
+    private void watch() {
+        try {
+            while (!Thread.currentThread().isInterrupted()) {
+                final Watch w = watches.take();
+                if (!escalate(w) && w.abandonAction != null) {
+                    try {
+                        w.abandonAction.run();
+                    } catch (Exception e) {
+                        logService.log(LogService.LOG_WARNING, "Failed to abandon command: " + w.line, e);
+                    }
+                }
+            }
+        } catch (InterruptedException ignore) {
+        }
+    }
+
+    /**
+     * Take action on a command which timed out.
+     * This command is watched again if it has not been abandoned.
+     *
+     * @return <code>false</code> if this command was abandoned
+     */
+    private boolean escalate(Watch w) {
+        synchronized (w) {
+            if (w.closed) {
+                return true;
+            }
+            switch (w.stage++) {
+                case 0:
+                    w.timedOut = true;
+                    logService.log(LogService.LOG_WARNING, "Command timed out: " + w.line);
+                    final Job job = w.session.foregroundJob();
+                    if (job != null) {
+                        job.interrupt();
+                    } else {
+                        w.thread.interrupt();
+                    }
+                    break;
+                case 1:
+                    logService.log(LogService.LOG_WARNING,
+                            "Command ignored interruption: interrupting thread " + w.thread.getName());
+                    w.thread.interrupt();
+                    break;
+                default:
+                    final StringBuilder buf = new StringBuilder(512);
+                    buf.append("Command is still running after timeout: ").append(w.line)
+                            .append("\nThread ").append(w.thread.getName()).append(':');
+                    for (final StackTraceElement e : w.thread.getStackTrace()) {
+                        buf.append("\n\tat ").append(e);
+                    }
+                    logService.log(LogService.LOG_ERROR, buf.toString());
+                    return false;
+            }
+            w.deadline += gracePeriod;
+            // This watch is added again while it is locked, so that it cannot be closed meanwhile.
+            watches.add(w);
+            return true;
+        }
+    }
+
+    /**
+     * Command watched for a timeout.
+     */
+    public static final class Watch implements Delayed, AutoCloseable {
+        private final CommandSession session;
+        private final String line;
+        private final Thread thread;
+        private final DelayQueue<Watch> queue;
+        private final Runnable abandonAction;
+        private volatile long deadline;
+        private int stage;
+        private boolean closed;
+        private volatile boolean timedOut;
+
+        Watch(final CommandSession session, final String line, final Thread thread, final long deadline,
+              final DelayQueue<Watch> queue, final Runnable abandonAction) {
+            this.session = session;
+            this.line = line;
+            this.thread = thread;
+            this.deadline = deadline;
+            this.queue = queue;
+            this.abandonAction = abandonAction;
+        }
+
+        /**
+         * Return <code>true</code> if the command timed out.
+         */
+        public boolean isTimedOut() {
+            return timedOut;
+        }
+
+        /**
+         * Stop watching the command.
+         * Once this method returns, the watchdog no longer interrupts the command thread.
+         */
+        @Override
+        public void close() {
+            synchronized (this) {
+                closed = true;
+            }
+            if (queue != null) {
+                queue.remove(this);
+            }
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed o) {
+            final long d = deadline - ((Watch) o).deadline;
+            return d < 0 ? -1 : d > 0 ? 1 : 0;
+        }
+    }
+}
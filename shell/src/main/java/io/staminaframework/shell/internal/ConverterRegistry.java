@@ -0,0 +1,332 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Converter;
+import org.osgi.framework.Constants;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
+import org.osgi.service.component.annotations.ReferenceCardinality;
+import org.osgi.service.component.annotations.ReferencePolicy;
+import org.osgi.service.log.LogService;
+
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Registry of {@link Converter} services, used to format command results.
+ * <p>
+ * For each runtime class, the list of converters supporting this class
+ * (according to property {@link Converter#CONVERTER_CLASSES}) is computed once,
+ * and cached until a converter is added or removed. Chains are attached to classes
+ * using a {@link ClassValue}, which does not prevent classes from being unloaded:
+ * a new {@link ClassValue} is used when converters are changed.
+ * Converters are sorted by service ranking, then by class hierarchy distance.
+ * <p>
+ * Arrays, collections and maps are formatted by this registry when no converter
+ * formats them, so that nested objects are formatted with converters as well.
+ * Objects whose class has no registered converter are formatted by the command session.
+ * Converter failures are logged once for each converter and class.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = ConverterRegistry.class)
+public class ConverterRegistry {
+    private static final Chain NO_CONVERTERS = new Chain(new Converter[0], false);
+
+    @Reference
+    private LogService logService;
+    private final List<Entry> entries = new CopyOnWriteArrayList<>();
+    private volatile ClassValue<Chain> chains = newChains();
+
+    @Reference(cardinality = ReferenceCardinality.MULTIPLE, policy = ReferencePolicy.DYNAMIC)
+    void addConverter(Converter converter, Map<String, Object> props) {
+        entries.add(new Entry(converter, props));
+        chains = newChains();
+    }
+
+    void updatedConverter(Converter converter, Map<String, Object> props) {
+        removeConverter(converter);
+        addConverter(converter, props);
+    }
+
+    void removeConverter(Converter converter) {
+        entries.removeIf(e -> e.converter == converter);
+        chains = newChains();
+    }
+
+    /**
+     * Format an object, using converters or the command session.
+     */
+    public CharSequence format(CommandSession session, Object target, int level) {
+        if (target == null || target instanceof CharSequence) {
+            return session.format(target, level);
+        }
+        final Chain chain = getChain(target.getClass());
+        final Converter[] converters = chain.converters;
+        if (converters.length != 0) {
+            final Converter escape = new Escape(session);
+            for (int i = 0; i < converters.length; ++i) {
+                try {
+                    final CharSequence s = converters[i].format(target, level, escape);
+                    if (s != null) {
+                        return s;
+                    }
+                } catch (Exception e) {
+                    if (!chain.failureLogged[i]) {
+                        // Benign race: a failure may be logged more than once.
+                        chain.failureLogged[i] = true;
+                        logService.log(LogService.LOG_WARNING, "Converter " + converters[i].getClass().getName()
+                                + " failed to format an instance of " + target.getClass().getName(), e);
+                    }
+                }
+            }
+        }
+        final CharSequence s = formatContainer(session, target, level);
+        if (s != null) {
+            return s;
+        }
+        if (chain.specific) {
+            // Converters registered for this class declined: the command session would try them again.
+            return target.toString();
+        }
+        return session.format(target, level);
+    }
+
+    /**
+     * Format an array, a collection or a map, formatting nested objects with this registry,
+     * the same way a command session does.
+     *
+     * @return formatted object, or <code>null</code> if this object is not a container
+     */
+    private CharSequence formatContainer(CommandSession session, Object target, int level) {
+        if (level == Converter.PART) {
+            return null;
+        }
+        final Collection<?> elements;
+        if (target instanceof Object[]) {
+            elements = Arrays.asList((Object[]) target);
+        } else if (target instanceof Collection) {
+            elements = (Collection<?>) target;
+        } else if (target instanceof Map) {
+            elements = ((Map<?, ?>) target).entrySet();
+        } else {
+            return null;
+        }
+        final StringBuilder buf = new StringBuilder(64);
+        if (level == Converter.INSPECT) {
+            for (final Object e : elements) {
+                if (e instanceof Map.Entry && target instanceof Map) {
+                    final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) e;
+                    final CharSequence key = format(session, entry.getKey(), Converter.LINE);
+                    buf.append(key);
+                    for (int i = key.length(); i < 20; ++i) {
+                        buf.append(' ');
+                    }
+                    buf.append(format(session, entry.getValue(), Converter.LINE));
+                } else {
+                    buf.append(format(session, e, Converter.LINE));
+                }
+                buf.append('\n');
+            }
+        } else {
+            buf.append('[');
+            for (final Object e : elements) {
+                if (buf.length() > 1) {
+                    buf.append(", ");
+                }
+                if (e instanceof Map.Entry && target instanceof Map) {
+                    final Map.Entry<?, ?> entry = (Map.Entry<?, ?>) e;
+                    buf.append(format(session, entry.getKey(), Converter.PART)).append('=')
+                            .append(format(session, entry.getValue(), Converter.PART));
+                } else {
+                    buf.append(format(session, e, Converter.PART));
+                }
+            }
+            buf.append(']');
+        }
+        return buf;
+    }
+
+    /**
+     * Get the session used by a converter to format nested objects.
+     *
+     * @return command session, or <code>null</code> if none is available
+     */
+    static CommandSession sessionOf(Converter escape) {
+        if (escape instanceof CommandSession) {
+            return (CommandSession) escape;
+        }
+        if (escape instanceof Escape) {
+            return ((Escape) escape).session;
+        }
+        return null;
+    }
+
+    Chain getChain(Class<?> clazz) {
+        return chains.get(clazz);
+    }
+
+    private ClassValue<Chain> newChains() {
+        // Chains computed while converters are changed are cached in a discarded instance.
+        return new ClassValue<Chain>() {
+            @Override
+            protected Chain computeValue(Class<?> type) {
+                return computeChain(type);
+            }
+        };
+    }
+
+    private Chain computeChain(Class<?> clazz) {
+        final Map<String, Integer> distances = new HashMap<>();
+        collectTypes(clazz, 0, distances);
+        if (clazz.isArray() && !clazz.getComponentType().isPrimitive()) {
+            distances.putIfAbsent(Object[].class.getName(), 1);
+        }
+
+        final List<Match> matches = new ArrayList<>(4);
+        boolean specific = false;
+        for (final Entry e : entries) {
+            int distance = Integer.MAX_VALUE;
+            if (e.classes.length == 0) {
+                // This converter may handle any class.
+                distance = Integer.MAX_VALUE - 1;
+            } else {
+                for (final String c : e.classes) {
+                    final Integer d = distances.get(c);
+                    if (d != null && d < distance) {
+                        distance = d;
+                    }
+                }
+            }
+            if (distance != Integer.MAX_VALUE) {
+                matches.add(new Match(e, distance));
+                specific |= e.classes.length != 0;
+            }
+        }
+        if (matches.isEmpty()) {
+            return NO_CONVERTERS;
+        }
+        matches.sort(null);
+        final Converter[] converters = new Converter[matches.size()];
+        for (int i = 0; i < converters.length; ++i) {
+            converters[i] = matches.get(i).entry.converter;
+        }
+        return new Chain(converters, specific);
+    }
+
+    private static void collectTypes(Class<?> clazz, int distance, Map<String, Integer> distances) {
+        if (clazz == null) {
+            return;
+        }
+        final Integer d = distances.get(clazz.getName());
+        if (d != null && d <= distance) {
+            return;
+        }
+        distances.put(clazz.getName(), distance);
+        collectTypes(clazz.getSuperclass(), distance + 1, distances);
+        for (final Class<?> i : clazz.getInterfaces()) {
+            collectTypes(i, distance + 1, distances);
+        }
+    }
+
+    /**
+     * Converter used by converters to format nested objects.
+     */
+    private final class Escape implements Converter {
+        private final CommandSession session;
+
+        Escape(final CommandSession session) {
+            this.session = session;
+        }
+
+        @Override
+        public Object convert(Class<?> desiredType, Object in) throws Exception {
+            return session.convert(desiredType, in);
+        }
+
+        @Override
+        public CharSequence format(Object target, int level, Converter escape) {
+            return ConverterRegistry.this.format(session, target, level);
+        }
+    }
+
+    /**
+     * Converters supporting a class, sorted by priority.
+     */
+    static final class Chain {
+        final Converter[] converters;
+        /**
+         * Set if a converter is registered for this class, not only for any class.
+         */
+        final boolean specific;
+        final boolean[] failureLogged;
+
+        Chain(final Converter[] converters, final boolean specific) {
+            this.converters = converters;
+            this.specific = specific;
+            this.failureLogged = new boolean[converters.length];
+        }
+    }
+
+    private static final class Entry {
+        final Converter converter;
+        final String[] classes;
+        final int ranking;
+        final long serviceId;
+
+        Entry(final Converter converter, final Map<String, Object> props) {
+            this.converter = converter;
+            final Object c = props.get(Converter.CONVERTER_CLASSES);
+            if (c instanceof String[]) {
+                classes = (String[]) c;
+            } else if (c instanceof Collection) {
+                classes = ((Collection<?>) c).stream().map(String::valueOf).toArray(String[]::new);
+            } else if (c != null) {
+                classes = new String[]{c.toString()};
+            } else {
+                classes = new String[0];
+            }
+            final Object r = props.get(Constants.SERVICE_RANKING);
+            ranking = r instanceof Integer ? (Integer) r : 0;
+            final Object id = props.get(Constants.SERVICE_ID);
+            serviceId = id instanceof Long ? (Long) id : 0;
+        }
+    }
+
+    private static final class Match implements Comparable<Match> {
+        final Entry entry;
+        final int distance;
+
+        Match(final Entry entry, final int distance) {
+            this.entry = entry;
+            this.distance = distance;
+        }
+
+        @Override
+        public int compareTo(Match o) {
+            if (entry.ranking != o.entry.ranking) {
+                return entry.ranking > o.entry.ranking ? -1 : 1;
+            }
+            if (distance != o.distance) {
+                return distance < o.distance ? -1 : 1;
+            }
+            return Long.compare(entry.serviceId, o.entry.serviceId);
+        }
+    }
+}
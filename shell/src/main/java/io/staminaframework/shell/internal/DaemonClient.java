@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Thin client sending a command-line to a running {@link CommandDaemon}.
+ * <p>
+ * This class only depends on the JDK, so that it can be started without
+ * loading the OSGi framework:
+ * <pre>
+ * java -cp shell.jar io.staminaframework.shell.internal.DaemonClient \
+ *     --config data/daemon.properties lb
+ * </pre>
+ * A single argument is sent as a command-line. When several arguments are given,
+ * arguments holding blanks or special characters are quoted, so that each argument
+ * is received as a single word:
+ * <pre>
+ * DaemonClient --config data/daemon.properties "lb | grep shell"
+ * DaemonClient --config data/daemon.properties echo "Hello world"
+ * </pre>
+ * The command output is written to the standard output (or to the standard error
+ * if the command failed), and the process exit code is the command exit code.
+ *
+ * @author Stamina Framework developers
+ */
+public final class DaemonClient {
+    private static final int CONNECT_TIMEOUT = 5000;
+    /**
+     * Characters requiring an argument to be quoted.
+     */
+    private static final String SPECIAL_CHARS = "|;&$=(){}[]<>`\\#'\"";
+
+    private DaemonClient() {
+    }
+
+    public static void main(String[] args) {
+        String host = "127.0.0.1";
+        int port = 2020;
+        String token = "";
+        final List<String> words = new ArrayList<>();
+        try {
+            for (int i = 0; i < args.length; ++i) {
+                final String arg = args[i];
+                // No short option for host: -h would be mistaken for help.
+                if (words.isEmpty() && "--host".equals(arg)) {
+                    host = requireValue(args, ++i, arg);
+                } else if (words.isEmpty() && ("--port".equals(arg) || "-p".equals(arg))) {
+                    port = Integer.parseInt(requireValue(args, ++i, arg));
+                } else if (words.isEmpty() && ("--token".equals(arg) || "-t".equals(arg))) {
+                    token = requireValue(args, ++i, arg);
+                } else if (words.isEmpty() && ("--config".equals(arg) || "-c".equals(arg))) {
+                    final Properties props = new Properties();
+                    try (final Reader in = Files.newBufferedReader(
+                            Paths.get(requireValue(args, ++i, arg)), StandardCharsets.UTF_8)) {
+                        props.load(in);
+                    }
+                    port = Integer.parseInt(props.getProperty("port", String.valueOf(port)).trim());
+                    token = props.getProperty("token", token).trim();
+                } else {
+                    words.add(arg);
+                }
+            }
+        } catch (IllegalArgumentException | IOException e) {
+            System.err.println("Invalid arguments: " + e.getMessage());
+            usage();
+            System.exit(2);
+            return;
+        }
+        if (words.isEmpty()) {
+            usage();
+            System.exit(2);
+            return;
+        }
+
+        final String line = commandLine(words);
+
+        int exitCode;
+        try (final Socket socket = new Socket()) {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+            final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            DaemonProtocol.writeRequest(out, token, line);
+
+            if (in.readInt() != DaemonProtocol.MAGIC) {
+                throw new IOException("Invalid response from daemon");
+            }
+            final byte status = in.readByte();
+            in.readByte(); // Format level is not used by this client.
+            exitCode = in.readInt();
+            final String payload = DaemonProtocol.readString(in, DaemonProtocol.MAX_RESPONSE_LENGTH);
+            final PrintStream target = status == DaemonProtocol.STATUS_OK ? System.out : System.err;
+            target.print(payload);
+            target.flush();
+        } catch (IOException e) {
+            System.err.println("Failed to send command to daemon at " + host + ":" + port + ": " + e.getMessage());
+            exitCode = 2;
+        }
+        System.exit(exitCode);
+    }
+
+    /**
+     * Build a command-line from arguments.
+     */
+    static String commandLine(List<String> words) {
+        if (words.size() == 1) {
+            return words.get(0);
+        }
+        final StringBuilder line = new StringBuilder(64);
+        for (final String word : words) {
+            if (line.length() != 0) {
+                line.append(' ');
+            }
+            line.append(quote(word));
+        }
+        return line.toString();
+    }
+
+    static String quote(String word) {
+        boolean special = word.isEmpty();
+        for (int i = 0; i < word.length() && !special; ++i) {
+            final char c = word.charAt(i);
+            special = Character.isWhitespace(c) || SPECIAL_CHARS.indexOf(c) >= 0;
+        }
+        if (!special) {
+            return word;
+        }
+        if (word.indexOf('\'') < 0) {
+            // Nothing is expanded between single quotes.
+            return "'" + word + "'";
+        }
+        final StringBuilder buf = new StringBuilder(word.length() + 8).append('"');
+        for (int i = 0; i < word.length(); ++i) {
+            final char c = word.charAt(i);
+            if (c == '"' || c == '\\' || c == '$') {
+                buf.append('\\');
+            }
+            buf.append(c);
+        }
+        return buf.append('"').toString();
+    }
+
+    private static String requireValue(String[] args, int index, String option) {
+        if (index >= args.length) {
+            throw new IllegalArgumentException("Missing value for option " + option);
+        }
+        return args[index];
+    }
+
+    private static void usage() {
+        System.err.println("Usage: DaemonClient [--host HOST] [--port PORT] [--token TOKEN] "
+                + "[--config FILE] COMMAND-LINE | COMMAND [ARGS...]");
+    }
+}
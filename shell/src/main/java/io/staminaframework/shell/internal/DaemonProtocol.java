@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Framed protocol used by the command daemon.
+ * <p>
+ * A request is made of: magic number, token, command-line.
+ * A response is made of: magic number, status, format level, exit code, payload.
+ * Strings are sent as a length (4 bytes) followed by UTF-8 bytes.
+ * Frame lengths are bounded: a peer sending a longer frame is disconnected,
+ * and response payloads longer than {@link #MAX_RESPONSE_LENGTH} are truncated.
+ *
+ * @author Stamina Framework developers
+ */
+final class DaemonProtocol {
+    /**
+     * Magic number starting each frame: "STM1".
+     */
+    static final int MAGIC = 0x53544d31;
+    /**
+     * Status: command executed.
+     */
+    static final byte STATUS_OK = 0;
+    /**
+     * Status: command failed.
+     */
+    static final byte STATUS_ERROR = 1;
+    /**
+     * Status: request rejected (invalid token or frame).
+     */
+    static final byte STATUS_REJECTED = 2;
+    /**
+     * Level used when there is no formatted result.
+     */
+    static final byte LEVEL_NONE = -1;
+    /**
+     * Maximum length of a request string, in bytes.
+     */
+    static final int MAX_REQUEST_LENGTH = 65536;
+    /**
+     * Maximum length of a response payload, in bytes.
+     */
+    static final int MAX_RESPONSE_LENGTH = 16 * 1024 * 1024;
+    private static final byte[] TRUNCATED = "\n[Output truncated]\n".getBytes(StandardCharsets.UTF_8);
+
+    /**
+     * Exception raised when a frame is longer than allowed.
+     * The connection must be closed, since the frame is not read.
+     */
+    static final class FrameTooLongException extends IOException {
+        FrameTooLongException(final String message) {
+            super(message);
+        }
+    }
+
+    private DaemonProtocol() {
+    }
+
+    static void writeString(DataOutputStream out, String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * Write a string, truncated to a maximum length.
+     */
+    static void writeString(DataOutputStream out, String s, int maxLength) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length <= maxLength) {
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            return;
+        }
+        int len = Math.max(0, maxLength - TRUNCATED.length);
+        // Do not split a multi-byte character.
+        while (len > 0 && (bytes[len] & 0xc0) == 0x80) {
+            --len;
+        }
+        out.writeInt(len + TRUNCATED.length);
+        out.write(bytes, 0, len);
+        out.write(TRUNCATED);
+    }
+
+    /**
+     * Read a string.
+     *
+     * @throws FrameTooLongException if this string is longer than <code>maxLength</code> bytes
+     */
+    static String readString(DataInputStream in, int maxLength) throws IOException {
+        final int len = in.readInt();
+        if (len < 0) {
+            throw new IOException("Invalid frame length: " + len);
+        }
+        if (len > maxLength) {
+            throw new FrameTooLongException("Frame is too long: " + len + " bytes (maximum is " + maxLength + ")");
+        }
+        final byte[] bytes = new byte[len];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    static void writeRequest(DataOutputStream out, String token, String line) throws IOException {
+        out.writeInt(MAGIC);
+        writeString(out, token);
+        writeString(out, line);
+        out.flush();
+    }
+
+    static void writeResponse(DataOutputStream out, byte status, byte level,
+                              int exitCode, String payload) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeByte(status);
+        out.writeByte(level);
+        out.writeInt(exitCode);
+        writeString(out, payload, MAX_RESPONSE_LENGTH);
+        out.flush();
+    }
+}
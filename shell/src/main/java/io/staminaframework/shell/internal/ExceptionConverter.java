@@ -17,19 +17,44 @@
 package io.staminaframework.shell.internal;
 
 import org.apache.felix.service.command.Converter;
+import org.osgi.service.component.annotations.Activate;
 import org.osgi.service.component.annotations.Component;
 
-import java.io.ByteArrayOutputStream;
-import java.io.PrintStream;
-
 /**
  * {@link Converter} implementation used when an {@link Exception}
  * is raised by a command.
  */
 @Component(
         service = Converter.class,
+        configurationPid = "io.staminaframework.shell",
         property = Converter.CONVERTER_CLASSES + "=java.lang.Exception")
 public class ExceptionConverter implements Converter {
+    @interface Config {
+        /**
+         * Get maximum number of stack frames displayed for each exception.
+         * Set to <code>0</code> to display all frames.
+         */
+        int maxStackFrames() default 50;
+
+        /**
+         * Get packages whose stack frames are hidden.
+         */
+        String[] filteredStackPackages() default {};
+
+        /**
+         * Get maximum number of cached stack traces.
+         */
+        int stackTraceCacheSize() default 128;
+    }
+
+    private StackTraceFormatter stackTraceFormatter;
+
+    @Activate
+    void activate(Config config) {
+        stackTraceFormatter = new StackTraceFormatter(
+                config.maxStackFrames(), config.filteredStackPackages(), config.stackTraceCacheSize());
+    }
+
     @Override
     public Object convert(Class<?> desiredType, Object in) throws Exception {
         return null;
@@ -40,9 +65,7 @@ public class ExceptionConverter implements Converter {
         if (target instanceof Exception) {
             final Exception e = (Exception) target;
             if (level == INSPECT) {
-                final ByteArrayOutputStream buf = new ByteArrayOutputStream(512);
-                e.printStackTrace(new PrintStream(buf, true));
-                return buf.toString();
+                return stackTraceFormatter.format(e);
             } else if (level == LINE) {
                 return e.toString();
             } else if (level == PART) {
@@ -0,0 +1,282 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.jline.reader.History;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Persistent command history, stored in an append-only file.
+ * <p>
+ * Each entry is stored on a single line: <code>timestamp:command</code>.
+ * Only the last entries are loaded on startup, reading the file backwards
+ * from a memory-mapped buffer. When the file grows too large, it is
+ * compacted in a background thread, keeping the most recent entries.
+ *
+ * @author Stamina Framework developers
+ */
+final class HistoryStore implements Closeable {
+    private final Path file;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final ExecutorService compactor;
+    private FileChannel channel;
+    private long appendedEntries;
+    private String lastLine;
+    private boolean compacting;
+
+    /**
+     * Create a new instance.
+     *
+     * @param file       history file
+     * @param maxEntries maximum number of entries to keep
+     * @param maxBytes   maximum size of history file, in bytes
+     */
+    HistoryStore(final Path file, final int maxEntries, final long maxBytes) {
+        this.file = file;
+        this.maxEntries = Math.max(1, maxEntries);
+        this.maxBytes = Math.max(4096, maxBytes);
+        compactor = Executors.newSingleThreadExecutor(r -> {
+            final Thread t = new Thread(r, "Stamina Shell History Compactor");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Load most recent entries into a line reader history.
+     */
+    public synchronized void load(History history) throws IOException {
+        if (!Files.exists(file)) {
+            return;
+        }
+        try (final FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = ch.size();
+            final long start = tailStart(ch, size, maxEntries, maxBytes);
+            if (start >= size) {
+                return;
+            }
+            final MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, start, size - start);
+            final StringBuilder escaped = new StringBuilder(128);
+            byte[] lineBuf = new byte[1024];
+            int lineLength = 0;
+            while (buf.hasRemaining()) {
+                final byte b = buf.get();
+                if (b == '\n') {
+                    addEntry(history, new String(lineBuf, 0, lineLength, StandardCharsets.UTF_8), escaped);
+                    lineLength = 0;
+                } else {
+                    if (lineLength == lineBuf.length) {
+                        lineBuf = Arrays.copyOf(lineBuf, lineBuf.length * 2);
+                    }
+                    lineBuf[lineLength++] = b;
+                }
+            }
+            if (lineLength > 0) {
+                addEntry(history, new String(lineBuf, 0, lineLength, StandardCharsets.UTF_8), escaped);
+            }
+        }
+    }
+
+    private void addEntry(History history, String entry, StringBuilder buf) {
+        final int i = entry.indexOf(':');
+        if (i < 0) {
+            return;
+        }
+        final Instant time;
+        try {
+            time = Instant.ofEpochMilli(Long.parseLong(entry.substring(0, i)));
+        } catch (NumberFormatException e) {
+            return;
+        }
+        final String line = unescape(entry, i + 1, buf);
+        history.add(time, line);
+        lastLine = line;
+    }
+
+    /**
+     * Append an entry to the history file.
+     */
+    public synchronized void append(Instant time, String line) throws IOException {
+        if (line.trim().isEmpty() || line.equals(lastLine)) {
+            return;
+        }
+        lastLine = line;
+        if (channel == null) {
+            final Path parent = file.getParent();
+            if (parent != null) {
+                Files.createDirectories(parent);
+            }
+            channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        }
+        final StringBuilder buf = new StringBuilder(line.length() + 16);
+        buf.append(time.toEpochMilli()).append(':');
+        escape(line, buf);
+        buf.append('\n');
+        final ByteBuffer bytes = StandardCharsets.UTF_8.encode(buf.toString());
+        while (bytes.hasRemaining()) {
+            channel.write(bytes);
+        }
+        ++appendedEntries;
+
+        if (!compacting && (channel.size() > maxBytes || appendedEntries > maxEntries)) {
+            compacting = true;
+            try {
+                compactor.execute(this::compact);
+            } catch (RejectedExecutionException e) {
+                compacting = false;
+            }
+        }
+    }
+
+    /**
+     * Rewrite the history file, keeping only the most recent entries.
+     */
+    private void compact() {
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            final long snapshot;
+            synchronized (this) {
+                snapshot = channel == null ? 0 : channel.size();
+            }
+
+            // Copy recent entries without blocking writers.
+            try (final FileChannel in = FileChannel.open(file, StandardOpenOption.READ);
+                 final FileChannel out = FileChannel.open(tmp, StandardOpenOption.CREATE,
+                         StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                final long start = tailStart(in, snapshot, maxEntries, maxBytes / 2);
+                transfer(in, start, snapshot, out);
+
+                synchronized (this) {
+                    // Copy entries appended meanwhile, then switch files.
+                    transfer(in, snapshot, in.size(), out);
+                    out.force(false);
+                    if (channel != null) {
+                        channel.close();
+                        channel = null;
+                    }
+                    Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    appendedEntries = 0;
+                }
+            }
+        } catch (IOException ignore) {
+            // History is kept as is.
+            try {
+                Files.deleteIfExists(tmp);
+            } catch (IOException ignore2) {
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private static void transfer(FileChannel in, long from, long to, FileChannel out) throws IOException {
+        long pos = from;
+        while (pos < to) {
+            pos += in.transferTo(pos, to - pos, out);
+        }
+    }
+
+    /**
+     * Find the position of the first entry to keep, reading the file backwards.
+     *
+     * @return position in file, equal to <code>end</code> if no entry is available
+     */
+    private static long tailStart(FileChannel ch, long end, int maxEntries, long maxBytes) throws IOException {
+        if (end == 0) {
+            return 0;
+        }
+        final long windowStart = Math.max(0, end - Math.min(maxBytes, Integer.MAX_VALUE));
+        final MappedByteBuffer buf = ch.map(FileChannel.MapMode.READ_ONLY, windowStart, end - windowStart);
+        int entries = 0;
+        // Last byte is a line separator, unless the file was truncated.
+        for (int i = buf.limit() - 2; i >= 0; --i) {
+            if (buf.get(i) == '\n') {
+                if (++entries == maxEntries) {
+                    return windowStart + i + 1;
+                }
+            }
+        }
+        if (windowStart == 0) {
+            return 0;
+        }
+        // First entry in window may be truncated: skip it.
+        for (int i = 0; i < buf.limit(); ++i) {
+            if (buf.get(i) == '\n') {
+                return windowStart + i + 1;
+            }
+        }
+        return end;
+    }
+
+    private static void escape(String line, StringBuilder buf) {
+        for (int i = 0; i < line.length(); ++i) {
+            final char c = line.charAt(i);
+            if (c == '\\') {
+                buf.append("\\\\");
+            } else if (c == '\n') {
+                buf.append("\\n");
+            } else if (c == '\r') {
+                buf.append("\\r");
+            } else {
+                buf.append(c);
+            }
+        }
+    }
+
+    private static String unescape(String entry, int start, StringBuilder buf) {
+        buf.setLength(0);
+        for (int i = start; i < entry.length(); ++i) {
+            final char c = entry.charAt(i);
+            if (c == '\\' && i + 1 < entry.length()) {
+                final char next = entry.charAt(++i);
+                buf.append(next == 'n' ? '\n' : next == 'r' ? '\r' : next);
+            } else {
+                buf.append(c);
+            }
+        }
+        return buf.toString();
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        compactor.shutdown();
+        if (channel != null) {
+            channel.close();
+            channel = null;
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import java.util.Arrays;
+
+/**
+ * Fixed-size histogram recording latencies in nanoseconds.
+ * <p>
+ * Values are stored in log-linear buckets: each power of two is split
+ * in {@link #SUB_BUCKETS} buckets, giving a relative error lower than 12.5%.
+ * Memory use does not depend on the number of recorded values.
+ * This class is not thread-safe.
+ *
+ * @author Stamina Framework developers
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final long[] counts;
+    private long count;
+    private long total;
+    private long max;
+
+    /**
+     * Create an empty histogram.
+     */
+    LatencyHistogram() {
+        counts = new long[BUCKETS];
+    }
+
+    /**
+     * Create a histogram from recorded values.
+     *
+     * @param counts number of values in each bucket
+     * @param total  sum of recorded values, in nanoseconds
+     * @param max    highest recorded value, in nanoseconds
+     */
+    LatencyHistogram(final long[] counts, final long total, final long max) {
+        this.counts = Arrays.copyOf(counts, BUCKETS);
+        for (final long c : this.counts) {
+            count += c;
+        }
+        this.total = total;
+        this.max = max;
+    }
+
+    /**
+     * Record a latency.
+     *
+     * @param nanos latency in nanoseconds
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        counts[bucketIndex(value)]++;
+        count++;
+        total += value;
+        if (value > max) {
+            max = value;
+        }
+    }
+
+    /**
+     * Add all values recorded by another histogram.
+     */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; ++i) {
+            counts[i] += other.counts[i];
+        }
+        count += other.count;
+        total += other.total;
+        if (other.max > max) {
+            max = other.max;
+        }
+    }
+
+    /**
+     * Get number of recorded values.
+     */
+    public long count() {
+        return count;
+    }
+
+    /**
+     * Get the sum of recorded values, in nanoseconds.
+     */
+    public long total() {
+        return total;
+    }
+
+    /**
+     * Get the highest recorded value, in nanoseconds.
+     */
+    public long max() {
+        return max;
+    }
+
+    /**
+     * Get the mean of recorded values, in nanoseconds.
+     */
+    public long mean() {
+        return count == 0 ? 0 : total / count;
+    }
+
+    /**
+     * Get a percentile of recorded values.
+     *
+     * @param percentile percentile, between 0 and 100
+     * @return highest value of the bucket holding this percentile, in nanoseconds
+     */
+    public long percentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(count * percentile / 100d));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; ++i) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return Math.min(max, bucketUpperBound(i));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Clear recorded values.
+     */
+    public void reset() {
+        Arrays.fill(counts, 0);
+        count = 0;
+        total = 0;
+        max = 0;
+    }
+
+    static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        final int exp = 63 - Long.numberOfLeadingZeros(value);
+        final int sub = (int) ((value >>> (exp - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1));
+        return (exp - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    static long bucketUpperBound(int index) {
+        if (index < SUB_BUCKETS) {
+            return index;
+        }
+        final int exp = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        final int sub = index % SUB_BUCKETS;
+        final long lower = (long) (SUB_BUCKETS + sub) << (exp - SUB_BUCKET_BITS);
+        return lower + (1L << (exp - SUB_BUCKET_BITS)) - 1;
+    }
+}
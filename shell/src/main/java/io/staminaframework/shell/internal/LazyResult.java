@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.Converter;
+
+import java.util.Iterator;
+
+/**
+ * Formatted result made of several elements, which are formatted
+ * one at a time when the result is printed.
+ * <p>
+ * Elements are only iterated once: this instance is materialized
+ * as a string if it is used as a regular {@link CharSequence}.
+ *
+ * @author Stamina Framework developers
+ */
+final class LazyResult implements CharSequence {
+    /**
+     * Consumer of formatted elements.
+     */
+    interface LineConsumer {
+        /**
+         * Consume a formatted element.
+         *
+         * @return <code>false</code> to stop iterating over elements
+         */
+        boolean accept(CharSequence line);
+    }
+
+    private final Iterator<?> elements;
+    private final AutoCloseable resource;
+    private final Converter converter;
+    private final int limit;
+    private boolean consumed;
+    private String text;
+
+    /**
+     * Create a new instance.
+     *
+     * @param elements  elements to format
+     * @param resource  resource to close once elements are iterated, may be <code>null</code>
+     * @param converter converter used to format elements
+     * @param limit     maximum number of formatted elements, <code>0</code> for no limit
+     */
+    LazyResult(final Iterator<?> elements, final AutoCloseable resource,
+               final Converter converter, final int limit) {
+        this.elements = elements;
+        this.resource = resource;
+        this.converter = converter;
+        this.limit = Math.max(0, limit);
+    }
+
+    /**
+     * Format elements one at a time.
+     *
+     * @return <code>false</code> if the consumer stopped the iteration
+     */
+    public synchronized boolean forEachLine(LineConsumer consumer) {
+        if (consumed) {
+            return text == null || consumer.accept(text);
+        }
+        consumed = true;
+        try {
+            int count = 0;
+            while (elements.hasNext()) {
+                if (limit != 0 && count == limit) {
+                    return consumer.accept("... (output limited to " + limit + " elements)");
+                }
+                if (!consumer.accept(format(elements.next()))) {
+                    return false;
+                }
+                ++count;
+            }
+            return true;
+        } finally {
+            close();
+        }
+    }
+
+    private CharSequence format(Object element) {
+        if (converter != null) {
+            try {
+                final CharSequence s = converter.format(element, Converter.LINE, converter);
+                if (s != null) {
+                    return s;
+                }
+            } catch (Exception ignore) {
+            }
+        }
+        return String.valueOf(element);
+    }
+
+    private void close() {
+        if (resource != null) {
+            try {
+                resource.close();
+            } catch (Exception ignore) {
+            }
+        }
+    }
+
+    @Override
+    public synchronized String toString() {
+        if (text == null) {
+            final StringBuilder buf = new StringBuilder(256);
+            forEachLine(line -> {
+                if (buf.length() != 0) {
+                    buf.append('\n');
+                }
+                buf.append(line);
+                return true;
+            });
+            text = buf.toString();
+        }
+        return text;
+    }
+
+    @Override
+    public int length() {
+        return toString().length();
+    }
+
+    @Override
+    public char charAt(int index) {
+        return toString().charAt(index);
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        return toString().subSequence(start, end);
+    }
+}
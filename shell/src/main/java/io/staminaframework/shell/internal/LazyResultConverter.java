@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Converter;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+
+import java.lang.reflect.Array;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.stream.BaseStream;
+
+/**
+ * {@link Converter} implementation for collections, arrays, iterators and streams.
+ * <p>
+ * Elements are formatted one at a time when the result is printed,
+ * so that large results are never fully loaded in memory.
+ * The number of displayed elements may be limited with the session variable
+ * <code>LIMIT</code>.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(
+        service = Converter.class,
+        configurationPid = "io.staminaframework.shell",
+        property = {
+                Converter.CONVERTER_CLASSES + "=java.util.Collection",
+                Converter.CONVERTER_CLASSES + "=java.util.Iterator",
+                Converter.CONVERTER_CLASSES + "=java.util.stream.BaseStream",
+                Converter.CONVERTER_CLASSES + "=[Ljava.lang.Object;"
+        })
+public class LazyResultConverter implements Converter {
+    /**
+     * Session variable holding the maximum number of displayed elements.
+     */
+    static final String LIMIT_VARIABLE = "LIMIT";
+
+    @interface Config {
+        /**
+         * Get maximum number of elements displayed for a result.
+         * Set to <code>0</code> to display all elements.
+         */
+        int outputLimit() default 0;
+    }
+
+    private int outputLimit;
+
+    @Activate
+    void activate(Config config) {
+        outputLimit = Math.max(0, config.outputLimit());
+    }
+
+    @Override
+    public Object convert(Class<?> desiredType, Object in) throws Exception {
+        return null;
+    }
+
+    @Override
+    public CharSequence format(Object target, int level, Converter escape) throws Exception {
+        if (level != INSPECT || target == null) {
+            // Nested results are formatted by the command processor.
+            return null;
+        }
+        final Iterator<?> elements;
+        AutoCloseable resource = null;
+        if (target instanceof Collection) {
+            elements = ((Collection<?>) target).iterator();
+        } else if (target instanceof Iterator) {
+            elements = (Iterator<?>) target;
+        } else if (target instanceof BaseStream) {
+            final BaseStream<?, ?> stream = (BaseStream<?, ?>) target;
+            elements = stream.iterator();
+            resource = stream;
+        } else if (target.getClass().isArray()) {
+            elements = new ArrayIterator(target);
+        } else {
+            return null;
+        }
+        return new LazyResult(elements, resource, escape, getLimit(escape));
+    }
+
+    private int getLimit(Converter escape) {
+        final CommandSession session = ConverterRegistry.sessionOf(escape);
+        if (session != null) {
+            final Object limit = session.get(LIMIT_VARIABLE);
+            if (limit instanceof Number) {
+                return Math.max(0, ((Number) limit).intValue());
+            } else if (limit != null) {
+                try {
+                    return Math.max(0, Integer.parseInt(limit.toString().trim()));
+                } catch (NumberFormatException ignore) {
+                }
+            }
+        }
+        return outputLimit;
+    }
+
+    /**
+     * Iterator over any kind of array, including arrays of primitive types.
+     */
+    private static final class ArrayIterator implements Iterator<Object> {
+        private final Object array;
+        private final int length;
+        private int index;
+
+        ArrayIterator(final Object array) {
+            this.array = array;
+            this.length = Array.getLength(array);
+        }
+
+        @Override
+        public boolean hasNext() {
+            return index < length;
+        }
+
+        @Override
+        public Object next() {
+            if (index >= length) {
+                throw new NoSuchElementException();
+            }
+            return Array.get(array, index++);
+        }
+    }
+}
@@ -0,0 +1,716 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.*;
+import org.osgi.framework.BundleContext;
+import org.osgi.service.component.annotations.*;
+import org.osgi.service.log.LogService;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Network shell component.
+ * <p>
+ * Remote clients (such as <code>telnet</code> or <code>nc</code>) connect
+ * to this shell using a line-based protocol. All connections are handled by
+ * a single selector thread: a worker thread is only used while a command
+ * is running, so that idle connections do not hold any thread.
+ * <p>
+ * Clients must send a token as their first line before running commands:
+ * if no token is configured, a random token is generated and written with
+ * the shell port to a file in the bundle data area, which is only readable
+ * by the current user.
+ * <p>
+ * This component is only enabled when a configuration is available.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(configurationPid = "io.staminaframework.shell.network",
+        configurationPolicy = ConfigurationPolicy.REQUIRE)
+public class NetworkShell {
+    @interface Config {
+        /**
+         * Get network address to listen to.
+         */
+        String address() default "127.0.0.1";
+
+        /**
+         * Get network port to listen to.
+         */
+        int port() default 2019;
+
+        /**
+         * Get command prompt.
+         */
+        String prompt() default "$ ";
+
+        /**
+         * Get maximum number of concurrent sessions.
+         */
+        int maxSessions() default 16;
+
+        /**
+         * Get time (in seconds) after which an idle session is closed.
+         */
+        long idleTimeout() default 600;
+
+        /**
+         * Get number of threads used to run commands.
+         */
+        int workers() default 4;
+
+        /**
+         * Get maximum number of bytes waiting to be sent to a client
+         * before a running command is blocked.
+         */
+        int maxPendingOutput() default 1048576;
+
+        /**
+         * Get number of command results available as <code>$_1</code>, <code>$_2</code>...
+         * in each session.
+         */
+        int resultHistorySize() default 10;
+
+        /**
+         * Get maximum size (in bytes) of command results strongly held in history,
+         * for each session.
+         */
+        long resultHistoryMaxBytes() default 4194304;
+
+        /**
+         * Get token required from clients, sent as the first line.
+         * A random token is generated if none is set.
+         */
+        String token() default "";
+
+        /**
+         * Allow clients to run commands without sending a token.
+         * <p>
+         * <strong>Warning:</strong> any client able to connect to this shell may then
+         * run any command with the privileges of the platform, such as installing
+         * bundles or reading files. Only enable this setting when the shell listens
+         * on a loopback address, and all local users are trusted.
+         */
+        boolean allowUnauthenticated() default false;
+
+        /**
+         * Get maximum number of command-lines waiting to be executed for a session.
+         * A client is no longer read while this limit is reached.
+         */
+        int maxPendingLines() default 64;
+    }
+
+    /**
+     * Name of the file holding shell port and token, in bundle data area.
+     */
+    static final String NETWORK_FILE = "network.properties";
+
+    private static final int MAX_LINE_LENGTH = 65536;
+    private static final int RESULT_CHUNK_SIZE = 8192;
+    private static final byte[] NO_INPUT = new byte[0];
+    /**
+     * Marker queued instead of a line exceeding {@link #MAX_LINE_LENGTH}:
+     * lines never contain a line feed.
+     */
+    private static final String LINE_TOO_LONG = "\n";
+
+
+    @Reference
+    private CommandProcessor processor;
+    @Reference
+    private LogService logService;
+    @Reference
+    private CommandStats commandStats;
+    @Reference
+    private ConverterRegistry converters;
+    @Reference
+    private ResultCache resultCache;
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile AuditLog auditLog;
+    private Config config;
+    private byte[] token;
+    private int maxPendingLines;
+    private Path networkFile;
+    private Selector selector;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private Thread selectorThread;
+    private final Set<Connection> connections = ConcurrentHashMap.newKeySet();
+    private volatile boolean running;
+
+    @Activate
+    void activate(BundleContext bundleContext, Config config) throws IOException {
+        this.config = config;
+        maxPendingLines = Math.max(1, config.maxPendingLines());
+        String tokenValue = null;
+        if (config.allowUnauthenticated()) {
+            logService.log(LogService.LOG_WARNING,
+                    "Network shell clients are not authenticated: any client may run commands");
+        } else {
+            tokenValue = config.token().isEmpty() ? AccessTokens.generate() : config.token();
+            token = tokenValue.getBytes(StandardCharsets.UTF_8);
+        }
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        try {
+            serverChannel.configureBlocking(false);
+            serverChannel.bind(new InetSocketAddress(config.address(), config.port()));
+            serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+            if (tokenValue != null && config.token().isEmpty()) {
+                final File dataFile = bundleContext.getDataFile(NETWORK_FILE);
+                if (dataFile == null) {
+                    throw new IOException("No persistent storage available to write network shell token");
+                }
+                networkFile = dataFile.toPath();
+                AccessTokens.write(networkFile,
+                        ((InetSocketAddress) serverChannel.getLocalAddress()).getPort(), tokenValue);
+            }
+        } catch (IOException e) {
+            serverChannel.close();
+            selector.close();
+            throw e;
+        }
+
+        final int nbWorkers = Math.max(1, config.workers());
+        workers = new ThreadPoolExecutor(nbWorkers, nbWorkers, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<>(Math.max(1, config.maxSessions())),
+                new ThreadFactory() {
+                    private int counter;
+
+                    @Override
+                    public synchronized Thread newThread(Runnable r) {
+                        final Thread t = new Thread(r, "Stamina Network Shell Worker #" + (++counter));
+                        t.setDaemon(true);
+                        return t;
+                    }
+                }, new ThreadPoolExecutor.AbortPolicy());
+        ((ThreadPoolExecutor) workers).allowCoreThreadTimeOut(true);
+
+        running = true;
+        selectorThread = new Thread(this::select, "Stamina Network Shell");
+        selectorThread.setDaemon(true);
+        selectorThread.start();
+        logService.log(LogService.LOG_INFO,
+                "Network shell listening on " + config.address() + ":" + config.port());
+    }
+
+    @Deactivate
+    void deactivate() {
+        running = false;
+        if (selector != null) {
+            selector.wakeup();
+        }
+        if (selectorThread != null) {
+            try {
+                selectorThread.join(4000);
+            } catch (InterruptedException ignore) {
+            }
+            selectorThread = null;
+        }
+        for (final Connection conn : connections) {
+            conn.close();
+        }
+        connections.clear();
+        if (workers != null) {
+            workers.shutdownNow();
+            workers = null;
+        }
+        try {
+            serverChannel.close();
+        } catch (IOException ignore) {
+        }
+        try {
+            selector.close();
+        } catch (IOException ignore) {
+        }
+        if (networkFile != null) {
+            try {
+                Files.deleteIfExists(networkFile);
+            } catch (IOException ignore) {
+            }
+            networkFile = null;
+        }
+        logService.log(LogService.LOG_INFO, "Network shell stopped");
+    }
+
+    private void select() {
+        final long idleTimeout = TimeUnit.SECONDS.toMillis(config.idleTimeout());
+        final long selectTimeout = idleTimeout > 0 ? Math.min(1000, idleTimeout) : 0;
+        while (running) {
+            try {
+                selector.select(selectTimeout);
+            } catch (IOException e) {
+                logService.log(LogService.LOG_ERROR, "Network shell selector failure", e);
+                break;
+            } catch (ClosedSelectorException e) {
+                break;
+            }
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                try {
+                    if (!key.isValid()) {
+                        continue;
+                    }
+                    if (key.isAcceptable()) {
+                        accept();
+                    } else {
+                        final Connection conn = (Connection) key.attachment();
+                        if (key.isReadable()) {
+                            conn.read();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            conn.write();
+                        }
+                    }
+                } catch (IOException | CancelledKeyException e) {
+                    if (key.attachment() instanceof Connection) {
+                        ((Connection) key.attachment()).close();
+                    }
+                }
+            }
+
+            // Update write interests and close idle connections.
+            final long now = System.currentTimeMillis();
+            for (final Connection conn : connections) {
+                if (idleTimeout > 0 && conn.isIdle(now, idleTimeout)) {
+                    conn.send("Session closed after " + config.idleTimeout() + " seconds of inactivity\n");
+                    conn.closeAfterWrite();
+                }
+                conn.updateInterests();
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        final SocketChannel channel = serverChannel.accept();
+        if (channel == null) {
+            return;
+        }
+        channel.configureBlocking(false);
+        if (connections.size() >= config.maxSessions()) {
+            logService.log(LogService.LOG_WARNING,
+                    "Rejecting network shell connection from " + channel.getRemoteAddress()
+                            + ": too many sessions");
+            try {
+                channel.write(ByteBuffer.wrap("Too many sessions\n".getBytes(StandardCharsets.UTF_8)));
+            } catch (IOException ignore) {
+            }
+            channel.close();
+            return;
+        }
+        final Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+        connections.add(conn);
+        logService.log(LogService.LOG_INFO,
+                "Network shell session " + conn.sessionId + " opened: " + channel.getRemoteAddress());
+        conn.send(conn.authenticated ? config.prompt() : "Token: ");
+    }
+
+    /**
+     * Client connection, holding a command session.
+     */
+    private class Connection implements Runnable {
+        private final SocketChannel channel;
+        private final ByteBuffer readBuffer = ByteBuffer.allocate(4096);
+        private final byte[] line = new byte[MAX_LINE_LENGTH];
+        private int lineLength;
+        private boolean lineTooLong;
+        private final TelnetDecoder telnetDecoder = new TelnetDecoder();
+        private boolean inputPaused;
+        private final Queue<String> pendingLines = new ArrayDeque<>(4);
+        private final Deque<ByteBuffer> pendingOutput = new ArrayDeque<>(4);
+        private int pendingOutputSize;
+        private final OutputStream out;
+        private final CommandSession session;
+        private final ResultHistory resultHistory;
+        private final String sessionName;
+        private final String sessionId = Sessions.newId("network");
+        private SelectionKey key;
+        private volatile long lastActivity = System.currentTimeMillis();
+        private boolean executing;
+        private boolean closing;
+        private volatile boolean closed;
+        private volatile boolean authenticated = token == null;
+
+        Connection(final SocketChannel channel) {
+            this.channel = channel;
+            String remoteAddress;
+            try {
+                remoteAddress = String.valueOf(channel.getRemoteAddress());
+            } catch (IOException e) {
+                remoteAddress = "unknown";
+            }
+            sessionName = "network:" + remoteAddress;
+            out = new ConnectionOutputStream(this);
+            session = processor.createSession(new ByteArrayInputStream(NO_INPUT), out, out);
+            session.put(".processor", processor);
+            session.put("SCOPE", "bundle:*");
+            session.put("#PWD", (Function) (s, arguments) -> s.currentDir().toString());
+            resultHistory = new ResultHistory(config.resultHistorySize(), config.resultHistoryMaxBytes());
+            resultHistory.install(session);
+        }
+
+        boolean isIdle(long now, long idleTimeout) {
+            synchronized (this) {
+                if (executing || closing) {
+                    return false;
+                }
+            }
+            return now - lastActivity > idleTimeout;
+        }
+
+        void read() throws IOException {
+            final int n = channel.read(readBuffer);
+            if (n < 0) {
+                close();
+                return;
+            }
+            lastActivity = System.currentTimeMillis();
+            readInput();
+        }
+
+        /**
+         * Read buffered input, until pending lines reach the limit.
+         * This method is only called by the selector thread.
+         */
+        private void readInput() {
+            readBuffer.flip();
+            boolean newLines = false;
+            while (readBuffer.hasRemaining() && !inputPaused) {
+                final int b = telnetDecoder.decode(readBuffer.get() & 0xff);
+                if (b != TelnetDecoder.NO_DATA) {
+                    newLines |= append(b);
+                }
+            }
+            readBuffer.compact();
+            if (newLines) {
+                schedule();
+            }
+        }
+
+        /**
+         * Append a data byte to the current line.
+         *
+         * @return <code>true</code> if a line was completed
+         */
+        private boolean append(int b) {
+            if (b == '\n') {
+                final String cmd = lineTooLong ? LINE_TOO_LONG
+                        : new String(line, 0, lineLength, StandardCharsets.UTF_8).trim();
+                lineLength = 0;
+                lineTooLong = false;
+                synchronized (this) {
+                    pendingLines.add(cmd);
+                    // Stop reading this client until pending lines are executed.
+                    inputPaused = pendingLines.size() >= maxPendingLines;
+                }
+                return true;
+            }
+            if (b != '\r') {
+                if (lineLength < line.length) {
+                    line[lineLength++] = (byte) b;
+                } else {
+                    lineTooLong = true;
+                }
+            }
+            return false;
+        }
+
+        private void schedule() {
+            synchronized (this) {
+                if (executing || closing || pendingLines.isEmpty()) {
+                    return;
+                }
+                executing = true;
+            }
+            try {
+                workers.execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    executing = false;
+                    pendingLines.clear();
+                }
+                send("Shell is busy: command rejected\n" + config.prompt());
+            }
+        }
+
+        @Override
+        public void run() {
+            while (!closed) {
+                final String cmd;
+                final boolean resumeInput;
+                synchronized (this) {
+                    resumeInput = pendingLines.size() >= maxPendingLines;
+                    cmd = pendingLines.poll();
+                    if (cmd == null) {
+                        executing = false;
+                        break;
+                    }
+                }
+                if (resumeInput) {
+                    selector.wakeup();
+                }
+                if (LINE_TOO_LONG.equals(cmd)) {
+                    logService.log(LogService.LOG_WARNING, "Rejected network shell command from "
+                            + sessionName + ": line is too long");
+                    send("Command rejected: line exceeds " + MAX_LINE_LENGTH + " bytes\n"
+                            + (authenticated ? config.prompt() : "Token: "));
+                    continue;
+                }
+                if (!authenticated) {
+                    if (!AccessTokens.matches(token, cmd)) {
+                        logService.log(LogService.LOG_WARNING,
+                                "Rejected network shell client with invalid token: " + sessionName);
+                        send("Invalid token\n");
+                        closeAfterWrite();
+                        break;
+                    }
+                    authenticated = true;
+                    send(config.prompt());
+                    continue;
+                }
+                if ("exit".equals(cmd) || "quit".equals(cmd)) {
+                    closeAfterWrite();
+                    break;
+                }
+                if (!cmd.isEmpty()) {
+                    execute(cmd);
+                }
+                send(config.prompt());
+                lastActivity = System.currentTimeMillis();
+            }
+        }
+
+        private void execute(String cmd) {
+            logService.log(LogService.LOG_DEBUG, "Executing network shell command: " + cmd);
+            final long startTime = System.currentTimeMillis();
+            final long start = System.nanoTime();
+            try {
+                final Object result = resultCache.execute(session, cmd);
+                commandStats.record(cmd, System.nanoTime() - start, false);
+                audit(cmd, startTime, System.nanoTime() - start, null);
+                if (result != null) {
+                    sendResult(converters.format(session, result, Converter.INSPECT));
+                    resultHistory.add(result);
+                }
+            } catch (Exception e) {
+                commandStats.record(cmd, System.nanoTime() - start, true);
+                audit(cmd, startTime, System.nanoTime() - start, e);
+                final int type = e instanceof IllegalArgumentException ? Converter.PART : Converter.INSPECT;
+                send(converters.format(session, e, type) + "\n");
+                resultHistory.setException(e);
+            }
+            try {
+                out.flush();
+            } catch (IOException ignore) {
+            }
+        }
+
+        private void audit(String cmd, long startTime, long nanos, Throwable error) {
+            final AuditLog audit = auditLog;
+            if (audit != null) {
+                audit.record(cmd, sessionId, startTime, nanos, error);
+            }
+        }
+
+        private void sendResult(CharSequence text) {
+            if (!(text instanceof LazyResult)) {
+                send(text + "\n");
+                return;
+            }
+            // Send elements in chunks, as they are formatted.
+            final StringBuilder buf = new StringBuilder(RESULT_CHUNK_SIZE);
+            ((LazyResult) text).forEachLine(line -> {
+                buf.append(line).append('\n');
+                if (buf.length() >= RESULT_CHUNK_SIZE) {
+                    send(buf);
+                    buf.setLength(0);
+                }
+                return !closed && !Thread.currentThread().isInterrupted();
+            });
+            if (buf.length() != 0) {
+                send(buf);
+            }
+        }
+
+        void send(CharSequence text) {
+            write(ByteBuffer.wrap(text.toString().getBytes(StandardCharsets.UTF_8)));
+        }
+
+        /**
+         * Queue bytes to send. Caller is blocked while too many bytes are
+         * waiting to be sent, unless the caller is the selector thread.
+         */
+        void write(ByteBuffer buf) {
+            synchronized (this) {
+                while (!closed && pendingOutputSize > config.maxPendingOutput()
+                        && Thread.currentThread() != selectorThread) {
+                    try {
+                        wait(1000);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+                if (closed) {
+                    return;
+                }
+                pendingOutput.add(buf);
+                pendingOutputSize += buf.remaining();
+            }
+            selector.wakeup();
+        }
+
+        void write() throws IOException {
+            synchronized (this) {
+                while (!pendingOutput.isEmpty()) {
+                    final ByteBuffer buf = pendingOutput.peek();
+                    final int n = channel.write(buf);
+                    pendingOutputSize -= n;
+                    if (buf.hasRemaining()) {
+                        break;
+                    }
+                    pendingOutput.poll();
+                }
+                notifyAll();
+                if (pendingOutput.isEmpty() && closing && !executing) {
+                    close();
+                }
+            }
+        }
+
+        void updateInterests() {
+            if (key == null || !key.isValid()) {
+                return;
+            }
+            final boolean hasOutput;
+            final boolean resumeInput;
+            synchronized (this) {
+                hasOutput = !pendingOutput.isEmpty();
+                if (!hasOutput && closing && !executing) {
+                    close();
+                    return;
+                }
+                resumeInput = inputPaused && pendingLines.size() < maxPendingLines;
+            }
+            if (resumeInput) {
+                // Read lines which were already received.
+                inputPaused = false;
+                readInput();
+            }
+            key.interestOps((inputPaused ? 0 : SelectionKey.OP_READ) | (hasOutput ? SelectionKey.OP_WRITE : 0));
+        }
+
+        void closeAfterWrite() {
+            synchronized (this) {
+                closing = true;
+                pendingLines.clear();
+            }
+            selector.wakeup();
+        }
+
+        void close() {
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                pendingOutput.clear();
+                pendingOutputSize = 0;
+                notifyAll();
+            }
+            connections.remove(this);
+            final Job job = session.foregroundJob();
+            if (job != null) {
+                job.interrupt();
+            }
+            session.close();
+            if (key != null) {
+                key.cancel();
+            }
+            try {
+                logService.log(LogService.LOG_INFO,
+                        "Network shell session closed: " + channel.getRemoteAddress());
+            } catch (IOException ignore) {
+            }
+            try {
+                channel.close();
+            } catch (IOException ignore) {
+            }
+        }
+    }
+
+    /**
+     * Output stream sending bytes to a connection.
+     */
+    private static class ConnectionOutputStream extends OutputStream {
+        private final Connection connection;
+        private final byte[] buf = new byte[4096];
+        private int count;
+
+        ConnectionOutputStream(final Connection connection) {
+            this.connection = connection;
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (count == buf.length) {
+                flush();
+            }
+            buf[count++] = (byte) b;
+            if (b == '\n') {
+                flush();
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (len >= buf.length) {
+                flush();
+                connection.write(ByteBuffer.wrap(Arrays.copyOfRange(b, off, off + len)));
+                return;
+            }
+            if (len > buf.length - count) {
+                flush();
+            }
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        @Override
+        public synchronized void flush() throws IOException {
+            if (count > 0) {
+                connection.write(ByteBuffer.wrap(Arrays.copyOf(buf, count)));
+                count = 0;
+            }
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Prefix tree mapping strings to values.
+ * Values are collected in key order. This class is thread-safe.
+ *
+ * @param <V> value type
+ * @author Stamina Framework developers
+ */
+final class PrefixTrie<V> {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Node<V> root = new Node<>();
+    private int size;
+
+    /**
+     * Associate a value with a key.
+     */
+    public void put(String key, V value) {
+        lock.writeLock().lock();
+        try {
+            Node<V> node = root;
+            for (int i = 0; i < key.length(); ++i) {
+                node = node.getOrCreateChild(key.charAt(i));
+            }
+            if (node.value == null) {
+                ++size;
+            }
+            node.value = value;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Remove a key.
+     */
+    public void remove(String key) {
+        lock.writeLock().lock();
+        try {
+            if (remove(root, key, 0)) {
+                --size;
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private boolean remove(Node<V> node, String key, int depth) {
+        if (depth == key.length()) {
+            final boolean removed = node.value != null;
+            node.value = null;
+            return removed;
+        }
+        final Node<V> child = node.getChild(key.charAt(depth));
+        if (child == null) {
+            return false;
+        }
+        final boolean removed = remove(child, key, depth + 1);
+        if (child.value == null && child.childCount == 0) {
+            // Prune empty branches.
+            node.removeChild(key.charAt(depth));
+        }
+        return removed;
+    }
+
+    /**
+     * Get the value associated with a key.
+     */
+    public V get(String key) {
+        lock.readLock().lock();
+        try {
+            final Node<V> node = find(key);
+            return node == null ? null : node.value;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Collect values whose keys start with a prefix.
+     *
+     * @param prefix key prefix
+     * @param values collection where values are added
+     * @param limit  maximum number of values to collect
+     */
+    public void collect(String prefix, Collection<? super V> values, int limit) {
+        lock.readLock().lock();
+        try {
+            final Node<V> node = find(prefix);
+            if (node != null) {
+                collect(node, values, limit);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private int collect(Node<V> node, Collection<? super V> values, int limit) {
+        int remaining = limit;
+        if (node.value != null && remaining > 0) {
+            values.add(node.value);
+            --remaining;
+        }
+        for (int i = 0; i < node.childCount && remaining > 0; ++i) {
+            remaining = collect(node.children[i], values, remaining);
+        }
+        return remaining;
+    }
+
+    /**
+     * Get the number of keys.
+     */
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    private Node<V> find(String key) {
+        Node<V> node = root;
+        for (int i = 0; node != null && i < key.length(); ++i) {
+            node = node.getChild(key.charAt(i));
+        }
+        return node;
+    }
+
+    /**
+     * Trie node, with children sorted by character.
+     */
+    private static final class Node<V> {
+        private static final char[] NO_KEYS = new char[0];
+
+        char[] keys = NO_KEYS;
+        Node<V>[] children;
+        int childCount;
+        V value;
+
+        Node<V> getChild(char c) {
+            final int i = Arrays.binarySearch(keys, 0, childCount, c);
+            return i < 0 ? null : children[i];
+        }
+
+        @SuppressWarnings("unchecked")
+        Node<V> getOrCreateChild(char c) {
+            int i = Arrays.binarySearch(keys, 0, childCount, c);
+            if (i >= 0) {
+                return children[i];
+            }
+            i = -i - 1;
+            if (childCount == keys.length) {
+                final int capacity = Math.max(2, childCount * 2);
+                keys = Arrays.copyOf(keys, capacity);
+                children = children == null ? new Node[capacity] : Arrays.copyOf(children, capacity);
+            }
+            System.arraycopy(keys, i, keys, i + 1, childCount - i);
+            System.arraycopy(children, i, children, i + 1, childCount - i);
+            final Node<V> child = new Node<>();
+            keys[i] = c;
+            children[i] = child;
+            ++childCount;
+            return child;
+        }
+
+        void removeChild(char c) {
+            final int i = Arrays.binarySearch(keys, 0, childCount, c);
+            if (i < 0) {
+                return;
+            }
+            System.arraycopy(keys, i + 1, keys, i, childCount - i - 1);
+            System.arraycopy(children, i + 1, children, i, childCount - i - 1);
+            --childCount;
+            children[childCount] = null;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.gogo.runtime.CommandSessionImpl;
+import org.apache.felix.service.command.CommandSession;
+
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import java.util.regex.Pattern;
+
+/**
+ * Barrier used to wait until commands required by a command-line
+ * are available in a command session.
+ *
+ * @author Stamina Framework developers
+ */
+final class ReadinessBarrier {
+    private static final Pattern COMMAND_NAME = Pattern.compile("[A-Za-z_][\\w.\\-]*(:[A-Za-z_][\\w.\\-]*)?");
+    /**
+     * Maximum time between two checks: command processor may be notified
+     * about new commands after the command index.
+     */
+    private static final long CHECK_INTERVAL = 50;
+    /**
+     * Maximum time to wait for required commands once the platform is started:
+     * commands may be registered by components activated asynchronously.
+     */
+    private static final long STARTED_GRACE_PERIOD = 250;
+
+    private final CommandIndex commandIndex;
+    private final CommandSession session;
+    private final Set<String> scopes = new HashSet<>(4);
+    private final Set<String> names = new HashSet<>(4);
+    private BooleanSupplier started = () -> false;
+
+    ReadinessBarrier(final CommandIndex commandIndex, final CommandSession session) {
+        this.commandIndex = commandIndex;
+        this.session = session;
+    }
+
+    /**
+     * Require commands from these scopes.
+     */
+    ReadinessBarrier requireScopes(String... scopes) {
+        for (final String scope : scopes) {
+            if (scope != null && !scope.trim().isEmpty()) {
+                this.scopes.add(scope.trim().toLowerCase());
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Require the command used in a command-line.
+     * Nothing is required if the command-line does not start with a command name
+     * (for example a variable assignment).
+     */
+    ReadinessBarrier requireCommandLine(String cmdLine) {
+        final String[] tokens = cmdLine.trim().split("\\s+", 3);
+        if (tokens.length > 1 && "=".equals(tokens[1])) {
+            return this;
+        }
+        if (COMMAND_NAME.matcher(tokens[0]).matches()) {
+            names.add(tokens[0].toLowerCase());
+        }
+        return this;
+    }
+
+    /**
+     * Stop waiting shortly after the platform is started:
+     * required commands which are still missing are not expected anymore.
+     */
+    ReadinessBarrier failFastWhenStarted(BooleanSupplier started) {
+        this.started = started;
+        return this;
+    }
+
+    /**
+     * Wait until all required commands are available.
+     *
+     * @param timeout maximum time to wait in milliseconds
+     * @return <code>true</code> if required commands are available
+     * @throws InterruptedException if current thread is interrupted
+     */
+    boolean await(long timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+        boolean platformStarted = false;
+        while (!isReady()) {
+            if (!platformStarted && started.getAsBoolean()) {
+                platformStarted = true;
+                final long startedDeadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(STARTED_GRACE_PERIOD);
+                if (startedDeadline - deadline < 0) {
+                    deadline = startedDeadline;
+                }
+            }
+            final long remaining = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (remaining <= 0) {
+                return false;
+            }
+            commandIndex.awaitChange(Math.min(remaining, CHECK_INTERVAL));
+        }
+        return true;
+    }
+
+    private boolean isReady() {
+        final Set<String> commands = (Set<String>) session.get(CommandSessionImpl.COMMANDS);
+        if (commands == null) {
+            return false;
+        }
+        final Set<String> missingScopes = new HashSet<>(scopes);
+        final Set<String> missingNames = new HashSet<>(names);
+        for (final String cmd : commands) {
+            final int i = cmd.indexOf(':');
+            if (i < 0) {
+                continue;
+            }
+            missingScopes.remove(cmd.substring(0, i));
+            missingNames.remove(cmd);
+            missingNames.remove(cmd.substring(i + 1));
+            if (missingScopes.isEmpty() && missingNames.isEmpty()) {
+                return true;
+            }
+        }
+        return missingScopes.isEmpty() && missingNames.isEmpty();
+    }
+}
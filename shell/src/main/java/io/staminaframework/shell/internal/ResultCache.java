@@ -0,0 +1,423 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.gogo.runtime.CommandSessionImpl;
+import org.apache.felix.service.command.CommandSession;
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.BundleEvent;
+import org.osgi.framework.BundleListener;
+import org.osgi.framework.ServiceEvent;
+import org.osgi.framework.ServiceListener;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.wiring.BundleWire;
+import org.osgi.framework.wiring.BundleWiring;
+import org.osgi.service.component.annotations.Activate;
+import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Deactivate;
+import org.osgi.service.component.annotations.Reference;
+
+import java.lang.reflect.Array;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.BaseStream;
+
+/**
+ * Cache for results of read-only commands.
+ * <p>
+ * A command is cacheable when its service is registered with the property
+ * {@link #CACHE_TTL}, set to the time (in milliseconds) during which results are kept.
+ * Only simple command-lines (a single command, without variables or closures)
+ * are cached. The command is resolved using the session scope path, and results
+ * are kept using the scoped command name and normalized arguments as a key:
+ * results are shared between sessions. Command-lines are not cached when
+ * the command name is ambiguous, or when it is shadowed by a session variable.
+ * <p>
+ * An entry is discarded when the command service is modified or unregistered,
+ * or when a bundle it depends on (the bundle providing the command, and bundles
+ * wired to it) is changed or registers or unregisters a service.
+ * Since results are shared, collections and maps are cached as read-only
+ * snapshots, and arrays are copied for each session.
+ *
+ * @author Stamina Framework developers
+ */
+@Component(service = ResultCache.class, configurationPid = "io.staminaframework.shell")
+public class ResultCache {
+    /**
+     * Command service property: time (in milliseconds) during which command results are cached.
+     */
+    public static final String CACHE_TTL = "shell.cache.ttl";
+
+    @interface Config {
+        /**
+         * Get maximum number of cached command results.
+         * Set to <code>0</code> to disable result caching.
+         */
+        int resultCacheSize() default 256;
+    }
+
+    /**
+     * Characters making a command-line not cacheable.
+     */
+    private static final String SPECIAL_CHARS = "|;&$=(){}[]<>`\\#";
+
+    @Reference
+    private CommandIndex commandIndex;
+    private final BundleListener bundleListener = this::bundleChanged;
+    private final ServiceListener serviceListener = this::serviceChanged;
+    private Map<String, Entry> entries;
+    private final Set<Dependencies> computing = new HashSet<>();
+    private int maxEntries;
+    private BundleContext bundleContext;
+
+    @Activate
+    void activate(BundleContext bundleContext, Config config) {
+        this.bundleContext = bundleContext;
+        maxEntries = Math.max(0, config.resultCacheSize());
+        entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                return size() > maxEntries;
+            }
+        };
+        if (maxEntries != 0) {
+            bundleContext.addBundleListener(bundleListener);
+            bundleContext.addServiceListener(serviceListener);
+        }
+    }
+
+    @Deactivate
+    void deactivate() {
+        try {
+            bundleContext.removeServiceListener(serviceListener);
+            bundleContext.removeBundleListener(bundleListener);
+        } catch (IllegalStateException ignore) {
+        }
+        invalidate();
+        bundleContext = null;
+    }
+
+    /**
+     * Execute a command-line, using a cached result if available.
+     */
+    public Object execute(CommandSession session, String line) throws Exception {
+        if (maxEntries == 0 || !commandIndex.hasCacheableCommands()) {
+            return session.execute(line);
+        }
+        final String name = commandName(line);
+        final CommandMetadata cmd = name == null ? null : resolveCommand(session, name);
+        if (cmd == null || cmd.cacheTtl() == 0) {
+            return session.execute(line);
+        }
+        final String normalized = normalize(line);
+        if (normalized == null) {
+            return session.execute(line);
+        }
+        final long ttl = cmd.cacheTtl();
+        // Normalized command-line starts with the command name.
+        final String key = cmd.name() + normalized.substring(name.length());
+
+        final long now = System.nanoTime();
+        synchronized (this) {
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                if (now - entry.expiresAt < 0) {
+                    return copyArray(entry.result);
+                }
+                entries.remove(key);
+            }
+        }
+
+        final Dependencies dependencies = dependencies(cmd.reference());
+        if (dependencies == null) {
+            return session.execute(line);
+        }
+        synchronized (this) {
+            computing.add(dependencies);
+        }
+
+        final Object result;
+        try {
+            result = snapshot(session.execute(line));
+        } finally {
+            synchronized (this) {
+                computing.remove(dependencies);
+            }
+        }
+        if (result != null) {
+            synchronized (this) {
+                // Do not cache results computed while a dependency was changed.
+                if (!dependencies.stale) {
+                    entries.put(key, new Entry(result, dependencies,
+                            now + TimeUnit.MILLISECONDS.toNanos(ttl)));
+                }
+            }
+        }
+        return copyArray(result);
+    }
+
+    /**
+     * Discard all cached results.
+     */
+    public synchronized void invalidate() {
+        for (final Dependencies d : computing) {
+            d.stale = true;
+        }
+        if (entries != null) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * Discard cached results depending on a bundle or on a command service.
+     *
+     * @param bundleId  changed bundle, or <code>-1</code>
+     * @param reference changed service, or <code>null</code>
+     */
+    private synchronized void invalidate(long bundleId, ServiceReference<?> reference) {
+        for (final Dependencies d : computing) {
+            if (d.contains(bundleId, reference)) {
+                d.stale = true;
+            }
+        }
+        if (!entries.isEmpty()) {
+            entries.values().removeIf(e -> e.dependencies.contains(bundleId, reference));
+        }
+    }
+
+    private void bundleChanged(BundleEvent event) {
+        if (event.getType() != BundleEvent.STARTING && event.getType() != BundleEvent.STOPPING) {
+            invalidate(event.getBundle().getBundleId(), null);
+        }
+    }
+
+    private void serviceChanged(ServiceEvent event) {
+        final ServiceReference<?> ref = event.getServiceReference();
+        if (event.getType() == ServiceEvent.REGISTERED || event.getType() == ServiceEvent.UNREGISTERING) {
+            final Bundle bundle = ref.getBundle();
+            invalidate(bundle == null ? -1 : bundle.getBundleId(), ref);
+        } else {
+            // Property updates only matter for command services.
+            invalidate(-1, ref);
+        }
+    }
+
+    /**
+     * Get dependencies of a command: its service, the bundle providing it, and bundles wired to it.
+     *
+     * @return command dependencies, or <code>null</code> if this command service is unregistered
+     */
+    private static Dependencies dependencies(ServiceReference<?> reference) {
+        final Bundle bundle = reference.getBundle();
+        if (bundle == null) {
+            return null;
+        }
+        final Set<Long> ids = new HashSet<>(8);
+        ids.add(bundle.getBundleId());
+        final BundleWiring wiring = bundle.adapt(BundleWiring.class);
+        final List<BundleWire> wires = wiring == null ? null : wiring.getRequiredWires(null);
+        if (wires != null) {
+            for (final BundleWire wire : wires) {
+                ids.add(wire.getProvider().getBundle().getBundleId());
+            }
+        }
+        return new Dependencies(reference, ids);
+    }
+
+    /**
+     * Make a read-only snapshot of a command result, since results are shared between sessions.
+     *
+     * @return snapshot, or <code>null</code> if this result cannot be cached
+     */
+    static Object snapshot(Object result) {
+        if (result instanceof List) {
+            return Collections.unmodifiableList(new ArrayList<>((List<?>) result));
+        }
+        if (result instanceof Set) {
+            return Collections.unmodifiableSet(new LinkedHashSet<>((Set<?>) result));
+        }
+        if (result instanceof Map) {
+            return Collections.unmodifiableMap(new LinkedHashMap<>((Map<?, ?>) result));
+        }
+        if (result instanceof Collection) {
+            return Collections.unmodifiableCollection(new ArrayList<>((Collection<?>) result));
+        }
+        if (result instanceof Iterator || result instanceof BaseStream) {
+            return null;
+        }
+        return copyArray(result);
+    }
+
+    private static Object copyArray(Object result) {
+        if (result == null || !result.getClass().isArray()) {
+            return result;
+        }
+        final int len = Array.getLength(result);
+        final Object copy = Array.newInstance(result.getClass().getComponentType(), len);
+        System.arraycopy(result, 0, copy, 0, len);
+        return copy;
+    }
+
+    /**
+     * Resolve a command name the same way a session does, using its scope path.
+     *
+     * @return cacheable command, or <code>null</code> if this command is not cacheable
+     * or if it cannot be resolved unambiguously
+     */
+    @SuppressWarnings("unchecked")
+    private CommandMetadata resolveCommand(CommandSession session, String name) {
+        if (name.indexOf(':') >= 0) {
+            return commandIndex.lookup(name);
+        }
+        final String function = name.toLowerCase();
+        // Session commands are only looked up if this command may be cached.
+        boolean cacheable = false;
+        for (final CommandMetadata cmd : commandIndex.commandsByFunction(function)) {
+            if (cmd.cacheTtl() != 0) {
+                cacheable = true;
+                break;
+            }
+        }
+        if (!cacheable) {
+            return null;
+        }
+        // Variables and aliases take precedence over commands.
+        final Set<String> variables = (Set<String>) session.get(CommandSessionImpl.VARIABLES);
+        if (variables.contains(name) || variables.contains("#" + name)) {
+            return null;
+        }
+        final Set<String> commands = (Set<String>) session.get(CommandSessionImpl.COMMANDS);
+        final Object scopePath = session.get("SCOPE");
+        for (final String scope : String.valueOf(scopePath == null ? "*" : scopePath).split(":")) {
+            if ("*".equals(scope)) {
+                // Any command with this function may be used by the session.
+                final String suffix = ":" + function;
+                String match = null;
+                for (final String cmd : commands) {
+                    if (cmd.endsWith(suffix)) {
+                        if (match != null) {
+                            return null;
+                        }
+                        match = cmd;
+                    }
+                }
+                return match == null ? null : commandIndex.lookup(match);
+            }
+            final String scoped = scope.toLowerCase() + ":" + function;
+            if (commands.contains(scoped)) {
+                return commandIndex.lookup(scoped);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the command name starting a command-line.
+     *
+     * @return command name, or <code>null</code> if this command-line is not cacheable
+     */
+    static String commandName(String line) {
+        final int len = line.length();
+        int start = 0;
+        while (start < len && Character.isWhitespace(line.charAt(start))) {
+            ++start;
+        }
+        int end = start;
+        while (end < len) {
+            final char c = line.charAt(end);
+            if (Character.isWhitespace(c)) {
+                break;
+            }
+            if (c == '"' || c == '\'' || SPECIAL_CHARS.indexOf(c) >= 0) {
+                return null;
+            }
+            ++end;
+        }
+        return start == end ? null : line.substring(start, end);
+    }
+
+    /**
+     * Normalize a command-line: blanks are collapsed, outside of quotes.
+     *
+     * @return normalized command-line, or <code>null</code> if this command-line is not cacheable
+     */
+    static String normalize(String line) {
+        final StringBuilder buf = new StringBuilder(line.length());
+        char quote = 0;
+        boolean blank = false;
+        for (int i = 0; i < line.length(); ++i) {
+            final char c = line.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+                buf.append(c);
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                blank = true;
+                continue;
+            }
+            if (SPECIAL_CHARS.indexOf(c) >= 0) {
+                return null;
+            }
+            if (blank && buf.length() != 0) {
+                buf.append(' ');
+            }
+            blank = false;
+            if (c == '"' || c == '\'') {
+                quote = c;
+            }
+            buf.append(c);
+        }
+        return quote != 0 || buf.length() == 0 ? null : buf.toString();
+    }
+
+    private static final class Entry {
+        final Object result;
+        final Dependencies dependencies;
+        final long expiresAt;
+
+        Entry(final Object result, final Dependencies dependencies, final long expiresAt) {
+            this.result = result;
+            this.dependencies = dependencies;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    /**
+     * Service and bundles a command result depends on.
+     */
+    private static final class Dependencies {
+        final ServiceReference<?> reference;
+        final Set<Long> bundleIds;
+        /**
+         * Set when a dependency is changed while the result is computed.
+         */
+        boolean stale;
+
+        Dependencies(final ServiceReference<?> reference, final Set<Long> bundleIds) {
+            this.reference = reference;
+            this.bundleIds = bundleIds;
+        }
+
+        boolean contains(long bundleId, ServiceReference<?> ref) {
+            return reference.equals(ref) || bundleIds.contains(bundleId);
+        }
+    }
+}
@@ -0,0 +1,280 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Function;
+
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bounded history of command results, with a memory budget.
+ * <p>
+ * Results are available as session variables: <code>$_</code> (or <code>$_1</code>)
+ * is the last result, <code>$_2</code> is the result before, and so on.
+ * The last exception is available as <code>$exception</code>.
+ * Unlike previous shell versions, commands without a result do not reset <code>$_</code>:
+ * only results which are not <code>null</code> are added to history.
+ * <p>
+ * When retained results exceed the memory budget, oldest results are
+ * softly held: these results are kept until the garbage collector needs memory.
+ * Result sizes are only estimated up to 1 MiB: larger results are always softly held.
+ *
+ * @author Stamina Framework developers
+ */
+final class ResultHistory {
+    /**
+     * Session variable holding the result history.
+     */
+    static final String HISTORY_VARIABLE = ".history";
+    /**
+     * Maximum size (in bytes) estimated for a result: larger results
+     * are considered over budget, so that the object graph of a huge result
+     * is not walked after each command.
+     */
+    private static final long MAX_ESTIMATED_SIZE = 1024 * 1024;
+
+    private final Entry[] entries;
+    private final long maxBytes;
+    private int head;
+    private int count;
+    private Entry exception;
+
+    ResultHistory(final int size, final long maxBytes) {
+        this.entries = new Entry[Math.max(1, size)];
+        this.maxBytes = Math.max(0, maxBytes);
+    }
+
+    /**
+     * Return <code>true</code> if a session variable is registered by {@link #install(CommandSession)}.
+     */
+    static boolean isHistoryVariable(String name) {
+        return HISTORY_VARIABLE.equals(name) || "#exception".equals(name) || name.startsWith("#_");
+    }
+
+    /**
+     * Get the number of results in history.
+     */
+    public int size() {
+        return entries.length;
+    }
+
+    /**
+     * Register history variables in a session.
+     */
+    public void install(CommandSession session) {
+        session.put(HISTORY_VARIABLE, this);
+        session.put("#_", (Function) (s, arguments) -> get(1));
+        for (int i = 1; i <= entries.length; ++i) {
+            final int index = i;
+            session.put("#_" + index, (Function) (s, arguments) -> get(index));
+        }
+        session.put("#exception", (Function) (s, arguments) -> getException());
+    }
+
+    /**
+     * Add a command result.
+     */
+    public void add(Object result) {
+        final Entry e = newEntry(result);
+        synchronized (this) {
+            head = (head + 1) % entries.length;
+            entries[head] = e;
+            count = Math.min(count + 1, entries.length);
+            enforceBudget();
+        }
+    }
+
+    /**
+     * Set last exception.
+     */
+    public void setException(Throwable e) {
+        final Entry entry = newEntry(e);
+        synchronized (this) {
+            exception = entry;
+            enforceBudget();
+        }
+    }
+
+    private Entry newEntry(Object value) {
+        final long limit = Math.min(maxBytes, MAX_ESTIMATED_SIZE);
+        final long size = SizeEstimator.estimate(value, limit);
+        return new Entry(value, size, size > limit);
+    }
+
+    /**
+     * Get a command result.
+     *
+     * @param index <code>1</code> for last result, <code>2</code> for the result before...
+     * @return command result, or <code>null</code> if this result is no longer available
+     */
+    public synchronized Object get(int index) {
+        if (index < 1 || index > count) {
+            return null;
+        }
+        final Entry e = entries[(head - index + 1 + entries.length) % entries.length];
+        return e == null ? null : e.get();
+    }
+
+    /**
+     * Get last exception.
+     */
+    public synchronized Throwable getException() {
+        return exception == null ? null : (Throwable) exception.get();
+    }
+
+    /**
+     * Clear history.
+     */
+    public synchronized void clear() {
+        for (int i = 0; i < entries.length; ++i) {
+            entries[i] = null;
+        }
+        count = 0;
+        exception = null;
+    }
+
+    /**
+     * Get a snapshot of history entries, starting with last result.
+     */
+    public synchronized List<EntryInfo> entries() {
+        final List<EntryInfo> infos = new ArrayList<>(count + 1);
+        for (int i = 1; i <= count; ++i) {
+            final Entry e = entries[(head - i + 1 + entries.length) % entries.length];
+            if (e != null) {
+                infos.add(new EntryInfo("_" + i, e));
+            }
+        }
+        if (exception != null) {
+            infos.add(new EntryInfo("exception", exception));
+        }
+        return Collections.unmodifiableList(infos);
+    }
+
+    /**
+     * Softly hold oldest entries until strongly held entries fit in the memory budget.
+     * The last result and the last exception are softly held only if they are
+     * over budget on their own.
+     */
+    private void enforceBudget() {
+        if (exception != null && exception.isStrong() && exception.isOverBudget(maxBytes)) {
+            exception.soften();
+        }
+        long total = exception != null && exception.isStrong() ? exception.size : 0;
+        for (int i = 1; i <= count; ++i) {
+            final Entry e = entries[(head - i + 1 + entries.length) % entries.length];
+            if (e == null || !e.isStrong()) {
+                continue;
+            }
+            if (e.isOverBudget(maxBytes) || (i > 1 && total + e.size > maxBytes)) {
+                e.soften();
+            } else {
+                total += e.size;
+            }
+        }
+    }
+
+    /**
+     * History entry, strongly or softly holding a value.
+     */
+    private static final class Entry {
+        final long size;
+        final boolean truncated;
+        private final SoftReference<Object> softValue;
+        private Object value;
+
+        Entry(final Object value, final long size, final boolean truncated) {
+            this.value = value;
+            this.size = size;
+            this.truncated = truncated;
+            this.softValue = new SoftReference<>(value);
+        }
+
+        boolean isOverBudget(long maxBytes) {
+            return truncated || size > maxBytes;
+        }
+
+        Object get() {
+            return value != null ? value : softValue.get();
+        }
+
+        boolean isStrong() {
+            return value != null;
+        }
+
+        void soften() {
+            value = null;
+        }
+    }
+
+    /**
+     * History entry description.
+     */
+    static final class EntryInfo {
+        private final String name;
+        private final long size;
+        private final boolean truncated;
+        private final boolean strong;
+        private final Object value;
+
+        EntryInfo(final String name, final Entry entry) {
+            this.name = name;
+            this.size = entry.size;
+            this.truncated = entry.truncated;
+            this.strong = entry.isStrong();
+            this.value = entry.get();
+        }
+
+        /**
+         * Get variable name.
+         */
+        public String name() {
+            return name;
+        }
+
+        /**
+         * Get estimated size (in bytes), when this entry was added.
+         */
+        public long size() {
+            return size;
+        }
+
+        /**
+         * Get whether size estimation was stopped: actual size is greater than {@link #size()}.
+         */
+        public boolean isTruncated() {
+            return truncated;
+        }
+
+        /**
+         * Get whether this entry is strongly held.
+         */
+        public boolean isStrong() {
+            return strong;
+        }
+
+        /**
+         * Get entry value, or <code>null</code> if the value was garbage collected.
+         */
+        public Object value() {
+            return value;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Bounded lock-free queue, supporting several producers and a single consumer.
+ * <p>
+ * Each slot holds a sequence number, telling whether the slot is available
+ * to producers or to the consumer. Producers never block: an element is
+ * rejected when the queue is full.
+ *
+ * @param <E> element type
+ * @author Stamina Framework developers
+ */
+final class RingBuffer<E> {
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    // Only used by the consumer.
+    private long head;
+
+    /**
+     * Create a new instance.
+     *
+     * @param capacity minimum capacity, rounded to the next power of two
+     */
+    RingBuffer(final int capacity) {
+        final int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; ++i) {
+            sequences.set(i, i);
+        }
+        mask = size - 1;
+    }
+
+    /**
+     * Get queue capacity.
+     */
+    public int capacity() {
+        return mask + 1;
+    }
+
+    /**
+     * Add an element. This method may be called by any thread.
+     *
+     * @return <code>false</code> if the queue is full
+     */
+    public boolean offer(E e) {
+        long pos = tail.get();
+        while (true) {
+            final int i = (int) (pos & mask);
+            final long diff = sequences.get(i) - pos;
+            if (diff == 0) {
+                if (tail.compareAndSet(pos, pos + 1)) {
+                    elements.lazySet(i, e);
+                    // Publish this element to the consumer.
+                    sequences.lazySet(i, pos + 1);
+                    return true;
+                }
+                pos = tail.get();
+            } else if (diff < 0) {
+                return false;
+            } else {
+                pos = tail.get();
+            }
+        }
+    }
+
+    /**
+     * Return <code>true</code> if no element was added since the last one was removed.
+     * This method must only be called by the consumer thread: an element being added
+     * may not be available yet to {@link #poll()}, although this queue is not empty.
+     */
+    public boolean isEmpty() {
+        return tail.get() == head;
+    }
+
+    /**
+     * Remove an element. This method must only be called by the consumer thread.
+     *
+     * @return next element, or <code>null</code> if the queue is empty
+     */
+    public E poll() {
+        final int i = (int) (head & mask);
+        if (sequences.get(i) != head + 1) {
+            return null;
+        }
+        final E e = elements.get(i);
+        elements.lazySet(i, null);
+        // Make this slot available to producers.
+        sequences.lazySet(i, head + mask + 1);
+        ++head;
+        return e;
+    }
+}
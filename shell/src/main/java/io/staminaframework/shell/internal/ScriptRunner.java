@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Run a script, one command per line.
+ * <p>
+ * Lines are streamed from a reader: memory use does not depend on the
+ * script size. Empty lines and lines starting with <code>#</code> are
+ * ignored. A line ending with <code>\</code> is continued on the next line.
+ *
+ * @author Stamina Framework developers
+ */
+final class ScriptRunner {
+    /**
+     * Executor for a single command-line.
+     */
+    interface LineExecutor {
+        /**
+         * Execute a command-line.
+         *
+         * @return <code>true</code> if the command was successfully executed
+         * @throws InterruptedException if current thread is interrupted
+         */
+        boolean execute(String line) throws InterruptedException;
+    }
+
+    private final LineExecutor executor;
+    private final boolean continueOnError;
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private long failures;
+    private long lineNumber;
+    private long failedLineNumber;
+
+    ScriptRunner(final LineExecutor executor, final boolean continueOnError) {
+        this.executor = executor;
+        this.continueOnError = continueOnError;
+    }
+
+    /**
+     * Run all commands from a reader.
+     *
+     * @return <code>true</code> if all commands were successfully executed
+     * @throws IOException          if the script cannot be read
+     * @throws InterruptedException if current thread is interrupted
+     */
+    public boolean run(BufferedReader reader) throws IOException, InterruptedException {
+        final StringBuilder cmd = new StringBuilder(128);
+        String line;
+        while ((line = reader.readLine()) != null) {
+            ++lineNumber;
+            final String trimmed = line.trim();
+            if (cmd.length() == 0 && (trimmed.isEmpty() || trimmed.startsWith("#"))) {
+                continue;
+            }
+            if (trimmed.endsWith("\\")) {
+                cmd.append(trimmed, 0, trimmed.length() - 1).append(' ');
+                continue;
+            }
+            cmd.append(trimmed);
+            final boolean success = execute(cmd.toString());
+            cmd.setLength(0);
+            if (!success && !continueOnError) {
+                return false;
+            }
+            if (Thread.currentThread().isInterrupted()) {
+                throw new InterruptedException();
+            }
+        }
+        if (cmd.length() != 0) {
+            // Last line was ending with a continuation character.
+            execute(cmd.toString());
+        }
+        return failures == 0;
+    }
+
+    private boolean execute(String cmd) throws InterruptedException {
+        final long start = System.nanoTime();
+        final boolean success = executor.execute(cmd);
+        latencies.record(System.nanoTime() - start);
+        if (!success) {
+            ++failures;
+            if (failedLineNumber == 0) {
+                failedLineNumber = lineNumber;
+            }
+        }
+        return success;
+    }
+
+    /**
+     * Get number of executed commands.
+     */
+    public long commands() {
+        return latencies.count();
+    }
+
+    /**
+     * Get number of failed commands.
+     */
+    public long failures() {
+        return failures;
+    }
+
+    /**
+     * Get a summary of this script execution.
+     */
+    public String summary() {
+        final StringBuilder buf = new StringBuilder(128);
+        buf.append("Executed ").append(latencies.count()).append(" command(s), ")
+                .append(failures).append(" failure(s)");
+        if (failedLineNumber != 0) {
+            buf.append(" (first failure at line ").append(failedLineNumber).append(")");
+        }
+        buf.append(", total time: ").append(toMillis(latencies.total())).append(" ms")
+                .append(", p99 latency: ").append(toMillis(latencies.percentile(99))).append(" ms")
+                .append(", max latency: ").append(toMillis(latencies.max())).append(" ms");
+        return buf.toString();
+    }
+
+    private static String toMillis(long nanos) {
+        return String.format("%.3f", nanos / (double) TimeUnit.MILLISECONDS.toNanos(1));
+    }
+}
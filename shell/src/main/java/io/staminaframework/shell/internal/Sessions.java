@@ -0,0 +1,73 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.gogo.runtime.CommandSessionImpl;
+import org.apache.felix.service.command.CommandProcessor;
+import org.apache.felix.service.command.CommandSession;
+
+import java.io.ByteArrayInputStream;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Command session utilities.
+ *
+ * @author Stamina Framework developers
+ */
+final class Sessions {
+    private static final byte[] NO_INPUT = new byte[0];
+    private static final AtomicLong NEXT_ID = new AtomicLong(1);
+
+    private Sessions() {
+    }
+
+    /**
+     * Create a session identifier, unique while this bundle is active.
+     * This identifier is used to group audit records by session.
+     *
+     * @param kind session kind, such as <code>console</code> or <code>network</code>
+     * @return session identifier, using the form <code>kind-n</code>
+     */
+    static String newId(String kind) {
+        return kind + "-" + NEXT_ID.getAndIncrement();
+    }
+
+    /**
+     * Create a session sharing console and variables with another session.
+     * Variables are copied: changes made in the new session are not visible
+     * from the parent session. Result history is not shared with the new session.
+     */
+    @SuppressWarnings("unchecked")
+    static CommandSession fork(CommandProcessor processor, CommandSession parent) {
+        final CommandSession session = processor.createSession(
+                new ByteArrayInputStream(NO_INPUT), parent.getConsole(), parent.getConsole());
+        final Set<String> variables = (Set<String>) parent.get(CommandSessionImpl.VARIABLES);
+        if (variables != null) {
+            for (final String name : variables) {
+                if (ResultHistory.isHistoryVariable(name)) {
+                    continue;
+                }
+                final Object value = parent.get(name);
+                if (value != null) {
+                    session.put(name, value);
+                }
+            }
+        }
+        return session;
+    }
+}
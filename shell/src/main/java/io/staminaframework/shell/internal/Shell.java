@@ -22,23 +22,42 @@ import io.staminaframework.runtime.command.CommandConstants;
 import org.apache.felix.service.command.*;
 import org.jline.reader.*;
 import org.jline.reader.impl.DefaultParser;
+import org.jline.terminal.Attributes;
 import org.jline.terminal.Terminal;
 import org.jline.terminal.TerminalBuilder;
+import org.jline.utils.NonBlockingReader;
 import org.osgi.framework.Bundle;
 import org.osgi.framework.BundleContext;
 import org.osgi.framework.BundleException;
 import org.osgi.framework.Constants;
+import org.osgi.framework.launch.Framework;
 import org.osgi.service.component.annotations.*;
 import org.osgi.service.component.annotations.Reference;
 import org.osgi.service.log.LogService;
 
+import java.io.BufferedReader;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintStream;
-import java.util.Collections;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.time.Instant;
 import java.util.Dictionary;
 import java.util.Hashtable;
-import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Shell component.
@@ -57,195 +76,255 @@ public class Shell {
          * Get Message Of The Day: banner displayed on shell startup.
          */
         String motd() default "";
+
+        /**
+         * Get command scopes required before running a command with <code>shell:exec</code>.
+         */
+        String[] requiredScopes() default {};
+
+        /**
+         * Get maximum time (in milliseconds) to wait for required commands
+         * before running a command with <code>shell:exec</code>.
+         * Waiting stops shortly after the platform is started.
+         */
+        long readyTimeout() default 2000;
+
+        /**
+         * Keep running a script with <code>shell:run</code> when a command fails.
+         */
+        boolean scriptContinueOnError() default false;
+
+        /**
+         * Get size (in characters) of the buffer used to print command results.
+         */
+        int outputBufferSize() default 8192;
+
+        /**
+         * Get maximum time (in milliseconds) before printed text is flushed to the terminal.
+         */
+        long outputFlushInterval() default 100;
+
+        /**
+         * Keep command history between shell sessions.
+         */
+        boolean historyEnabled() default true;
+
+        /**
+         * Get maximum number of entries kept in command history.
+         */
+        int historyMaxEntries() default 1000;
+
+        /**
+         * Get maximum size (in bytes) of the command history file.
+         */
+        long historyMaxBytes() default 262144;
+
+        /**
+         * Run without a terminal, reading commands from stdin:
+         * <code>true</code>, <code>false</code>, or <code>auto</code>
+         * to enable this mode when no console is available.
+         */
+        String headless() default "auto";
+
+        /**
+         * Get time (in milliseconds) after which a command is interrupted.
+         * Set to <code>0</code> to disable timeouts.
+         * This value may be overridden with session variable <code>TIMEOUT</code>,
+         * or with command service property <code>shell.timeout</code>.
+         * When running a command-line or a script, the platform is stopped
+         * with exit code 124 if a command keeps running after being interrupted.
+         */
+        long commandTimeout() default 0;
+
+        /**
+         * Get number of command results available as <code>$_1</code>, <code>$_2</code>...
+         */
+        int resultHistorySize() default 10;
+
+        /**
+         * Get maximum size (in bytes) of command results strongly held in history:
+         * oldest results are softly held when this size is exceeded,
+         * until the garbage collector needs memory.
+         */
+        long resultHistoryMaxBytes() default 16777216;
     }
 
+    private static final String SHELL_EXEC = "shell:exec";
+    private static final String SHELL_RUN = "shell:run";
+    private static final String MORE_PROMPT = "--More--";
+    /**
+     * Process exit code used when a command is abandoned, as with command <code>timeout</code>.
+     */
+    private static final int ABANDONED_EXIT_CODE = 124;
+    private static final long STOP_TIMEOUT = 10000;
+
     @Reference
     private CommandProcessor processor;
     @Reference
     private LogService logService;
+    @Reference
+    private CommandIndex commandIndex;
+    @Reference
+    private CommandCompleter completer;
+    @Reference
+    private CommandStats commandStats;
+    @Reference
+    private ConverterRegistry converters;
+    @Reference
+    private BackgroundJobs backgroundJobs;
+    @Reference
+    private ResultCache resultCache;
+    @Reference
+    private CommandWatchdog watchdog;
+    @Reference(cardinality = ReferenceCardinality.OPTIONAL, policy = ReferencePolicy.DYNAMIC)
+    private volatile AuditLog auditLog;
     @Reference(cardinality = ReferenceCardinality.OPTIONAL)
     private CommandLine commandLine;
-    private CommandSession session;
-    private Terminal terminal;
+    // Created by the shell thread, but also read from signal handlers and job listeners.
+    private volatile CommandSession session;
+    private volatile Terminal terminal;
+    private volatile PrintWriter out;
+    private volatile TerminalPrinter printer;
+    private HistoryStore historyStore;
+    private ResultHistory resultHistory;
+    private boolean interactive;
+    private boolean batch;
+    private String sessionId;
+    private BundleContext bundleContext;
+    private long commandTimeout;
     private Thread shellThread;
     private final AtomicBoolean running = new AtomicBoolean();
+    private final BlockingQueue<BackgroundJob> finishedJobs = new LinkedBlockingQueue<>();
+    private final AtomicInteger unreportedJobs = new AtomicInteger();
+    private final Object promptLock = new Object();
+    private boolean atPrompt;
 
     @Activate
-    void activate(BundleContext bundleContext, Config config) throws IOException {
+    void activate(BundleContext bundleContext, Config config) {
         // Most of this code is taken from the Apache Felix Gogo JLine bundle.
 
-        terminal = TerminalBuilder.builder()
-                .name("gogo")
-                .system(true)
-                .nativeSignals(true)
-                .signalHandler(Terminal.SignalHandler.SIG_IGN)
-                .build();
-        session = processor.createSession(
-                terminal.input(), terminal.output(), terminal.output());
-        session.put(".terminal", terminal);
-        session.put(".processor", processor);
-        session.put("SCOPE", "bundle:*");
-        session.put("#TERM", (Function) (s, arguments) -> terminal.getType());
-        session.put("#COLUMNS", (Function) (s, arguments) -> terminal.getWidth());
-        session.put("#LINES", (Function) (s, arguments) -> terminal.getHeight());
-        session.put("#PWD", (Function) (s, arguments) -> s.currentDir().toString());
-
-        final LineReader lineReader = LineReaderBuilder.builder()
-                .appName("stamina")
-                .terminal(terminal)
-                .parser(new DefaultParser())
-                .build();
-        lineReader.setOpt(LineReader.Option.AUTO_FRESH_LINE);
-        session.put(".reader", lineReader);
+        // Shell setup is done in the shell thread, in order to activate this component quickly.
+        final long activationTime = System.nanoTime();
+        final String mode = commandLine == null ? null : commandLine.command();
+        final boolean headless = isHeadless(config);
+        batch = SHELL_EXEC.equals(mode) || SHELL_RUN.equals(mode);
+        interactive = !headless && !batch;
+        this.bundleContext = bundleContext;
+        commandTimeout = Math.max(0, config.commandTimeout());
         running.set(true);
 
-        final Terminal.SignalHandler intHandler = terminal.handle(Terminal.Signal.INT, s -> {
-            Job current = session.foregroundJob();
-            if (current != null) {
-                current.interrupt();
-            }
-        });
-        final Terminal.SignalHandler suspHandler = terminal.handle(Terminal.Signal.TSTP, s -> {
-            Job current = session.foregroundJob();
-            if (current != null) {
-                current.suspend();
-            }
-        });
-
-        final boolean interactive = commandLine == null || !commandLine.command().equals("shell:exec");
-
-        logService.log(LogService.LOG_INFO, "Starting command-line shell");
+        logService.log(LogService.LOG_INFO, headless
+                ? "Starting command-line shell (headless)" : "Starting command-line shell");
         final Runnable shellHandler = () -> {
             Thread.currentThread().setUncaughtExceptionHandler((t, e) -> {
                 // Do nothing.
             });
 
+            final LineReader lineReader;
             try {
-                while (running.get()) {
-                    ParsedLine parsedLine;
-                    if (!interactive && commandLine.command().equals("shell:exec")) {
-                        final String cmdLine = String.join(" ", commandLine.arguments());
-                        logService.log(LogService.LOG_INFO, "Executing Shell command-line: $ " + cmdLine);
-
-                        // Register an empty command, since we are doing the hard work.
-                        final Dictionary<String, Object> cmdProps = new Hashtable<>(1);
-                        cmdProps.put(CommandConstants.COMMAND, "shell:exec");
-                        bundleContext.registerService(Command.class, new Command() {
-                            @Override
-                            public void help(PrintStream printStream) {
-                            }
-
-                            @Override
-                            public boolean execute(Context context) throws Exception {
-                                return false;
-                            }
-                        }, cmdProps);
-
-                        // Shell is stopped once command has been executed.
-                        running.set(false);
-
-                        // Pretend an user just typed a command.
-                        parsedLine = new ParsedLine() {
-                            @Override
-                            public String word() {
-                                return "";
-                            }
-
-                            @Override
-                            public int wordCursor() {
-                                return 0;
-                            }
-
-                            @Override
-                            public int wordIndex() {
-                                return 0;
-                            }
-
-                            @Override
-                            public List<String> words() {
-                                return Collections.emptyList();
-                            }
-
-                            @Override
-                            public String line() {
-                                return cmdLine;
-                            }
-
-                            @Override
-                            public int cursor() {
-                                return 0;
-                            }
-                        };
-
-                        // Workaround for a weird bug in command processor:
-                        // if a command is executed too soon, an exception is raised
-                        // and a stacktrace is printed on console...
-                        try {
-                            Thread.sleep(1000);
-                        } catch (InterruptedException ignore) {
-                        }
-                    } else {
-                        lineReader.readLine(config.prompt());
-                        parsedLine = lineReader.getParsedLine();
+                lineReader = init(config, headless);
+            } catch (IOException e) {
+                logService.log(LogService.LOG_ERROR, "Failed to initialize command-line shell", e);
+                running.set(false);
+                return;
+            }
+
+            final Terminal.SignalHandler intHandler;
+            final Terminal.SignalHandler suspHandler;
+            if (terminal != null) {
+                intHandler = terminal.handle(Terminal.Signal.INT, s -> {
+                    Job current = session.foregroundJob();
+                    if (current != null) {
+                        current.interrupt();
                     }
-                    if (parsedLine == null) {
-                        throw new EndOfFileException();
-                    } else {
-                        logService.log(LogService.LOG_DEBUG,
-                                "Executing command: " + parsedLine.line());
-                        try {
-                            final Object result = session.execute(parsedLine.line());
-
-                            // Store last command result in variable $_.
-                            session.put("_", result);
-
-                            if (result != null) {
-                                System.out.println(session.format(result, Converter.INSPECT));
-                            }
-                        } catch (Exception e) {
-                            final int type;
-                            if (e instanceof IllegalArgumentException) {
-                                type = Converter.PART;
-                            } else {
-                                type = Converter.INSPECT;
-                            }
-                            terminal.writer().println(session.format(e, type));
-                            terminal.flush();
-                            session.put("exception", e);
-                        }
+                    // Stop printing a command result.
+                    printer.cancel();
+                });
+                suspHandler = terminal.handle(Terminal.Signal.TSTP, s -> {
+                    Job current = session.foregroundJob();
+                    if (current != null) {
+                        current.suspend();
+                    }
+                });
+            } else {
+                intHandler = null;
+                suspHandler = null;
+            }
 
-                        while (true) {
-                            Job job = session.foregroundJob();
-                            if (job != null) {
-                                synchronized (job) {
-                                    if (job.status() == Job.Status.Foreground) {
-                                        job.wait();
-                                    }
-                                }
-                            } else {
-                                break;
-                            }
+            final BackgroundJobs.Listener jobListener = new BackgroundJobs.Listener() {
+                @Override
+                public void jobSubmitted(BackgroundJob job) {
+                    // Jobs started by commands such as shell:bg are counted as well.
+                    if (job.owner() == session) {
+                        unreportedJobs.incrementAndGet();
+                    }
+                }
+
+                @Override
+                public void jobFinished(BackgroundJob job) {
+                    if (job.owner() != session) {
+                        return;
+                    }
+                    // Job status is printed by the shell thread,
+                    // unless the line reader is waiting for user input.
+                    finishedJobs.add(job);
+                    synchronized (promptLock) {
+                        if (atPrompt) {
+                            printJobStatuses(lineReader);
                         }
                     }
                 }
+            };
+            backgroundJobs.addListener(jobListener);
+
+            try {
+                if (SHELL_EXEC.equals(mode)) {
+                    registerCommand(bundleContext, SHELL_EXEC);
+                    logStartupTime(activationTime);
+                    runCommand(config);
+                    awaitBackgroundJobs();
+                } else if (SHELL_RUN.equals(mode)) {
+                    registerCommand(bundleContext, SHELL_RUN);
+                    logStartupTime(activationTime);
+                    runScript(config);
+                    awaitBackgroundJobs();
+                } else if (lineReader == null) {
+                    logStartupTime(activationTime);
+                    runHeadless(config);
+                    awaitBackgroundJobs();
+                } else {
+                    openHistory(bundleContext, lineReader, config);
+                    logStartupTime(activationTime);
+                    runInteractive(lineReader, config);
+                }
             } catch (UserInterruptException e) {
                 logService.log(LogService.LOG_DEBUG, "Shell interrupted by user");
-                running.set(false);
             } catch (InterruptedException e) {
                 logService.log(LogService.LOG_DEBUG, "Shell interrupted");
-                running.set(false);
             } catch (EndOfFileException e) {
                 logService.log(LogService.LOG_DEBUG, "Shell closed");
-                running.set(false);
+            } catch (IOException e) {
+                logService.log(LogService.LOG_ERROR, "Failed to read shell script", e);
+                out.println("Failed to read shell script: " + e.getMessage());
+                out.flush();
             } finally {
-                terminal.handle(Terminal.Signal.INT, intHandler);
-                terminal.handle(Terminal.Signal.TSTP, suspHandler);
+                running.set(false);
+                backgroundJobs.removeListener(jobListener);
+                if (terminal != null) {
+                    terminal.handle(Terminal.Signal.INT, intHandler);
+                    terminal.handle(Terminal.Signal.TSTP, suspHandler);
+                }
             }
 
+            closeHistory();
             session.close();
-            try {
-                terminal.close();
-            } catch (IOException ignore) {
+            if (terminal != null) {
+                try {
+                    terminal.close();
+                } catch (IOException ignore) {
+                }
+            } else {
+                out.flush();
             }
 
             try {
@@ -264,6 +343,534 @@ public class Shell {
         shellThread.start();
     }
 
+    /**
+     * Initialize terminal and command session.
+     *
+     * @return line reader, or <code>null</code> in headless mode
+     */
+    private LineReader init(Config config, boolean headless) throws IOException {
+        final LineReader lineReader;
+        if (headless) {
+            // No terminal: commands are read from stdin, and results are written to stdout.
+            terminal = null;
+            lineReader = null;
+            out = new PrintWriter(new OutputStreamWriter(System.out, Charset.defaultCharset()), false);
+            session = processor.createSession(System.in, System.out, System.err);
+            sessionId = Sessions.newId(batch ? "batch" : "headless");
+        } else {
+            terminal = TerminalBuilder.builder()
+                    .name("gogo")
+                    .system(true)
+                    .nativeSignals(true)
+                    .signalHandler(Terminal.SignalHandler.SIG_IGN)
+                    .build();
+            openTerminalSession(batch ? "batch" : "console");
+
+            lineReader = LineReaderBuilder.builder()
+                    .appName("stamina")
+                    .terminal(terminal)
+                    .parser(new DefaultParser())
+                    .completer(completer)
+                    .build();
+            lineReader.setOpt(LineReader.Option.AUTO_FRESH_LINE);
+            // History entries are kept in memory: persistence is handled by HistoryStore.
+            lineReader.setVariable(LineReader.HISTORY_SIZE, config.historyMaxEntries());
+            session.put(".reader", lineReader);
+        }
+        initSession(config);
+        return lineReader;
+    }
+
+    /**
+     * Open a session on a terminal, without reading commands from this terminal:
+     * commands are run with {@link #execute(String)}, in the calling thread.
+     * This method is used to replay sessions in benchmarks.
+     */
+    void open(Terminal terminal, Config config) {
+        this.terminal = terminal;
+        commandTimeout = Math.max(0, config.commandTimeout());
+        openTerminalSession("replay");
+        initSession(config);
+    }
+
+    /**
+     * Close a session opened with {@link #open(Terminal, Config)}.
+     */
+    void close() {
+        session.close();
+    }
+
+    private void openTerminalSession(String kind) {
+        out = terminal.writer();
+        session = processor.createSession(
+                terminal.input(), terminal.output(), terminal.output());
+        sessionId = Sessions.newId(kind);
+        session.put(".terminal", terminal);
+        session.put("#TERM", (Function) (s, arguments) -> terminal.getType());
+        session.put("#COLUMNS", (Function) (s, arguments) -> terminal.getWidth());
+        session.put("#LINES", (Function) (s, arguments) -> terminal.getHeight());
+    }
+
+    private void initSession(Config config) {
+        printer = new TerminalPrinter(out, config.outputBufferSize(), config.outputFlushInterval());
+        session.put(".processor", processor);
+        session.put("SCOPE", "bundle:*");
+        session.put("#PWD", (Function) (s, arguments) -> s.currentDir().toString());
+        resultHistory = new ResultHistory(config.resultHistorySize(), config.resultHistoryMaxBytes());
+        resultHistory.install(session);
+    }
+
+    private void logStartupTime(long activationTime) {
+        logService.log(LogService.LOG_INFO, "Shell started in "
+                + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - activationTime)
+                + " ms after component activation");
+    }
+
+    private static boolean isHeadless(Config config) {
+        final String headless = config.headless().trim();
+        if ("true".equalsIgnoreCase(headless)) {
+            return true;
+        } else if ("false".equalsIgnoreCase(headless)) {
+            return false;
+        }
+        // Auto-detection: no console is available when stdin or stdout is redirected.
+        return System.console() == null;
+    }
+
+    private void runInteractive(LineReader lineReader, Config config) throws InterruptedException {
+        while (running.get()) {
+            synchronized (promptLock) {
+                printJobStatuses(null);
+                atPrompt = true;
+            }
+            try {
+                lineReader.readLine(config.prompt());
+            } finally {
+                synchronized (promptLock) {
+                    atPrompt = false;
+                }
+            }
+            final ParsedLine parsedLine = lineReader.getParsedLine();
+            if (parsedLine == null) {
+                throw new EndOfFileException();
+            }
+            appendHistory(parsedLine.line());
+            execute(parsedLine.line());
+        }
+    }
+
+    private void openHistory(BundleContext bundleContext, LineReader lineReader, Config config) {
+        if (!config.historyEnabled()) {
+            return;
+        }
+        final File historyFile = bundleContext.getDataFile("history");
+        if (historyFile == null) {
+            logService.log(LogService.LOG_WARNING,
+                    "No persistent storage available: command history is not saved");
+            return;
+        }
+        historyStore = new HistoryStore(historyFile.toPath(),
+                config.historyMaxEntries(), config.historyMaxBytes());
+        try {
+            historyStore.load(lineReader.getHistory());
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to load command history", e);
+        }
+    }
+
+    private void appendHistory(String line) {
+        if (historyStore == null) {
+            return;
+        }
+        try {
+            historyStore.append(Instant.now(), line);
+        } catch (IOException e) {
+            logService.log(LogService.LOG_WARNING, "Failed to save command history: disabling history", e);
+            closeHistory();
+        }
+    }
+
+    private void closeHistory() {
+        if (historyStore != null) {
+            try {
+                historyStore.close();
+            } catch (IOException ignore) {
+            }
+            historyStore = null;
+        }
+    }
+
+    private void runHeadless(Config config) throws IOException, InterruptedException {
+        awaitReadiness(config, null);
+        // Commands are executed as a script: a failing command does not stop the shell.
+        final ScriptRunner runner = new ScriptRunner(this::execute, true);
+        final BufferedReader reader = new BufferedReader(
+                new InputStreamReader(System.in, Charset.defaultCharset()));
+        runner.run(reader);
+    }
+
+    private void runCommand(Config config) throws InterruptedException {
+        final String cmdLine = String.join(" ", commandLine.arguments());
+        logService.log(LogService.LOG_INFO, "Executing Shell command-line: $ " + cmdLine);
+
+        // Commands may not be registered yet in the command processor:
+        // wait until required commands are available.
+        awaitReadiness(config, cmdLine);
+        execute(cmdLine);
+    }
+
+    private void runScript(Config config) throws IOException, InterruptedException {
+        boolean continueOnError = config.scriptContinueOnError();
+        String script = null;
+        boolean limitNext = false;
+        for (final String arg : commandLine.arguments()) {
+            if ("-c".equals(arg) || "--continue-on-error".equals(arg)) {
+                continueOnError = true;
+            } else if ("-f".equals(arg) || "--fail-fast".equals(arg)) {
+                continueOnError = false;
+            } else if ("-l".equals(arg) || "--limit".equals(arg)) {
+                limitNext = true;
+            } else if (limitNext) {
+                // Limit number of elements displayed for each result.
+                session.put(LazyResultConverter.LIMIT_VARIABLE, arg);
+                limitNext = false;
+            } else if (script == null) {
+                script = arg;
+            }
+        }
+        final boolean stdin = script == null || "-".equals(script);
+        logService.log(LogService.LOG_INFO, "Executing Shell script: "
+                + (stdin ? "<stdin>" : script));
+
+        awaitReadiness(config, null);
+        final ScriptRunner runner = new ScriptRunner(this::execute, continueOnError);
+        try (final BufferedReader reader = stdin
+                ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                : Files.newBufferedReader(Paths.get(script), StandardCharsets.UTF_8)) {
+            runner.run(reader);
+        } finally {
+            final String summary = runner.summary();
+            logService.log(runner.failures() == 0 ? LogService.LOG_INFO : LogService.LOG_WARNING, summary);
+            out.println(summary);
+            out.flush();
+        }
+    }
+
+    private void awaitBackgroundJobs() throws InterruptedException {
+        while (unreportedJobs.get() > 0) {
+            printJobStatus(finishedJobs.take(), null);
+        }
+    }
+
+    /**
+     * Print status of finished background jobs.
+     *
+     * @param lineReader line reader waiting for user input,
+     *                   or <code>null</code> to print from the shell thread
+     */
+    private void printJobStatuses(LineReader lineReader) {
+        BackgroundJob job;
+        while ((job = finishedJobs.poll()) != null) {
+            printJobStatus(job, lineReader);
+        }
+    }
+
+    private void printJobStatus(BackgroundJob job, LineReader lineReader) {
+        unreportedJobs.decrementAndGet();
+        if (lineReader != null) {
+            lineReader.printAbove(jobStatus(job));
+        } else {
+            printer.begin();
+            printer.println(jobStatus(job));
+            printer.flush();
+        }
+    }
+
+    private String jobStatus(BackgroundJob job) {
+        final StringBuilder buf = new StringBuilder(64);
+        buf.append('[').append(job.id()).append("] ");
+        switch (job.state()) {
+            case DONE:
+                buf.append("Done       ");
+                break;
+            case FAILED:
+                buf.append("Failed     ");
+                break;
+            default:
+                buf.append("Cancelled  ");
+                break;
+        }
+        buf.append(job.line());
+        final CompletableFuture<Object> completion = job.completion();
+        if (job.state() == BackgroundJob.State.DONE) {
+            final Object result = completion.getNow(null);
+            if (result != null) {
+                buf.append('\n').append(converters.format(session, result, Converter.INSPECT));
+            }
+        } else if (job.state() == BackgroundJob.State.FAILED) {
+            try {
+                completion.getNow(null);
+            } catch (CompletionException e) {
+                buf.append('\n').append(converters.format(session, e.getCause(), Converter.PART));
+            }
+        }
+        return buf.toString();
+    }
+
+    private void awaitReadiness(Config config, String cmdLine) throws InterruptedException {
+        final ReadinessBarrier barrier = new ReadinessBarrier(commandIndex, session)
+                .requireScopes(config.requiredScopes())
+                .failFastWhenStarted(this::isPlatformStarted);
+        if (cmdLine != null) {
+            barrier.requireCommandLine(cmdLine);
+        }
+        final long waitStart = System.nanoTime();
+        final boolean ready = barrier.await(config.readyTimeout());
+        final long waitTime = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - waitStart);
+        if (ready) {
+            logService.log(LogService.LOG_INFO,
+                    "Shell ready after " + waitTime + " ms");
+        } else {
+            logService.log(LogService.LOG_WARNING,
+                    "Required commands are not available after " + waitTime + " ms: executing anyway");
+        }
+    }
+
+    /**
+     * Return <code>true</code> if the platform is started:
+     * the system bundle is active once the framework start level is reached.
+     */
+    private boolean isPlatformStarted() {
+        try {
+            return bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION).getState() == Bundle.ACTIVE;
+        } catch (IllegalStateException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Execute a command-line, and print its result.
+     *
+     * @return <code>true</code> if the command was successfully executed
+     */
+    boolean execute(String line) throws InterruptedException {
+        printJobStatuses(null);
+        final String bgLine = BackgroundJobs.backgroundCommand(line);
+        if (bgLine != null) {
+            return executeInBackground(bgLine);
+        }
+
+        logService.log(LogService.LOG_DEBUG,
+                "Executing command: " + line);
+        final long timeout = watchdog.timeout(session, line, commandTimeout);
+        Object result = null;
+        Exception failure = null;
+        final long startTime = System.currentTimeMillis();
+        final long start = System.nanoTime();
+        final CommandWatchdog.Watch watch = watchdog.watch(session, line, timeout,
+                batch ? () -> abandon(line) : null);
+        try {
+            try {
+                result = resultCache.execute(session, line);
+            } catch (Exception e) {
+                failure = e;
+            }
+            awaitForegroundJob();
+        } catch (InterruptedException e) {
+            if (!watch.isTimedOut()) {
+                throw e;
+            }
+        } finally {
+            watch.close();
+        }
+        if (watch.isTimedOut()) {
+            // Clear interruption sent by the watchdog.
+            Thread.interrupted();
+            failure = new TimeoutException("Command timed out after " + timeout + " ms: " + line);
+        }
+        final long nanos = System.nanoTime() - start;
+
+        if (failure == null) {
+            commandStats.record(line, nanos, false);
+            audit(line, startTime, nanos, null);
+            if (result != null) {
+                printResult(converters.format(session, result, Converter.INSPECT));
+                // Store last command result in variable $_:
+                // commands without a result do not reset this variable.
+                resultHistory.add(result);
+            }
+            return true;
+        }
+
+        commandStats.record(line, nanos, true);
+        audit(line, startTime, nanos, failure);
+        final int type;
+        if (failure instanceof IllegalArgumentException || failure instanceof RejectedExecutionException
+                || failure instanceof TimeoutException) {
+            type = Converter.PART;
+        } else {
+            type = Converter.INSPECT;
+        }
+        printer.begin();
+        printer.println(converters.format(session, failure, type));
+        printer.flush();
+        resultHistory.setException(failure);
+        return false;
+    }
+
+    /**
+     * Abandon a command ignoring interruptions, while running a command-line or a script:
+     * the platform is stopped with a failure exit code.
+     * This method is called by the watchdog thread.
+     */
+    private void abandon(String line) {
+        logService.log(LogService.LOG_ERROR, "Command abandoned: stopping platform");
+        System.err.println("Command abandoned after timeout: " + line);
+        final Thread exitThread = new Thread(() -> {
+            try {
+                final Bundle sys = bundleContext.getBundle(Constants.SYSTEM_BUNDLE_LOCATION);
+                sys.stop();
+                if (sys instanceof Framework) {
+                    ((Framework) sys).waitForStop(STOP_TIMEOUT);
+                }
+            } catch (Exception ignore) {
+                // The platform is already shutting down.
+            }
+            // The shell thread is still running: the process is not exited otherwise.
+            System.exit(ABANDONED_EXIT_CODE);
+        }, "Stamina Shell Exit");
+        exitThread.start();
+    }
+
+    private void awaitForegroundJob() throws InterruptedException {
+        while (true) {
+            Job job = session.foregroundJob();
+            if (job != null) {
+                synchronized (job) {
+                    if (job.status() == Job.Status.Foreground) {
+                        job.wait();
+                    }
+                }
+            } else {
+                break;
+            }
+        }
+    }
+
+    private void printResult(CharSequence text) {
+        printer.begin();
+        if (text instanceof LazyResult) {
+            // Print elements one page at a time.
+            final int pageSize = interactive ? terminal.getHeight() - 1 : 0;
+            final int[] remaining = {pageSize};
+            ((LazyResult) text).forEachLine(line -> {
+                if (!printer.println(line)) {
+                    return false;
+                }
+                if (pageSize > 0) {
+                    remaining[0] -= countLines(line);
+                    if (remaining[0] <= 0) {
+                        remaining[0] = more(pageSize);
+                        return remaining[0] > 0;
+                    }
+                }
+                return true;
+            });
+        } else {
+            printer.println(text);
+        }
+        printer.flush();
+    }
+
+    private static int countLines(CharSequence text) {
+        int lines = 1;
+        for (int i = 0; i < text.length(); ++i) {
+            if (text.charAt(i) == '\n') {
+                ++lines;
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * Wait for the user to display more lines.
+     *
+     * @return number of lines to display, or <code>0</code> to stop printing
+     */
+    private int more(int pageSize) {
+        printer.print(MORE_PROMPT);
+        printer.flush();
+        final Attributes attrs = terminal.enterRawMode();
+        try {
+            while (!printer.isCancelled()) {
+                final int c = terminal.reader().read(100);
+                if (c == NonBlockingReader.READ_EXPIRED) {
+                    continue;
+                }
+                if (c == ' ') {
+                    return pageSize;
+                } else if (c == '\r' || c == '\n') {
+                    return 1;
+                } else if (c == 'q' || c == 'Q' || c < 0) {
+                    return 0;
+                }
+            }
+            return 0;
+        } catch (IOException e) {
+            return 0;
+        } finally {
+            terminal.setAttributes(attrs);
+            // Erase prompt.
+            terminal.writer().print('\r');
+            for (int i = 0; i < MORE_PROMPT.length(); ++i) {
+                terminal.writer().print(' ');
+            }
+            terminal.writer().print('\r');
+            terminal.flush();
+        }
+    }
+
+    private void audit(String line, long startTime, long nanos, Throwable error) {
+        final AuditLog audit = auditLog;
+        if (audit != null) {
+            audit.record(line, sessionId, startTime, nanos, error);
+        }
+    }
+
+    private boolean executeInBackground(String line) {
+        logService.log(LogService.LOG_DEBUG,
+                "Executing command in background: " + line);
+        try {
+            final BackgroundJob job = backgroundJobs.submit(session, line);
+            printer.begin();
+            printer.println("[" + job.id() + "] " + line);
+            printer.flush();
+            return true;
+        } catch (RejectedExecutionException e) {
+            printer.begin();
+            printer.println(e.getMessage());
+            printer.flush();
+            resultHistory.setException(e);
+            return false;
+        }
+    }
+
+    private static void registerCommand(BundleContext bundleContext, String name) {
+        // Register an empty command, since we are doing the hard work.
+        final Dictionary<String, Object> cmdProps = new Hashtable<>(1);
+        cmdProps.put(CommandConstants.COMMAND, name);
+        bundleContext.registerService(Command.class, new Command() {
+            @Override
+            public void help(PrintStream printStream) {
+            }
+
+            @Override
+            public boolean execute(Context context) throws Exception {
+                return false;
+            }
+        }, cmdProps);
+    }
+
     @Deactivate
     void deactivate() {
         running.set(false);
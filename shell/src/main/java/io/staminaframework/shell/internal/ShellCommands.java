@@ -16,15 +16,24 @@
 
 package io.staminaframework.shell.internal;
 
+import org.apache.felix.gogo.runtime.Closure;
 import org.apache.felix.gogo.runtime.CommandProxy;
 import org.apache.felix.gogo.runtime.CommandSessionImpl;
-import org.apache.felix.gogo.runtime.Reflective;
-import org.apache.felix.service.command.*;
+import org.apache.felix.service.command.CommandProcessor;
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Converter;
+import org.apache.felix.service.command.Descriptor;
+import org.apache.felix.service.command.Function;
+import org.apache.felix.service.command.Parameter;
+import org.jline.terminal.Terminal;
 import org.osgi.service.component.annotations.Component;
+import org.osgi.service.component.annotations.Reference;
 
-import java.lang.annotation.Annotation;
-import java.lang.reflect.Method;
+import java.time.LocalTime;
+import java.time.temporal.ChronoUnit;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Shell related commands.
@@ -34,168 +43,424 @@ import java.util.*;
 @Component(service = ShellCommands.class,
         property = {
                 CommandProcessor.COMMAND_SCOPE + "=shell",
-                CommandProcessor.COMMAND_FUNCTION + "=help"
+                CommandProcessor.COMMAND_FUNCTION + "=help",
+                CommandProcessor.COMMAND_FUNCTION + "=stats",
+                CommandProcessor.COMMAND_FUNCTION + "=bg",
+                CommandProcessor.COMMAND_FUNCTION + "=jobs",
+                CommandProcessor.COMMAND_FUNCTION + "=parallel",
+                CommandProcessor.COMMAND_FUNCTION + "=watch",
+                CommandProcessor.COMMAND_FUNCTION + "=mem",
+                // Commands are watched until interrupted by the user.
+                CommandWatchdog.COMMAND_TIMEOUT + ".watch:Long=-1"
         })
 public class ShellCommands {
     // Methods from this class are extracted from class Shell in bundle org.apache.felix.jline.
 
+    private static final String PARALLEL_FUNCTION = "_parallel_function";
+    private static final long MEM_ESTIMATE_LIMIT = 64L * 1024 * 1024;
+    private static final int MAX_SEARCH_RESULTS = 50;
+
+    @Reference
+    private CommandProcessor processor;
+    @Reference
+    private CommandIndex commandIndex;
+    @Reference
+    private CommandSearch commandSearch;
+    @Reference
+    private CommandStats commandStats;
+    @Reference
+    private ConverterRegistry converters;
+    @Reference
+    private BackgroundJobs backgroundJobs;
+
     private static Set<String> getCommands(CommandSession session) {
         return (Set<String>) session.get(CommandSessionImpl.COMMANDS);
     }
 
-    private Map<String, List<Method>> getReflectionCommands(CommandSession session) {
-        Map<String, List<Method>> commands = new TreeMap<>();
-        Set<String> names = getCommands(session);
-        for (String name : names) {
-            Function function = (Function) session.get(name);
-            if (function instanceof CommandProxy) {
-                Object target = ((CommandProxy) function).getTarget();
-                List<Method> methods = new ArrayList<>();
-                String func = name.substring(name.indexOf(':') + 1).toLowerCase();
-                List<String> funcs = new ArrayList<>();
-                funcs.add("is" + func);
-                funcs.add("get" + func);
-                funcs.add("set" + func);
-                if (Reflective.KEYWORDS.contains(func)) {
-                    funcs.add("_" + func);
+    @Descriptor("Display available commands")
+    public void help(CommandSession session) {
+        // Only commands provided by services are listed:
+        // checking a command does not require getting its service.
+        final Set<String> names = new TreeSet<>();
+        for (final String name : getCommands(session)) {
+            if (session.get(name) instanceof CommandProxy) {
+                names.add(name);
+            }
+        }
+        names.forEach(System.out::println);
+    }
+
+    @Descriptor("Displays information about specific commands, or search commands")
+    public void help(CommandSession session,
+                     @Descriptor("search commands matching keywords")
+                     @Parameter(names = {"-s", "--search"}, presentValue = "true", absentValue = "false")
+                             boolean search,
+                     @Descriptor("target commands, or keywords to search") String... names) {
+        if (search) {
+            final List<CommandSearch.Hit> hits = commandSearch.search(String.join(" ", names), MAX_SEARCH_RESULTS);
+            for (final CommandSearch.Hit hit : hits) {
+                if (hit.description() == null) {
+                    System.out.println(hit.command().name());
                 } else {
-                    funcs.add(func);
+                    System.out.println(String.format("%-32s %s", hit.command().name(), hit.description()));
                 }
-                for (Method method : target.getClass().getMethods()) {
-                    if (funcs.contains(method.getName().toLowerCase())) {
-                        methods.add(method);
-                    }
+            }
+            return;
+        }
+        if (names.length == 0) {
+            help(session);
+            return;
+        }
+        for (final String name : names) {
+            printHelp(session, name);
+        }
+    }
+
+    private void printHelp(CommandSession session, String name) {
+        CommandMetadata cmd = commandIndex.lookup(name);
+        if (cmd == null) {
+            cmd = lookupSessionCommand(session, name);
+        }
+        if (cmd == null) {
+            System.out.println("No help available for command: " + name);
+            return;
+        }
+        for (final CommandMetadata.Signature sig : cmd.signatures()) {
+            if (sig.description() == null) {
+                System.out.println("\n" + sig.methodName());
+            } else {
+                System.out.println("\n" + sig.methodName() + " - " + sig.description());
+            }
+
+            System.out.println("   scope: " + cmd.scope());
+
+            // Print flags and options.
+            if (!sig.flags().isEmpty()) {
+                System.out.println("   flags:");
+                for (final CommandMetadata.Option flag : sig.flags()) {
+                    printNames(flag);
+                    System.out.println("   " + flag.description());
+                }
+            }
+            if (!sig.options().isEmpty()) {
+                System.out.println("   options:");
+                for (final CommandMetadata.Option opt : sig.options()) {
+                    printNames(opt);
+                    System.out.println("   " + opt.description()
+                            + (opt.isOptional() ? " [optional]" : ""));
+                }
+            }
+            if (!sig.arguments().isEmpty()) {
+                System.out.println("   parameters:");
+                for (final CommandMetadata.Argument arg : sig.arguments()) {
+                    System.out.println("      " + arg.type() + "   " + arg.description());
                 }
-                commands.put(name, methods);
-                ((CommandProxy) function).ungetTarget();
             }
         }
-        return commands;
     }
 
-    private static <T extends Annotation> T findAnnotation(Annotation[] anns,
-                                                           Class<T> clazz) {
-        for (int i = 0; (anns != null) && (i < anns.length); i++) {
-            if (clazz.isInstance(anns[i])) {
-                return clazz.cast(anns[i]);
+    /**
+     * Get metadata about a command which is not provided by a service,
+     * such as a command added to the command processor by Gogo.
+     *
+     * @return command metadata, or <code>null</code> if none is found
+     */
+    private static CommandMetadata lookupSessionCommand(CommandSession session, String name) {
+        final String key = name.toLowerCase();
+        String scopedName = null;
+        if (key.indexOf(':') >= 0) {
+            scopedName = key;
+        } else {
+            for (final String c : new TreeSet<>(getCommands(session))) {
+                if (c.endsWith(":" + key)) {
+                    scopedName = c;
+                    break;
+                }
             }
         }
-        return null;
+        if (scopedName == null) {
+            return null;
+        }
+        final Object function = session.get(scopedName);
+        if (!(function instanceof CommandProxy)) {
+            return null;
+        }
+        final CommandProxy proxy = (CommandProxy) function;
+        final int i = scopedName.indexOf(':');
+        final CommandMetadata cmd = new CommandMetadata(
+                scopedName.substring(0, i), scopedName.substring(i + 1), null);
+        try {
+            cmd.resolve(proxy.getTarget().getClass());
+        } finally {
+            proxy.ungetTarget();
+        }
+        return cmd;
     }
 
-    @Descriptor("Display available commands")
-    public void help(CommandSession session) {
-        Map<String, List<Method>> commands = getReflectionCommands(session);
-        commands.keySet().forEach(System.out::println);
+    private static void printNames(CommandMetadata.Option opt) {
+        // Print all aliases.
+        final String[] names = opt.names();
+        System.out.print("      " + names[0]);
+        for (int aliasIdx = 1; aliasIdx < names.length; aliasIdx++) {
+            System.out.print(", " + names[aliasIdx]);
+        }
     }
 
-    @Descriptor("Displays information about a specific command")
-    public void help(CommandSession session, @Descriptor("target command") String name) {
-        Map<String, List<Method>> commands = getReflectionCommands(session);
+    @Descriptor("Display command statistics")
+    public void stats(@Descriptor("clear statistics once displayed")
+                      @Parameter(names = {"-r", "--reset"}, presentValue = "true", absentValue = "false")
+                              boolean reset) {
+        final List<CommandMetrics> metrics = new ArrayList<>(commandStats.metrics());
+        metrics.sort(Comparator.comparing(CommandMetrics::name));
+        System.out.println(String.format("%-32s %10s %8s %10s %10s %10s %10s",
+                "COMMAND", "COUNT", "ERRORS", "MEAN(ms)", "P50(ms)", "P99(ms)", "MAX(ms)"));
+        for (final CommandMetrics m : metrics) {
+            final LatencyHistogram h = m.latencies();
+            System.out.println(String.format("%-32s %10d %8d %10.3f %10.3f %10.3f %10.3f",
+                    m.name(), m.executions(), m.errors(),
+                    CommandStats.toMillis(h.mean()), CommandStats.toMillis(h.percentile(50)),
+                    CommandStats.toMillis(h.percentile(99)), CommandStats.toMillis(h.max())));
+        }
+        if (reset) {
+            commandStats.reset();
+        }
+    }
 
-        List<Method> methods = null;
+    @Descriptor("Run a command in background")
+    public String bg(CommandSession session, @Descriptor("command-line to execute") String... args) {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Missing command-line");
+        }
+        final BackgroundJob job = backgroundJobs.submit(session, String.join(" ", args));
+        return "[" + job.id() + "] " + job.line();
+    }
 
-        // If the specified command doesn't have a scope, then
-        // search for matching methods by ignoring the scope.
-        int scopeIdx = name.indexOf(':');
-        if (scopeIdx < 0) {
-            for (Map.Entry<String, List<Method>> entry : commands.entrySet()) {
-                String k = entry.getKey().substring(entry.getKey().indexOf(':') + 1);
-                if (name.equals(k)) {
-                    name = entry.getKey();
-                    methods = entry.getValue();
-                    break;
+    @Descriptor("Display background jobs")
+    public void jobs() {
+        System.out.println(String.format("%6s %-10s %12s  %s", "ID", "STATE", "TIME(ms)", "COMMAND"));
+        for (final BackgroundJob job : backgroundJobs.jobs()) {
+            System.out.println(String.format("%6d %-10s %12.3f  %s",
+                    job.id(), job.state(), CommandStats.toMillis(job.runningTime()), job.line()));
+        }
+    }
+
+    @Descriptor("Run commands in parallel, each one in its own session")
+    public List<Object> parallel(CommandSession session,
+                                 @Descriptor("maximum number of commands running at the same time")
+                                 @Parameter(names = {"-p", "--parallelism"}, absentValue = "0")
+                                         int parallelism,
+                                 @Descriptor("command-lines to execute") String... commandLines)
+            throws InterruptedException {
+        final List<Callable<Object>> tasks = new ArrayList<>(commandLines.length);
+        for (final String line : commandLines) {
+            tasks.add(() -> {
+                final CommandSession fork = Sessions.fork(processor, session);
+                final long start = System.nanoTime();
+                try {
+                    final Object result = fork.execute(line);
+                    commandStats.record(line, System.nanoTime() - start, false);
+                    return result;
+                } catch (Exception e) {
+                    commandStats.record(line, System.nanoTime() - start, true);
+                    throw e;
+                } finally {
+                    fork.close();
                 }
-            }
+            });
         }
-        // Otherwise directly look up matching methods.
-        else {
-            methods = commands.get(name);
+        return invokeAll(tasks, parallelism);
+    }
+
+    @Descriptor("Run a closure in parallel for each element of a collection")
+    public List<Object> parallel(CommandSession session,
+                                 @Descriptor("maximum number of closures running at the same time")
+                                 @Parameter(names = {"-p", "--parallelism"}, absentValue = "0")
+                                         int parallelism,
+                                 @Descriptor("closure to execute, without access to arguments of enclosing closures")
+                                         Function function,
+                                 @Descriptor("closure arguments") Collection<?> elements)
+            throws InterruptedException {
+        final String line = function.toString();
+        final List<Callable<Object>> tasks = new ArrayList<>(elements.size());
+        for (final Object e : elements) {
+            tasks.add(() -> {
+                final CommandSession fork = Sessions.fork(processor, session);
+                final long start = System.nanoTime();
+                try {
+                    final Object result = bind(function, fork).execute(fork, Collections.singletonList(e));
+                    commandStats.record(line, System.nanoTime() - start, false);
+                    return result;
+                } catch (Exception ex) {
+                    commandStats.record(line, System.nanoTime() - start, true);
+                    throw ex;
+                } finally {
+                    fork.close();
+                }
+            });
         }
+        return invokeAll(tasks, parallelism);
+    }
 
-        if ((methods != null) && (methods.size() > 0)) {
-            for (Method m : methods) {
-                Descriptor d = m.getAnnotation(Descriptor.class);
-                if (d == null) {
-                    System.out.println("\n" + m.getName());
-                } else {
-                    System.out.println("\n" + m.getName() + " - " + d.value());
+    /**
+     * Get a function bound to a session.
+     * Gogo closures are not thread-safe: a new closure is created
+     * from the same source in the target session.
+     * <p>
+     * The new closure only sees session variables: arguments of an enclosing
+     * closure (such as <code>$it</code> or <code>$1</code>) captured by
+     * the original closure are not available.
+     */
+    private static Function bind(Function function, CommandSession session) throws Exception {
+        if (!(function instanceof Closure)) {
+            return function;
+        }
+        String source = function.toString().trim();
+        if (!source.startsWith("{")) {
+            source = "{ " + source + " }";
+        }
+        session.execute(PARALLEL_FUNCTION + " = " + source);
+        final Object f = session.get(PARALLEL_FUNCTION);
+        return f instanceof Function ? (Function) f : function;
+    }
+
+    /**
+     * Execute tasks, and collect results or exceptions in task order.
+     */
+    private static List<Object> invokeAll(List<Callable<Object>> tasks, int parallelism)
+            throws InterruptedException {
+        if (tasks.isEmpty()) {
+            return Collections.emptyList();
+        }
+        final int threads = Math.min(tasks.size(),
+                parallelism > 0 ? parallelism : Runtime.getRuntime().availableProcessors());
+        final AtomicInteger threadCount = new AtomicInteger();
+        final ExecutorService executor = Executors.newFixedThreadPool(threads, r -> {
+            final Thread t = new Thread(r, "Stamina Shell Parallel " + threadCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        try {
+            final List<Object> results = new ArrayList<>(tasks.size());
+            for (final Future<Object> f : executor.invokeAll(tasks)) {
+                try {
+                    results.add(f.get());
+                } catch (ExecutionException e) {
+                    results.add(e.getCause());
                 }
+            }
+            return results;
+        } finally {
+            executor.shutdownNow();
+        }
+    }
 
-                System.out.println("   scope: " + name.substring(0, name.indexOf(':')));
-
-                // Get flags and options.
-                Class<?>[] paramTypes = m.getParameterTypes();
-                Map<String, Parameter> flags = new TreeMap<>();
-                Map<String, String> flagDescs = new TreeMap<>();
-                Map<String, Parameter> options = new TreeMap<>();
-                Map<String, String> optionDescs = new TreeMap<>();
-                List<String> params = new ArrayList<>();
-                Annotation[][] anns = m.getParameterAnnotations();
-                for (int paramIdx = 0; paramIdx < anns.length; paramIdx++) {
-                    Class<?> paramType = m.getParameterTypes()[paramIdx];
-                    if (paramType == CommandSession.class) {
-                        /* Do not bother the user with a CommandSession. */
-                        continue;
+    @Descriptor("Execute a command periodically, displaying its result")
+    public void watch(CommandSession session,
+                      @Descriptor("interval between executions, in seconds") double interval,
+                      @Descriptor("command-line to execute") String... args) throws InterruptedException {
+        if (args.length == 0) {
+            throw new IllegalArgumentException("Missing command-line");
+        }
+        if (interval <= 0) {
+            throw new IllegalArgumentException("Interval must be positive: " + interval);
+        }
+        final Object terminal = session.get(".terminal");
+        if (!(terminal instanceof Terminal)) {
+            throw new IllegalArgumentException("No terminal available in this session");
+        }
+        final String line = String.join(" ", args);
+        final long intervalMillis = Math.max(1, (long) (interval * 1000));
+        final String headerPrefix = "Every " + interval + "s: " + line + "    ";
+        final WatchDisplay display = new WatchDisplay((Terminal) terminal);
+        final StringBuilder header = new StringBuilder(headerPrefix.length() + 16);
+        final StringBuilder text = new StringBuilder(1024);
+        final int maxLines = Math.max(1, ((Terminal) terminal).getHeight());
+        try {
+            // Ctrl-C interrupts this thread.
+            while (!Thread.currentThread().isInterrupted()) {
+                text.setLength(0);
+                try {
+                    final Object result = session.execute(line);
+                    if (result != null) {
+                        appendLines(converters.format(session, result, Converter.INSPECT), text, maxLines);
                     }
-                    Parameter p = findAnnotation(anns[paramIdx], Parameter.class);
-                    d = findAnnotation(anns[paramIdx], Descriptor.class);
-                    if (p != null) {
-                        if (p.presentValue().equals(Parameter.UNSPECIFIED)) {
-                            options.put(p.names()[0], p);
-                            if (d != null) {
-                                optionDescs.put(p.names()[0], d.value());
-                            }
-                        } else {
-                            flags.put(p.names()[0], p);
-                            if (d != null) {
-                                flagDescs.put(p.names()[0], d.value());
-                            }
-                        }
-                    } else if (d != null) {
-                        params.add(paramTypes[paramIdx].getSimpleName());
-                        params.add(d.value());
-                    } else {
-                        params.add(paramTypes[paramIdx].getSimpleName());
-                        params.add("");
+                } catch (InterruptedException e) {
+                    throw e;
+                } catch (Exception e) {
+                    if (Thread.currentThread().isInterrupted()) {
+                        break;
                     }
+                    text.append(converters.format(session, e, Converter.PART));
                 }
+                header.setLength(0);
+                header.append(headerPrefix).append(LocalTime.now().truncatedTo(ChronoUnit.SECONDS));
+                display.update(header, text);
+                Thread.sleep(intervalMillis);
+            }
+        } catch (InterruptedException e) {
+            // Stop watching.
+        } finally {
+            display.close();
+        }
+    }
 
-                // Print flags and options.
-                if (flags.size() > 0) {
-                    System.out.println("   flags:");
-                    for (Map.Entry<String, Parameter> entry : flags.entrySet()) {
-                        // Print all aliases.
-                        String[] names = entry.getValue().names();
-                        System.out.print("      " + names[0]);
-                        for (int aliasIdx = 1; aliasIdx < names.length; aliasIdx++) {
-                            System.out.print(", " + names[aliasIdx]);
-                        }
-                        System.out.println("   " + flagDescs.get(entry.getKey()));
-                    }
-                }
-                if (options.size() > 0) {
-                    System.out.println("   options:");
-                    for (Map.Entry<String, Parameter> entry : options.entrySet()) {
-                        // Print all aliases.
-                        String[] names = entry.getValue().names();
-                        System.out.print("      " + names[0]);
-                        for (int aliasIdx = 1; aliasIdx < names.length; aliasIdx++) {
-                            System.out.print(", " + names[aliasIdx]);
-                        }
-                        System.out.println("   "
-                                + optionDescs.get(entry.getKey())
-                                + ((entry.getValue().absentValue() == null) ? ""
-                                : " [optional]"));
-                    }
+    private static void appendLines(CharSequence formatted, StringBuilder buf, int maxLines) {
+        if (formatted instanceof LazyResult) {
+            // Only format lines which can be displayed.
+            final int[] lines = {0};
+            ((LazyResult) formatted).forEachLine(l -> {
+                buf.append(l).append('\n');
+                return ++lines[0] < maxLines;
+            });
+        } else {
+            buf.append(formatted);
+        }
+    }
+
+    @Descriptor("Display estimated memory retained by session variables and command results")
+    public void mem(CommandSession session,
+                    @Descriptor("clear command results once displayed")
+                    @Parameter(names = {"-c", "--clear"}, presentValue = "true", absentValue = "false")
+                            boolean clear) {
+        System.out.println(String.format("%-24s %-40s %12s  %s", "VARIABLE", "TYPE", "SIZE(KiB)", "HELD"));
+        long total = 0;
+        final Set<String> variables = (Set<String>) session.get(CommandSessionImpl.VARIABLES);
+        if (variables != null) {
+            for (final String name : new TreeSet<>(variables)) {
+                // Computed and internal variables are not displayed.
+                if (name.startsWith("#") || name.startsWith(".")) {
+                    continue;
                 }
-                if (params.size() > 0) {
-                    System.out.println("   parameters:");
-                    for (Iterator<String> it = params.iterator(); it.hasNext(); ) {
-                        System.out.println("      " + it.next() + "   " + it.next());
-                    }
+                final Object value = session.get(name);
+                final long size = SizeEstimator.estimate(value, MEM_ESTIMATE_LIMIT);
+                total += size;
+                printMem(name, value, size, size > MEM_ESTIMATE_LIMIT, "strong");
+            }
+        }
+        final Object history = session.get(ResultHistory.HISTORY_VARIABLE);
+        if (history instanceof ResultHistory) {
+            for (final ResultHistory.EntryInfo e : ((ResultHistory) history).entries()) {
+                if (e.isStrong()) {
+                    total += e.size();
                 }
+                printMem(e.name(), e.value(), e.size(), e.isTruncated(),
+                        e.isStrong() ? "strong" : e.value() == null ? "collected" : "soft");
+            }
+            if (clear) {
+                ((ResultHistory) history).clear();
             }
         }
+        System.out.println(String.format("%-24s %-40s %12s", "TOTAL", "",
+                formatSize(total, total > MEM_ESTIMATE_LIMIT)));
+    }
+
+    private static void printMem(String name, Object value, long size, boolean truncated, String held) {
+        System.out.println(String.format("%-24s %-40s %12s  %s", name,
+                value == null ? "-" : value.getClass().getName(), formatSize(size, truncated), held));
+    }
+
+    private static String formatSize(long size, boolean truncated) {
+        final String kib = String.format("%.1f", size / 1024d);
+        return truncated ? ">" + kib : kib;
     }
 }
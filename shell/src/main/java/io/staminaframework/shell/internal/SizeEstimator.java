@@ -0,0 +1,175 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.osgi.framework.Bundle;
+import org.osgi.framework.BundleContext;
+import org.osgi.framework.ServiceReference;
+import org.osgi.framework.ServiceRegistration;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Estimate memory retained by an object graph.
+ * <p>
+ * Object sizes are computed from field layouts, assuming a 64-bit JVM
+ * with compressed references. The object graph is walked until a size limit
+ * is reached, so that estimating a huge object is never expensive.
+ * Classes, class loaders, threads and OSGi framework objects (bundles,
+ * bundle contexts and service references or registrations) are not included
+ * in estimations, since these objects are shared with the whole platform.
+ *
+ * @author Stamina Framework developers
+ */
+final class SizeEstimator {
+    private static final int HEADER_SIZE = 12;
+    private static final int ARRAY_HEADER_SIZE = 16;
+    private static final int REFERENCE_SIZE = 4;
+    private static final int ALIGNMENT = 8;
+
+    private static final ClassValue<Layout> LAYOUTS = new ClassValue<Layout>() {
+        @Override
+        protected Layout computeValue(Class<?> type) {
+            return new Layout(type);
+        }
+    };
+
+    private SizeEstimator() {
+    }
+
+    /**
+     * Estimate memory retained by an object.
+     *
+     * @param root  object to estimate
+     * @param limit size (in bytes) after which estimation stops
+     * @return estimated size (in bytes), greater than <code>limit</code>
+     * if estimation was stopped
+     */
+    static long estimate(Object root, long limit) {
+        if (root == null) {
+            return 0;
+        }
+        final Set<Object> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        final ArrayDeque<Object> pending = new ArrayDeque<>();
+        pending.push(root);
+        long size = 0;
+        while (!pending.isEmpty() && size <= limit) {
+            final Object obj = pending.pop();
+            if (isShared(obj) || !visited.add(obj)) {
+                continue;
+            }
+            final Class<?> type = obj.getClass();
+            if (type.isArray()) {
+                final int length = Array.getLength(obj);
+                final Class<?> componentType = type.getComponentType();
+                if (componentType.isPrimitive()) {
+                    size += align(ARRAY_HEADER_SIZE + (long) length * primitiveSize(componentType));
+                } else {
+                    size += align(ARRAY_HEADER_SIZE + (long) length * REFERENCE_SIZE);
+                    if (size > limit) {
+                        // Elements of a huge array are never walked.
+                        break;
+                    }
+                    final Object[] elements = (Object[]) obj;
+                    for (int i = 0; i < length; ++i) {
+                        if (elements[i] != null) {
+                            pending.push(elements[i]);
+                        }
+                    }
+                }
+            } else {
+                final Layout layout = LAYOUTS.get(type);
+                size += layout.shallowSize;
+                for (final Field f : layout.references) {
+                    try {
+                        final Object value = f.get(obj);
+                        if (value != null) {
+                            pending.push(value);
+                        }
+                    } catch (IllegalAccessException ignore) {
+                    }
+                }
+            }
+        }
+        return size;
+    }
+
+    private static boolean isShared(Object obj) {
+        return obj instanceof Class || obj instanceof ClassLoader || obj instanceof Thread
+                || obj instanceof Bundle || obj instanceof BundleContext
+                || obj instanceof ServiceReference || obj instanceof ServiceRegistration;
+    }
+
+    private static long align(long size) {
+        return (size + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+    }
+
+    private static int primitiveSize(Class<?> type) {
+        if (type == long.class || type == double.class) {
+            return 8;
+        }
+        if (type == int.class || type == float.class) {
+            return 4;
+        }
+        if (type == short.class || type == char.class) {
+            return 2;
+        }
+        return 1;
+    }
+
+    /**
+     * Instance field layout of a class.
+     */
+    private static final class Layout {
+        final long shallowSize;
+        final Field[] references;
+
+        Layout(final Class<?> type) {
+            long size = HEADER_SIZE;
+            final List<Field> refs = new ArrayList<>(4);
+            for (Class<?> c = type; c != null; c = c.getSuperclass()) {
+                for (final Field f : c.getDeclaredFields()) {
+                    if (Modifier.isStatic(f.getModifiers())) {
+                        continue;
+                    }
+                    final Class<?> fieldType = f.getType();
+                    if (fieldType.isPrimitive()) {
+                        size += primitiveSize(fieldType);
+                    } else {
+                        size += REFERENCE_SIZE;
+                        try {
+                            f.setAccessible(true);
+                            refs.add(f);
+                        } catch (RuntimeException ignore) {
+                            // Field is not accessible: referenced object is not included.
+                        }
+                    }
+                }
+            }
+            shallowSize = align(size);
+            references = refs.toArray(new Field[0]);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import java.util.*;
+
+/**
+ * Format stack traces.
+ * <p>
+ * Unlike {@link Throwable#printStackTrace()}, the number of printed frames
+ * is bounded, repeated frames (such as recursive calls) are collapsed,
+ * and frames from filtered packages may be hidden.
+ * Formatted stack traces are cached by exception chain and stack frames.
+ * This class is thread-safe.
+ *
+ * @author Stamina Framework developers
+ */
+final class StackTraceFormatter {
+    /**
+     * Maximum length of a repeated sequence of frames.
+     */
+    private static final int MAX_REPEAT_PERIOD = 8;
+
+    private final int maxFrames;
+    private final String[] filteredPackages;
+    private final Map<CacheKey, String> cache;
+
+    /**
+     * Create a new instance.
+     *
+     * @param maxFrames        maximum number of frames printed for each exception
+     * @param filteredPackages prefixes of packages whose frames are hidden
+     * @param cacheSize        maximum number of cached stack traces
+     */
+    StackTraceFormatter(final int maxFrames, final String[] filteredPackages, final int cacheSize) {
+        this.maxFrames = maxFrames <= 0 ? Integer.MAX_VALUE : maxFrames;
+        this.filteredPackages = filteredPackages == null ? new String[0] : filteredPackages;
+        final int maxEntries = Math.max(0, cacheSize);
+        this.cache = new LinkedHashMap<CacheKey, String>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<CacheKey, String> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Format a stack trace.
+     */
+    public String format(Throwable t) {
+        final CacheKey key = cacheKey(t);
+        synchronized (cache) {
+            final String cached = cache.get(key);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        final StringBuilder buf = new StringBuilder(512);
+        final Set<Throwable> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        format(t, new StackTraceElement[0], "", "", buf, visited);
+        final String result = buf.toString();
+        synchronized (cache) {
+            cache.put(key, result);
+        }
+        return result;
+    }
+
+    private void format(Throwable t, StackTraceElement[] enclosingTrace,
+                        String caption, String prefix, StringBuilder buf, Set<Throwable> visited) {
+        if (!visited.add(t)) {
+            buf.append(prefix).append(caption).append("[CIRCULAR REFERENCE: ").append(t).append("]\n");
+            return;
+        }
+        buf.append(prefix).append(caption).append(t).append('\n');
+
+        // Compute number of frames in common with enclosing trace.
+        final StackTraceElement[] trace = t.getStackTrace();
+        int m = trace.length - 1;
+        int n = enclosingTrace.length - 1;
+        while (m >= 0 && n >= 0 && trace[m].equals(enclosingTrace[n])) {
+            m--;
+            n--;
+        }
+        final int framesInCommon = trace.length - 1 - m;
+
+        int printed = 0;
+        int filtered = 0;
+        int i = 0;
+        while (i <= m) {
+            if (printed >= maxFrames) {
+                break;
+            }
+            if (isFiltered(trace[i])) {
+                ++filtered;
+                ++i;
+                continue;
+            }
+            if (filtered != 0) {
+                buf.append(prefix).append("\t... ").append(filtered).append(" filtered\n");
+                filtered = 0;
+            }
+
+            // Look for a repeated sequence of frames starting here.
+            int period = 0;
+            int repeats = 0;
+            for (int p = 1; p <= MAX_REPEAT_PERIOD && i + 2 * p - 1 <= m; ++p) {
+                final int r = countRepeats(trace, i, p, m);
+                if (r > 1 && r * p > repeats * period) {
+                    period = p;
+                    repeats = r;
+                }
+            }
+            if (repeats > 1) {
+                for (int j = i; j < i + period && printed < maxFrames; ++j) {
+                    buf.append(prefix).append("\tat ").append(trace[j]).append('\n');
+                    ++printed;
+                }
+                buf.append(prefix).append("\t... ");
+                if (period == 1) {
+                    buf.append("frame");
+                } else {
+                    buf.append(period).append(" frames");
+                }
+                buf.append(" repeated ").append(repeats - 1).append(" more time(s)\n");
+                i += period * repeats;
+            } else {
+                buf.append(prefix).append("\tat ").append(trace[i]).append('\n');
+                ++printed;
+                ++i;
+            }
+        }
+        if (filtered != 0) {
+            buf.append(prefix).append("\t... ").append(filtered).append(" filtered\n");
+        }
+        if (i <= m) {
+            buf.append(prefix).append("\t... ").append(m - i + 1).append(" frame(s) omitted\n");
+        }
+        if (framesInCommon != 0) {
+            buf.append(prefix).append("\t... ").append(framesInCommon).append(" more\n");
+        }
+
+        for (final Throwable se : t.getSuppressed()) {
+            format(se, trace, "Suppressed: ", prefix + "\t", buf, visited);
+        }
+        final Throwable cause = t.getCause();
+        if (cause != null) {
+            format(cause, trace, "Caused by: ", prefix, buf, visited);
+        }
+    }
+
+    private static int countRepeats(StackTraceElement[] trace, int start, int period, int last) {
+        int repeats = 1;
+        int next = start + period;
+        while (next + period - 1 <= last) {
+            for (int k = 0; k < period; ++k) {
+                if (!trace[start + k].equals(trace[next + k])) {
+                    return repeats;
+                }
+            }
+            ++repeats;
+            next += period;
+        }
+        return repeats;
+    }
+
+    private boolean isFiltered(StackTraceElement e) {
+        final String className = e.getClassName();
+        for (final String pkg : filteredPackages) {
+            if (className.startsWith(pkg)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Build a cache key from everything {@link #format(Throwable)} prints,
+     * visiting exceptions in the same order.
+     */
+    private static CacheKey cacheKey(Throwable t) {
+        final List<Object> parts = new ArrayList<>(8);
+        describe(t, parts, new IdentityHashMap<>());
+        return new CacheKey(parts.toArray());
+    }
+
+    private static void describe(Throwable t, List<Object> parts, Map<Throwable, Integer> visited) {
+        final Integer index = visited.get(t);
+        if (index != null) {
+            // Circular reference to an exception already described.
+            parts.add(index);
+            return;
+        }
+        visited.put(t, visited.size());
+        parts.add(t.toString());
+        parts.add(t.getStackTrace());
+        final Throwable[] suppressed = t.getSuppressed();
+        parts.add(suppressed.length);
+        for (final Throwable se : suppressed) {
+            describe(se, parts, visited);
+        }
+        final Throwable cause = t.getCause();
+        parts.add(cause != null);
+        if (cause != null) {
+            describe(cause, parts, visited);
+        }
+    }
+
+    private static final class CacheKey {
+        // Exception classes are not referenced, since bundles may be uninstalled:
+        // only exception descriptions and stack frames are kept.
+        private final Object[] parts;
+        private final int hashCode;
+
+        CacheKey(final Object[] parts) {
+            this.parts = parts;
+            this.hashCode = Arrays.deepHashCode(parts);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final CacheKey cacheKey = (CacheKey) o;
+            return hashCode == cacheKey.hashCode && Arrays.deepEquals(parts, cacheKey.parts);
+        }
+
+        @Override
+        public int hashCode() {
+            return hashCode;
+        }
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+/**
+ * Telnet input decoder, stripping protocol commands from a byte stream:
+ * see RFC 854 and RFC 855.
+ * Option negotiation and subnegotiation are ignored.
+ * This class is not thread-safe.
+ *
+ * @author Stamina Framework developers
+ */
+class TelnetDecoder {
+    /**
+     * Value returned by {@link #decode(int)} when a byte is part of a telnet command.
+     */
+    static final int NO_DATA = -1;
+
+    static final int IAC = 255;
+    static final int SB = 250;
+    static final int SE = 240;
+    static final int WILL = 251;
+    static final int DONT = 254;
+
+    private static final int STATE_DATA = 0;
+    private static final int STATE_COMMAND = 1;
+    private static final int STATE_OPTION = 2;
+    private static final int STATE_SUBNEGOTIATION = 3;
+    private static final int STATE_SUBNEGOTIATION_COMMAND = 4;
+
+    private int state = STATE_DATA;
+
+    /**
+     * Decode an input byte.
+     *
+     * @param b unsigned byte value
+     * @return data byte, or {@link #NO_DATA} if this byte is part of a telnet command
+     */
+    int decode(int b) {
+        switch (state) {
+            case STATE_COMMAND:
+                if (b == IAC) {
+                    // Escaped data byte.
+                    state = STATE_DATA;
+                    return b;
+                }
+                if (b == SB) {
+                    state = STATE_SUBNEGOTIATION;
+                } else if (b >= WILL && b <= DONT) {
+                    state = STATE_OPTION;
+                } else {
+                    state = STATE_DATA;
+                }
+                return NO_DATA;
+            case STATE_OPTION:
+                // Ignore telnet option negotiation.
+                state = STATE_DATA;
+                return NO_DATA;
+            case STATE_SUBNEGOTIATION:
+                if (b == IAC) {
+                    state = STATE_SUBNEGOTIATION_COMMAND;
+                }
+                return NO_DATA;
+            case STATE_SUBNEGOTIATION_COMMAND:
+                state = b == SE ? STATE_DATA : STATE_SUBNEGOTIATION;
+                return NO_DATA;
+            default:
+                if (b == IAC) {
+                    state = STATE_COMMAND;
+                    return NO_DATA;
+                }
+                return b;
+        }
+    }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Print command results to a terminal, or to the standard output.
+ * <p>
+ * Text is written in chunks through a bounded buffer, which is flushed
+ * to the writer when it is full or when the flush interval has elapsed.
+ * Printing can be cancelled (when an user hits Ctrl-C) between two chunks.
+ * This class is meant to be used by a single thread, except for {@link #cancel()}.
+ * <p>
+ * Only writing is bounded: printed text is already formatted. Results are only
+ * formatted incrementally when the converter returns a {@link LazyResult}.
+ *
+ * @author Stamina Framework developers
+ */
+final class TerminalPrinter {
+    private final PrintWriter writer;
+    private final char[] buffer;
+    private final long flushInterval;
+    private int count;
+    private long lastFlush;
+    private volatile boolean cancelled;
+    private boolean cancelReported;
+
+    /**
+     * Create a new instance.
+     *
+     * @param writer        writer to print to
+     * @param bufferSize    buffer size, in characters
+     * @param flushInterval maximum time between two flushes, in milliseconds
+     */
+    TerminalPrinter(final PrintWriter writer, final int bufferSize, final long flushInterval) {
+        this.writer = writer;
+        this.buffer = new char[Math.max(256, bufferSize)];
+        this.flushInterval = TimeUnit.MILLISECONDS.toNanos(flushInterval);
+    }
+
+    /**
+     * Start printing a new result: a previous cancellation is cleared.
+     */
+    public void begin() {
+        cancelled = false;
+        cancelReported = false;
+        lastFlush = System.nanoTime();
+    }
+
+    /**
+     * Cancel current printing. Remaining text is discarded.
+     */
+    public void cancel() {
+        cancelled = true;
+    }
+
+    /**
+     * Return <code>true</code> if printing was cancelled.
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Print text, followed by a line separator.
+     *
+     * @return <code>false</code> if printing was cancelled
+     */
+    public boolean println(CharSequence text) {
+        return print(text) && print(System.lineSeparator());
+    }
+
+    /**
+     * Print text.
+     *
+     * @return <code>false</code> if printing was cancelled
+     */
+    public boolean print(CharSequence text) {
+        if (text == null) {
+            text = "null";
+        }
+        final int len = text.length();
+        int start = 0;
+        while (start < len) {
+            if (checkCancelled()) {
+                return false;
+            }
+            final int n = Math.min(len - start, buffer.length - count);
+            if (text instanceof String) {
+                ((String) text).getChars(start, start + n, buffer, count);
+            } else if (text instanceof StringBuilder) {
+                ((StringBuilder) text).getChars(start, start + n, buffer, count);
+            } else {
+                for (int i = 0; i < n; ++i) {
+                    buffer[count + i] = text.charAt(start + i);
+                }
+            }
+            count += n;
+            start += n;
+            if (count == buffer.length || System.nanoTime() - lastFlush >= flushInterval) {
+                flush();
+            }
+        }
+        return !checkCancelled();
+    }
+
+    /**
+     * Write buffered text.
+     */
+    public void flush() {
+        if (count > 0) {
+            writer.write(buffer, 0, count);
+            count = 0;
+        }
+        writer.flush();
+        lastFlush = System.nanoTime();
+    }
+
+    private boolean checkCancelled() {
+        if (!cancelled && !Thread.currentThread().isInterrupted()) {
+            return false;
+        }
+        if (!cancelReported) {
+            // Discard buffered text.
+            cancelReported = true;
+            count = 0;
+            writer.println();
+            writer.println("^C");
+            writer.flush();
+        }
+        cancelled = true;
+        return true;
+    }
+}
@@ -0,0 +1,181 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.jline.terminal.Terminal;
+import org.jline.utils.InfoCmp.Capability;
+
+import java.io.PrintWriter;
+import java.util.Arrays;
+
+/**
+ * Display periodically updated text on a terminal.
+ * <p>
+ * Only lines which changed since the last update are redrawn, when the terminal
+ * supports cursor addressing. Lines are copied to character buffers, which are
+ * reused between updates: lines are compared and written without creating strings.
+ *
+ * @author Stamina Framework developers
+ */
+final class WatchDisplay {
+    private final Terminal terminal;
+    private final PrintWriter writer;
+    private final boolean differential;
+    private char[][] previous = new char[0][];
+    private char[][] current = new char[0][];
+    private int[] previousLengths = new int[0];
+    private int[] currentLengths = new int[0];
+    private int previousCount = -1;
+    private int currentCount;
+    private int lastRows;
+    private int lastColumns;
+
+    WatchDisplay(final Terminal terminal) {
+        this.terminal = terminal;
+        this.writer = terminal.writer();
+        this.differential = terminal.getStringCapability(Capability.cursor_address) != null
+                && terminal.getStringCapability(Capability.clr_eol) != null;
+    }
+
+    /**
+     * Display new text.
+     */
+    public void update(CharSequence header, CharSequence text) {
+        final int rows = Math.max(1, terminal.getHeight() - 1);
+        final int columns = terminal.getWidth() <= 0 ? Integer.MAX_VALUE : terminal.getWidth();
+        if (rows != lastRows || columns != lastColumns) {
+            // Terminal was resized: redraw everything.
+            lastRows = rows;
+            lastColumns = columns;
+            previousCount = -1;
+        }
+        ensureCapacity(rows);
+        currentCount = 0;
+        addLine(header, 0, header.length(), columns);
+        addLine("", 0, 0, columns);
+        int start = 0;
+        for (int i = 0; i <= text.length() && currentCount < rows; ++i) {
+            if (i == text.length() || text.charAt(i) == '\n') {
+                int end = i;
+                if (end > start && text.charAt(end - 1) == '\r') {
+                    --end;
+                }
+                if (i < text.length() || end > start) {
+                    addLine(text, start, end, columns);
+                }
+                start = i + 1;
+            }
+        }
+
+        if (!differential || previousCount < 0) {
+            redraw();
+        } else {
+            for (int row = 0; row < Math.max(currentCount, previousCount); ++row) {
+                if (row < currentCount && row < previousCount && isUnchanged(row)) {
+                    continue;
+                }
+                terminal.puts(Capability.cursor_address, row, 0);
+                if (row < currentCount) {
+                    writer.write(current[row], 0, currentLengths[row]);
+                }
+                terminal.puts(Capability.clr_eol);
+            }
+            terminal.puts(Capability.cursor_address, currentCount, 0);
+        }
+        terminal.flush();
+
+        // Swap buffers: previous lines are overwritten on next update.
+        final char[][] tmp = previous;
+        previous = current;
+        current = tmp;
+        final int[] tmpLengths = previousLengths;
+        previousLengths = currentLengths;
+        currentLengths = tmpLengths;
+        previousCount = currentCount;
+    }
+
+    private void redraw() {
+        if (differential) {
+            terminal.puts(Capability.clear_screen);
+        } else {
+            writer.println();
+        }
+        for (int row = 0; row < currentCount; ++row) {
+            writer.write(current[row], 0, currentLengths[row]);
+            writer.println();
+        }
+    }
+
+    private boolean isUnchanged(int row) {
+        final int len = currentLengths[row];
+        if (len != previousLengths[row]) {
+            return false;
+        }
+        final char[] line = current[row];
+        final char[] old = previous[row];
+        for (int i = 0; i < len; ++i) {
+            if (line[i] != old[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Leave display: the cursor is moved after the displayed text.
+     */
+    public void close() {
+        if (differential && previousCount >= 0) {
+            terminal.puts(Capability.cursor_address, previousCount, 0);
+        }
+        writer.println();
+        terminal.flush();
+    }
+
+    private void ensureCapacity(int rows) {
+        if (current.length < rows) {
+            current = Arrays.copyOf(current, rows);
+            currentLengths = Arrays.copyOf(currentLengths, rows);
+        }
+        if (previous.length < rows) {
+            previous = Arrays.copyOf(previous, rows);
+            previousLengths = Arrays.copyOf(previousLengths, rows);
+        }
+    }
+
+    private void addLine(CharSequence text, int start, int end, int columns) {
+        if (currentCount == current.length) {
+            return;
+        }
+        final int len = Math.min(end - start, columns);
+        char[] line = current[currentCount];
+        if (line == null || line.length < len) {
+            line = new char[Math.max(len, 80)];
+            current[currentCount] = line;
+        }
+        if (text instanceof String) {
+            ((String) text).getChars(start, start + len, line, 0);
+        } else if (text instanceof StringBuilder) {
+            ((StringBuilder) text).getChars(start, start + len, line, 0);
+        } else {
+            for (int i = 0; i < len; ++i) {
+                line[i] = text.charAt(start + i);
+            }
+        }
+        currentLengths[currentCount++] = len;
+    }
+}
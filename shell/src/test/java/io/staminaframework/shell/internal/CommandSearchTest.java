@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.apache.felix.service.command.CommandSession;
+import org.apache.felix.service.command.Descriptor;
+import org.apache.felix.service.command.Parameter;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link CommandSearch} tests.
+ *
+ * @author Stamina Framework developers
+ */
+public class CommandSearchTest {
+    private CommandSearch search;
+
+    public static class BundleCommands {
+        @Descriptor("List installed bundles")
+        public void list(@Descriptor("display symbolic names")
+                         @Parameter(names = {"-s", "--symbolic"}, presentValue = "true", absentValue = "false")
+                                 boolean symbolic) {
+        }
+
+        @Descriptor("Start bundles")
+        public void start(@Descriptor("bundle identifiers") long... ids) {
+        }
+    }
+
+    public static class ShellTools {
+        @Descriptor("Display estimated memory retained by session variables")
+        public void mem(CommandSession session,
+                        @Descriptor("clear command results once displayed")
+                        @Parameter(names = {"-c", "--clear"}, presentValue = "true", absentValue = "false")
+                                boolean clear) {
+        }
+
+        @Descriptor("Display command statistics")
+        public void stats(@Descriptor("list slowest bundle commands first") boolean slowest) {
+        }
+    }
+
+    private static CommandMetadata command(String scope, String function, Class<?> type) {
+        final CommandMetadata cmd = new CommandMetadata(scope, function, null);
+        cmd.resolve(type);
+        return cmd;
+    }
+
+    private List<String> search(String query) {
+        final List<String> names = new ArrayList<>();
+        for (final CommandSearch.Hit hit : search.search(query, 10)) {
+            names.add(hit.command().name());
+        }
+        return names;
+    }
+
+    @Before
+    public void setUp() {
+        search = new CommandSearch();
+        search.commandAdded(command("bundle", "list", BundleCommands.class));
+        search.commandAdded(command("bundle", "start", BundleCommands.class));
+        search.commandAdded(command("shell", "mem", ShellTools.class));
+        search.commandAdded(command("shell", "stats", ShellTools.class));
+    }
+
+    @Test
+    public void testTokenize() {
+        assertEquals(Arrays.asList("list", "installed", "bundles"), CommandSearch.tokenize("List installed-bundles!"));
+        // Single characters are dropped.
+        assertEquals(Collections.singletonList("ab"), CommandSearch.tokenize("a ab b"));
+        assertTrue(CommandSearch.tokenize(null).isEmpty());
+    }
+
+    @Test
+    public void testQueryTerms() {
+        assertEquals(Arrays.asList("-c", "list", "--clear", "clear"),
+                new ArrayList<>(CommandSearch.queryTerms(" -c  List --clear ")));
+    }
+
+    @Test
+    public void testFieldWeights() {
+        // "bundle" is a scope and a parameter description for bundle:start,
+        // only a scope for bundle:list, and only a parameter description for shell:stats.
+        assertEquals(Arrays.asList("bundle:start", "bundle:list", "shell:stats"), search("bundle"));
+    }
+
+    @Test
+    public void testMoreMatchedTermsRankFirst() {
+        // Command descriptions weigh more than parameter descriptions.
+        assertEquals(Arrays.asList("shell:mem", "shell:stats", "bundle:list"), search("display memory"));
+    }
+
+    @Test
+    public void testPrefix() {
+        // "start" is found in the function and in the description of bundle:start.
+        assertEquals(Arrays.asList("bundle:start", "shell:stats"), search("sta"));
+        assertEquals(Collections.singletonList("shell:stats"), search("stat"));
+    }
+
+    @Test
+    public void testOptionNames() {
+        assertEquals(Collections.singletonList("shell:mem"), search("-c"));
+        assertEquals(Collections.singletonList("shell:mem"), search("--clear"));
+        assertEquals(Collections.singletonList("bundle:list"), search("symbolic"));
+    }
+
+    @Test
+    public void testCommandRemoved() {
+        final CommandMetadata cmd = command("shell", "mem", ShellTools.class);
+        search.commandAdded(cmd);
+        search.commandRemoved(cmd);
+        assertTrue(search("memory").isEmpty());
+        assertEquals(Collections.singletonList("shell:stats"), search("statistics"));
+    }
+
+    @Test
+    public void testNoMatch() {
+        assertTrue(search("unknown").isEmpty());
+        assertTrue(search("").isEmpty());
+        assertTrue(search.search("bundle", 0).isEmpty());
+    }
+}
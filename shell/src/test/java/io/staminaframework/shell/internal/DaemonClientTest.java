@@ -0,0 +1,58 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * {@link DaemonClient} tests.
+ *
+ * @author Stamina Framework developers
+ */
+public class DaemonClientTest {
+    @Test
+    public void testSingleArgumentSentAsIs() {
+        assertEquals("lb | grep shell", DaemonClient.commandLine(Collections.singletonList("lb | grep shell")));
+    }
+
+    @Test
+    public void testPlainArguments() {
+        assertEquals("bundle:headers 12", DaemonClient.commandLine(Arrays.asList("bundle:headers", "12")));
+    }
+
+    @Test
+    public void testQuotedArguments() {
+        assertEquals("echo 'Hello world' '' 'a|b' '$x'",
+                DaemonClient.commandLine(Arrays.asList("echo", "Hello world", "", "a|b", "$x")));
+    }
+
+    @Test
+    public void testQuote() {
+        assertEquals("foo", DaemonClient.quote("foo"));
+        assertEquals("'a b'", DaemonClient.quote("a b"));
+        assertEquals("'a\\b'", DaemonClient.quote("a\\b"));
+        assertEquals("'say \"hi\"'", DaemonClient.quote("say \"hi\""));
+        // Single quotes cannot be escaped between single quotes.
+        assertEquals("\"it's\"", DaemonClient.quote("it's"));
+        assertEquals("\"it's \\\"\\$x\\\" \\\\\"", DaemonClient.quote("it's \"$x\" \\"));
+    }
+}
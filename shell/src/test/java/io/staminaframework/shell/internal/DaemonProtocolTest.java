@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link DaemonProtocol} tests.
+ *
+ * @author Stamina Framework developers
+ */
+public class DaemonProtocolTest {
+    private static DataInputStream input(ByteArrayOutputStream bytes) {
+        return new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    }
+
+    @Test
+    public void testRequest() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DaemonProtocol.writeRequest(new DataOutputStream(bytes), "token", "echo h\u00e9llo");
+        final DataInputStream in = input(bytes);
+        assertEquals(DaemonProtocol.MAGIC, in.readInt());
+        assertEquals("token", DaemonProtocol.readString(in, DaemonProtocol.MAX_REQUEST_LENGTH));
+        assertEquals("echo h\u00e9llo", DaemonProtocol.readString(in, DaemonProtocol.MAX_REQUEST_LENGTH));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void testResponse() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DaemonProtocol.writeResponse(new DataOutputStream(bytes), DaemonProtocol.STATUS_ERROR, (byte) 2, 1, "failed");
+        final DataInputStream in = input(bytes);
+        assertEquals(DaemonProtocol.MAGIC, in.readInt());
+        assertEquals(DaemonProtocol.STATUS_ERROR, in.readByte());
+        assertEquals(2, in.readByte());
+        assertEquals(1, in.readInt());
+        assertEquals("failed", DaemonProtocol.readString(in, DaemonProtocol.MAX_RESPONSE_LENGTH));
+        assertEquals(-1, in.read());
+    }
+
+    @Test(expected = DaemonProtocol.FrameTooLongException.class)
+    public void testFrameTooLong() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DaemonProtocol.writeString(new DataOutputStream(bytes), "0123456789");
+        DaemonProtocol.readString(input(bytes), 9);
+    }
+
+    @Test
+    public void testFrameLengthCheckedBeforeReading() throws IOException {
+        // Frame content is never allocated nor read when its length is too high.
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(Integer.MAX_VALUE);
+        try {
+            DaemonProtocol.readString(input(bytes), DaemonProtocol.MAX_RESPONSE_LENGTH);
+            fail("Frame length must be checked");
+        } catch (DaemonProtocol.FrameTooLongException expected) {
+        }
+    }
+
+    @Test(expected = IOException.class)
+    public void testNegativeFrameLength() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        new DataOutputStream(bytes).writeInt(-1);
+        DaemonProtocol.readString(input(bytes), 10);
+    }
+
+    @Test(expected = EOFException.class)
+    public void testTruncatedFrame() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(10);
+        out.write("abc".getBytes(StandardCharsets.UTF_8));
+        DaemonProtocol.readString(input(bytes), 10);
+    }
+
+    @Test
+    public void testTruncatedString() throws IOException {
+        final StringBuilder s = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+            s.append('\u00e9');
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DaemonProtocol.writeString(new DataOutputStream(bytes), s.toString(), 64);
+        final String truncated = DaemonProtocol.readString(input(bytes), 64);
+        assertTrue(truncated.endsWith("[Output truncated]\n"));
+        // Multi-byte characters are not split.
+        assertFalse(truncated.contains("\ufffd"));
+        assertTrue(truncated.startsWith("\u00e9\u00e9"));
+        assertTrue(truncated.getBytes(StandardCharsets.UTF_8).length <= 64);
+    }
+
+    @Test
+    public void testStringWithinMaxLength() throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DaemonProtocol.writeString(new DataOutputStream(bytes), "abc", 3);
+        assertEquals("abc", DaemonProtocol.readString(input(bytes), 3));
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.jline.reader.History;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.lang.reflect.Proxy;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link HistoryStore} tests.
+ *
+ * @author Stamina Framework developers
+ */
+public class HistoryStoreTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    /**
+     * Create a line reader history collecting added lines.
+     */
+    private static History history(List<String> lines) {
+        return (History) Proxy.newProxyInstance(HistoryStoreTest.class.getClassLoader(),
+                new Class<?>[]{History.class}, (proxy, method, args) -> {
+                    if ("add".equals(method.getName()) && args.length == 2) {
+                        lines.add((String) args[1]);
+                    }
+                    return null;
+                });
+    }
+
+    private static List<String> load(HistoryStore store) throws IOException {
+        final List<String> lines = new ArrayList<>();
+        store.load(history(lines));
+        return lines;
+    }
+
+    private Path historyFile() {
+        return tmp.getRoot().toPath().resolve("history");
+    }
+
+    @Test
+    public void testLoadMissingFile() throws IOException {
+        try (final HistoryStore store = new HistoryStore(historyFile(), 10, 4096)) {
+            assertEquals(0, load(store).size());
+        }
+    }
+
+    @Test
+    public void testAppendAndLoad() throws IOException {
+        final Path file = historyFile();
+        try (final HistoryStore store = new HistoryStore(file, 10, 4096)) {
+            store.append(Instant.ofEpochMilli(1), "bundle:list");
+            store.append(Instant.ofEpochMilli(2), "bundle:list");
+            store.append(Instant.ofEpochMilli(3), "  ");
+            store.append(Instant.ofEpochMilli(4), "echo a\\b\nc\rd");
+        }
+        assertEquals(Arrays.asList("1:bundle:list", "4:echo a\\\\b\\nc\\rd"),
+                Files.readAllLines(file, StandardCharsets.UTF_8));
+        try (final HistoryStore store = new HistoryStore(file, 10, 4096)) {
+            assertEquals(Arrays.asList("bundle:list", "echo a\\b\nc\rd"), load(store));
+        }
+    }
+
+    @Test
+    public void testTailLoad() throws IOException {
+        final Path file = historyFile();
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 100; ++i) {
+            buf.append(i).append(":cmd").append(i).append('\n');
+        }
+        Files.write(file, buf.toString().getBytes(StandardCharsets.UTF_8));
+        try (final HistoryStore store = new HistoryStore(file, 3, 4096)) {
+            assertEquals(Arrays.asList("cmd97", "cmd98", "cmd99"), load(store));
+        }
+    }
+
+    @Test
+    public void testTailLoadWithinMaxBytes() throws IOException {
+        final Path file = historyFile();
+        final StringBuilder buf = new StringBuilder();
+        for (int i = 0; i < 1000; ++i) {
+            buf.append(String.format("%08d:cmd%04d\n", i, i));
+        }
+        Files.write(file, buf.toString().getBytes(StandardCharsets.UTF_8));
+        try (final HistoryStore store = new HistoryStore(file, 1000, 4096)) {
+            final List<String> lines = load(store);
+            // Each entry is 17 bytes long: a partial entry is skipped.
+            assertEquals(4096 / 17, lines.size());
+            assertEquals("cmd0999", lines.get(lines.size() - 1));
+            assertEquals("cmd" + String.format("%04d", 1000 - lines.size()), lines.get(0));
+        }
+    }
+
+    @Test
+    public void testSkipMalformedEntries() throws IOException {
+        final Path file = historyFile();
+        Files.write(file, "garbage\nabc:cmd\n1:good\n2:last".getBytes(StandardCharsets.UTF_8));
+        try (final HistoryStore store = new HistoryStore(file, 10, 4096)) {
+            assertEquals(Arrays.asList("good", "last"), load(store));
+            // Last loaded entry is not appended again.
+            store.append(Instant.ofEpochMilli(3), "last");
+        }
+        assertEquals(4, Files.readAllLines(file, StandardCharsets.UTF_8).size());
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        final Path file = historyFile();
+        try (final HistoryStore store = new HistoryStore(file, 10, 4096)) {
+            for (int i = 0; i < 11; ++i) {
+                store.append(Instant.ofEpochMilli(i), "cmd" + i);
+            }
+            final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+            while (Files.readAllLines(file, StandardCharsets.UTF_8).size() > 10) {
+                assertTrue("History file was not compacted", System.nanoTime() < deadline);
+                Thread.sleep(10);
+            }
+            // Entries appended after compaction are written to the new file.
+            store.append(Instant.ofEpochMilli(11), "cmd11");
+        }
+        final List<String> entries = Files.readAllLines(file, StandardCharsets.UTF_8);
+        assertEquals(11, entries.size());
+        assertEquals("1:cmd1", entries.get(0));
+        assertEquals("11:cmd11", entries.get(10));
+        assertFalse(Files.exists(file.resolveSibling("history.tmp")));
+    }
+}
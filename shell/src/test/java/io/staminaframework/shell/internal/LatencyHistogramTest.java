@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link LatencyHistogram} tests.
+ *
+ * @author Stamina Framework developers
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void testEmpty() {
+        final LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.count());
+        assertEquals(0, h.mean());
+        assertEquals(0, h.max());
+        assertEquals(0, h.percentile(99));
+    }
+
+    @Test
+    public void testBuckets() {
+        int previous = -1;
+        for (long value = 0; value < 1 << 20; ++value) {
+            final int index = LatencyHistogram.bucketIndex(value);
+            assertTrue("Bucket index must not decrease: " + value, index >= previous);
+            assertTrue("Value above bucket bound: " + value, value <= LatencyHistogram.bucketUpperBound(index));
+            if (index > 0) {
+                assertTrue("Value below bucket bound: " + value,
+                        value > LatencyHistogram.bucketUpperBound(index - 1));
+            }
+            previous = index;
+        }
+        assertEquals(LatencyHistogram.BUCKETS - 1, LatencyHistogram.bucketIndex(Long.MAX_VALUE));
+        assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(LatencyHistogram.BUCKETS - 1));
+    }
+
+    @Test
+    public void testRelativeError() {
+        for (long value = 8; value > 0 && value < Long.MAX_VALUE / 2; value = value * 3 + 1) {
+            final long bound = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(value));
+            assertTrue("Relative error too high: " + value, (bound - value) <= value / 8);
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final LatencyHistogram h = new LatencyHistogram();
+        for (long i = 1; i <= 100; ++i) {
+            h.record(i * 1000);
+        }
+        assertEquals(100, h.count());
+        assertEquals(5050000, h.total());
+        assertEquals(50500, h.mean());
+        assertEquals(100000, h.max());
+        assertEquals(100000, h.percentile(100));
+        assertEquals(1000, h.percentile(0), 1000 / 8);
+        assertEquals(50000, h.percentile(50), 50000 / 8);
+        assertEquals(99000, h.percentile(99), 99000 / 8);
+    }
+
+    @Test
+    public void testNegativeValues() {
+        final LatencyHistogram h = new LatencyHistogram();
+        h.record(-5);
+        assertEquals(1, h.count());
+        assertEquals(0, h.max());
+        assertEquals(0, h.total());
+    }
+
+    @Test
+    public void testAddAndReset() {
+        final LatencyHistogram a = new LatencyHistogram();
+        a.record(10);
+        final LatencyHistogram b = new LatencyHistogram();
+        b.record(1000);
+        b.record(2000);
+        a.add(b);
+        assertEquals(3, a.count());
+        assertEquals(3010, a.total());
+        assertEquals(2000, a.max());
+
+        a.reset();
+        assertEquals(0, a.count());
+        assertEquals(0, a.total());
+        assertEquals(0, a.percentile(50));
+    }
+
+    @Test
+    public void testCopy() {
+        final long[] counts = new long[LatencyHistogram.BUCKETS];
+        counts[LatencyHistogram.bucketIndex(100)] = 2;
+        final LatencyHistogram h = new LatencyHistogram(counts, 200, 100);
+        counts[0] = 5;
+        assertEquals(2, h.count());
+        assertEquals(100, h.mean());
+        assertEquals(100, h.percentile(50));
+    }
+}
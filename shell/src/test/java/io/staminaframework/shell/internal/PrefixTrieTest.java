@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link PrefixTrie} tests.
+ *
+ * @author Stamina Framework developers
+ */
+public class PrefixTrieTest {
+    private static List<String> collect(PrefixTrie<String> trie, String prefix, int limit) {
+        final List<String> values = new ArrayList<>();
+        trie.collect(prefix, values, limit);
+        return values;
+    }
+
+    private static PrefixTrie<String> trie(String... keys) {
+        final PrefixTrie<String> trie = new PrefixTrie<>();
+        for (final String key : keys) {
+            trie.put(key, key);
+        }
+        return trie;
+    }
+
+    @Test
+    public void testGet() {
+        final PrefixTrie<String> trie = trie("shell:help", "shell:history", "bundle:list");
+        assertEquals("shell:help", trie.get("shell:help"));
+        assertEquals("bundle:list", trie.get("bundle:list"));
+        assertNull(trie.get("shell:"));
+        assertNull(trie.get("shell:helpx"));
+        assertEquals(3, trie.size());
+    }
+
+    @Test
+    public void testCollectInKeyOrder() {
+        final PrefixTrie<String> trie = trie("shell:stats", "shell:help", "bundle:list", "shell:history", "shell:h");
+        assertEquals(Arrays.asList("shell:h", "shell:help", "shell:history", "shell:stats"),
+                collect(trie, "shell:", Integer.MAX_VALUE));
+        assertEquals(Arrays.asList("shell:h", "shell:help", "shell:history"), collect(trie, "shell:h", Integer.MAX_VALUE));
+        assertEquals(Collections.singletonList("shell:help"), collect(trie, "shell:he", Integer.MAX_VALUE));
+        assertEquals(Collections.singletonList("bundle:list"), collect(trie, "", 1));
+        assertEquals(Collections.emptyList(), collect(trie, "foo", Integer.MAX_VALUE));
+    }
+
+    @Test
+    public void testCollectLimit() {
+        final PrefixTrie<String> trie = trie("a", "ab", "abc", "abd", "b");
+        assertEquals(Arrays.asList("a", "ab"), collect(trie, "a", 2));
+        assertEquals(Collections.emptyList(), collect(trie, "a", 0));
+    }
+
+    @Test
+    public void testReplace() {
+        final PrefixTrie<String> trie = trie("a");
+        trie.put("a", "b");
+        assertEquals("b", trie.get("a"));
+        assertEquals(1, trie.size());
+    }
+
+    @Test
+    public void testRemove() {
+        final PrefixTrie<String> trie = trie("shell:help", "shell:history", "shell:h");
+        trie.remove("shell:history");
+        trie.remove("shell:unknown");
+        trie.remove("shell:");
+        assertEquals(2, trie.size());
+        assertNull(trie.get("shell:history"));
+        assertEquals(Arrays.asList("shell:h", "shell:help"), collect(trie, "shell:", Integer.MAX_VALUE));
+
+        trie.remove("shell:h");
+        assertEquals("shell:help", trie.get("shell:help"));
+        trie.remove("shell:help");
+        assertEquals(0, trie.size());
+        assertEquals(Collections.emptyList(), collect(trie, "", Integer.MAX_VALUE));
+
+        // Pruned branches can be added again.
+        trie.put("shell:help", "help");
+        assertEquals("help", trie.get("shell:help"));
+    }
+
+    @Test
+    public void testManyChildren() {
+        final PrefixTrie<String> trie = new PrefixTrie<>();
+        final List<String> expected = new ArrayList<>();
+        for (char c = 'z'; c >= 'a'; --c) {
+            trie.put("x" + c, "x" + c);
+            expected.add(0, "x" + c);
+        }
+        assertEquals(expected, collect(trie, "x", Integer.MAX_VALUE));
+        assertEquals(26, trie.size());
+    }
+}
@@ -0,0 +1,116 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.junit.Test;
+
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link ResultCache} tests.
+ *
+ * @author Stamina Framework developers
+ */
+public class ResultCacheTest {
+    @Test
+    public void testNormalize() {
+        assertEquals("bundle:list", ResultCache.normalize("bundle:list"));
+        assertEquals("bundle:list -s foo", ResultCache.normalize("  bundle:list \t -s   foo  "));
+        assertEquals("echo 'a  b' \"c  d\"", ResultCache.normalize("echo   'a  b'  \"c  d\""));
+        assertEquals("echo 'a | b'", ResultCache.normalize("echo 'a | b'"));
+    }
+
+    @Test
+    public void testNormalizeNotCacheable() {
+        assertNull(ResultCache.normalize(""));
+        assertNull(ResultCache.normalize("   "));
+        assertNull(ResultCache.normalize("bundle:list | grep foo"));
+        assertNull(ResultCache.normalize("echo $foo"));
+        assertNull(ResultCache.normalize("a = b"));
+        assertNull(ResultCache.normalize("each [1 2] { echo $it }"));
+        assertNull(ResultCache.normalize("echo a; echo b"));
+        assertNull(ResultCache.normalize("echo 'unterminated"));
+        assertNull(ResultCache.normalize("bundle:list &"));
+    }
+
+    @Test
+    public void testCommandName() {
+        assertEquals("bundle:list", ResultCache.commandName("bundle:list"));
+        assertEquals("list", ResultCache.commandName("  list -s foo"));
+        assertNull(ResultCache.commandName(""));
+        assertNull(ResultCache.commandName("  "));
+        assertNull(ResultCache.commandName("$cmd foo"));
+        assertNull(ResultCache.commandName("'list' foo"));
+        assertNull(ResultCache.commandName("(list) foo"));
+    }
+
+    @Test
+    public void testNormalizedLineStartsWithCommandName() {
+        final String line = "\t bundle:headers   12 ";
+        assertTrue(ResultCache.normalize(line).startsWith(ResultCache.commandName(line)));
+    }
+
+    @Test
+    public void testSnapshotCollections() {
+        final List<String> list = new ArrayList<>(Arrays.asList("a", "b"));
+        final Object snapshot = ResultCache.snapshot(list);
+        list.add("c");
+        assertEquals(Arrays.asList("a", "b"), snapshot);
+        try {
+            ((List<String>) snapshot).add("d");
+            fail("Cached list must not be modified");
+        } catch (UnsupportedOperationException expected) {
+        }
+
+        final Map<String, Integer> map = new TreeMap<>();
+        map.put("b", 2);
+        map.put("a", 1);
+        final Map<?, ?> mapSnapshot = (Map<?, ?>) ResultCache.snapshot(map);
+        map.clear();
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(mapSnapshot.keySet()));
+
+        final Set<String> set = new TreeSet<>(Arrays.asList("b", "a"));
+        final Set<?> setSnapshot = (Set<?>) ResultCache.snapshot(set);
+        set.clear();
+        assertEquals(Arrays.asList("a", "b"), new ArrayList<>(setSnapshot));
+    }
+
+    @Test
+    public void testSnapshotArray() {
+        final String[] array = {"a", "b"};
+        final Object snapshot = ResultCache.snapshot(array);
+        assertNotSame(array, snapshot);
+        array[0] = "c";
+        assertArrayEquals(new String[]{"a", "b"}, (String[]) snapshot);
+    }
+
+    @Test
+    public void testSnapshotNotCacheable() {
+        assertNull(ResultCache.snapshot(null));
+        assertNull(ResultCache.snapshot(Arrays.asList("a").iterator()));
+        assertNull(ResultCache.snapshot(Stream.of("a")));
+    }
+
+    @Test
+    public void testSnapshotImmutableValue() {
+        final Object value = "foo";
+        assertSame(value, ResultCache.snapshot(value));
+    }
+}
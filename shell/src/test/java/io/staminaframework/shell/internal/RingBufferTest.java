@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link RingBuffer} tests.
+ *
+ * @author Stamina Framework developers
+ */
+public class RingBufferTest {
+    @Test
+    public void testCapacity() {
+        assertEquals(4, new RingBuffer<>(1).capacity());
+        assertEquals(4, new RingBuffer<>(3).capacity());
+        assertEquals(8, new RingBuffer<>(8).capacity());
+        assertEquals(16, new RingBuffer<>(9).capacity());
+    }
+
+    @Test
+    public void testOfferAndPoll() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        assertTrue(buffer.isEmpty());
+        assertNull(buffer.poll());
+        assertTrue(buffer.offer(1));
+        assertTrue(buffer.offer(2));
+        assertFalse(buffer.isEmpty());
+        assertEquals(Integer.valueOf(1), buffer.poll());
+        assertEquals(Integer.valueOf(2), buffer.poll());
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testRejectWhenFull() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        for (int i = 0; i < 4; ++i) {
+            assertTrue(buffer.offer(i));
+        }
+        assertFalse(buffer.offer(4));
+        assertEquals(Integer.valueOf(0), buffer.poll());
+        assertTrue(buffer.offer(4));
+        for (int i = 1; i <= 4; ++i) {
+            assertEquals(Integer.valueOf(i), buffer.poll());
+        }
+        assertNull(buffer.poll());
+    }
+
+    @Test
+    public void testWrapAround() {
+        final RingBuffer<Integer> buffer = new RingBuffer<>(4);
+        for (int i = 0; i < 100; ++i) {
+            assertTrue(buffer.offer(i));
+            assertTrue(buffer.offer(-i));
+            assertEquals(Integer.valueOf(i), buffer.poll());
+            assertEquals(Integer.valueOf(-i), buffer.poll());
+        }
+        assertTrue(buffer.isEmpty());
+    }
+
+    @Test
+    public void testConcurrentProducers() throws InterruptedException {
+        final int producers = 4;
+        final int perProducer = 20000;
+        final RingBuffer<long[]> buffer = new RingBuffer<>(64);
+        final CountDownLatch start = new CountDownLatch(1);
+        final Thread[] threads = new Thread[producers];
+        for (int p = 0; p < producers; ++p) {
+            final int producer = p;
+            threads[p] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                for (int i = 0; i < perProducer; ++i) {
+                    final long[] e = {producer, i};
+                    while (!buffer.offer(e)) {
+                        Thread.yield();
+                    }
+                }
+            });
+            threads[p].start();
+        }
+        start.countDown();
+
+        // Elements from each producer are received in order.
+        final long[] next = new long[producers];
+        int received = 0;
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (received < producers * perProducer) {
+            final long[] e = buffer.poll();
+            if (e == null) {
+                assertTrue("Elements were lost", System.nanoTime() < deadline);
+                Thread.yield();
+                continue;
+            }
+            assertEquals(next[(int) e[0]]++, e[1]);
+            ++received;
+        }
+        for (final Thread t : threads) {
+            t.join();
+        }
+        assertNull(buffer.poll());
+        assertTrue(buffer.isEmpty());
+    }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * {@link StackTraceFormatter} tests.
+ *
+ * @author Stamina Framework developers
+ */
+public class StackTraceFormatterTest {
+    private static StackTraceElement frame(String className, String method, int line) {
+        return new StackTraceElement(className, method, className + ".java", line);
+    }
+
+    private static Exception exception(String message, StackTraceElement... trace) {
+        final Exception e = new IllegalStateException(message);
+        e.setStackTrace(trace);
+        return e;
+    }
+
+    @Test
+    public void testFormat() {
+        final StackTraceFormatter formatter = new StackTraceFormatter(0, null, 0);
+        final Exception e = exception("boom", frame("a.B", "run", 1), frame("a.C", "main", 2));
+        assertEquals("java.lang.IllegalStateException: boom\n"
+                        + "\tat a.B.run(a.B.java:1)\n"
+                        + "\tat a.C.main(a.C.java:2)\n",
+                formatter.format(e));
+    }
+
+    @Test
+    public void testRepeatedFramesCollapsed() {
+        final StackTraceFormatter formatter = new StackTraceFormatter(0, null, 0);
+        final StackTraceElement f = frame("a.B", "recurse", 1);
+        final Exception e = exception("boom", f, f, f, f, frame("a.C", "main", 2));
+        assertEquals("java.lang.IllegalStateException: boom\n"
+                        + "\tat a.B.recurse(a.B.java:1)\n"
+                        + "\t... frame repeated 3 more time(s)\n"
+                        + "\tat a.C.main(a.C.java:2)\n",
+                formatter.format(e));
+    }
+
+    @Test
+    public void testMaxFramesAndFilteredPackages() {
+        final StackTraceFormatter formatter = new StackTraceFormatter(1, new String[]{"x."}, 0);
+        final Exception e = exception("boom", frame("x.Y", "hidden", 1),
+                frame("a.B", "run", 2), frame("a.C", "main", 3), frame("a.D", "start", 4));
+        assertEquals("java.lang.IllegalStateException: boom\n"
+                        + "\t... 1 filtered\n"
+                        + "\tat a.B.run(a.B.java:2)\n"
+                        + "\t... 2 frame(s) omitted\n",
+                formatter.format(e));
+    }
+
+    @Test
+    public void testCachedTrace() {
+        final StackTraceFormatter formatter = new StackTraceFormatter(0, null, 4);
+        final String first = formatter.format(exception("boom", frame("a.B", "run", 1)));
+        final String second = formatter.format(exception("boom", frame("a.B", "run", 1)));
+        assertSame(first, second);
+    }
+
+    @Test
+    public void testCacheDistinguishesFrames() {
+        final StackTraceFormatter formatter = new StackTraceFormatter(0, null, 4);
+        final String first = formatter.format(exception("boom", frame("a.B", "run", 1)));
+        final String second = formatter.format(exception("boom", frame("a.B", "run", 2)));
+        assertNotEquals(first, second);
+        assertTrue(second.contains("a.B.java:2"));
+    }
+
+    @Test
+    public void testCacheDistinguishesCauses() {
+        final StackTraceFormatter formatter = new StackTraceFormatter(0, null, 4);
+        final Exception withCause = exception("boom", frame("a.B", "run", 1));
+        withCause.initCause(exception("cause", frame("a.C", "fail", 2)));
+        final String first = formatter.format(withCause);
+        final String second = formatter.format(exception("boom", frame("a.B", "run", 1)));
+        assertTrue(first.contains("Caused by: java.lang.IllegalStateException: cause"));
+        assertFalse(second.contains("Caused by:"));
+    }
+
+    @Test
+    public void testCircularSuppression() {
+        final StackTraceFormatter formatter = new StackTraceFormatter(0, null, 4);
+        final Exception a = exception("a", frame("a.B", "run", 1));
+        final Exception b = exception("b", frame("a.C", "run", 2));
+        a.addSuppressed(b);
+        b.addSuppressed(a);
+        final String trace = formatter.format(a);
+        assertTrue(trace.contains("\tSuppressed: java.lang.IllegalStateException: b\n"));
+        assertTrue(trace.contains("[CIRCULAR REFERENCE: java.lang.IllegalStateException: a]"));
+        assertSame(trace, formatter.format(a));
+    }
+
+    @Test
+    public void testCircularCause() {
+        final StackTraceFormatter formatter = new StackTraceFormatter(0, null, 4);
+        final Exception a = exception("a", frame("a.B", "run", 1));
+        final Exception b = exception("b", frame("a.C", "run", 2));
+        a.initCause(b);
+        b.initCause(a);
+        assertTrue(formatter.format(a).contains("Caused by: [CIRCULAR REFERENCE: java.lang.IllegalStateException: a]"));
+    }
+}
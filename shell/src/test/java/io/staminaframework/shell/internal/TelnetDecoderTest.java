@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Stamina Framework developers.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.staminaframework.shell.internal;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * {@link TelnetDecoder} tests.
+ *
+ * @author Stamina Framework developers
+ */
+public class TelnetDecoderTest {
+    private static final int IAC = TelnetDecoder.IAC;
+
+    private static byte[] decode(TelnetDecoder decoder, int... input) {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (final int b : input) {
+            final int data = decoder.decode(b);
+            if (data != TelnetDecoder.NO_DATA) {
+                out.write(data);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] bytes(int... values) {
+        final byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; ++i) {
+            bytes[i] = (byte) values[i];
+        }
+        return bytes;
+    }
+
+    @Test
+    public void testPlainData() {
+        assertArrayEquals(bytes('l', 's', '\r', '\n'),
+                decode(new TelnetDecoder(), 'l', 's', '\r', '\n'));
+    }
+
+    @Test
+    public void testEscapedIac() {
+        assertArrayEquals(bytes('a', 255, 'b'),
+                decode(new TelnetDecoder(), 'a', IAC, IAC, 'b'));
+    }
+
+    @Test
+    public void testOptionNegotiation() {
+        // IAC WILL ECHO, IAC DO SUPPRESS-GO-AHEAD, IAC WONT 1, IAC DONT 3.
+        assertArrayEquals(bytes('a', 'b'),
+                decode(new TelnetDecoder(), IAC, 251, 1, 'a', IAC, 253, 3, IAC, 252, 1, IAC, 254, 3, 'b'));
+    }
+
+    @Test
+    public void testOptionCodeEqualToIac() {
+        // Option code is ignored, even if it looks like a command.
+        assertArrayEquals(bytes('a'),
+                decode(new TelnetDecoder(), IAC, 251, IAC, 'a'));
+    }
+
+    @Test
+    public void testSimpleCommand() {
+        // IAC NOP, IAC AYT.
+        assertArrayEquals(bytes('a', 'b'),
+                decode(new TelnetDecoder(), IAC, 241, 'a', IAC, 246, 'b'));
+    }
+
+    @Test
+    public void testSubnegotiation() {
+        // IAC SB NAWS 0 80 0 24 IAC SE.
+        assertArrayEquals(bytes('a', 'b'),
+                decode(new TelnetDecoder(), 'a', IAC, TelnetDecoder.SB, 31, 0, 80, 0, 24, IAC, TelnetDecoder.SE, 'b'));
+    }
+
+    @Test
+    public void testEscapedIacInSubnegotiation() {
+        // IAC IAC inside a subnegotiation does not end it.
+        assertArrayEquals(bytes('b'),
+                decode(new TelnetDecoder(), IAC, TelnetDecoder.SB, 24, IAC, IAC, 'x', IAC, TelnetDecoder.SE, 'b'));
+    }
+
+    @Test
+    public void testStateKeptAcrossCalls() {
+        final TelnetDecoder decoder = new TelnetDecoder();
+        assertArrayEquals(bytes('a'), decode(decoder, 'a', IAC));
+        assertArrayEquals(bytes(), decode(decoder, TelnetDecoder.SB, 31, 0));
+        assertArrayEquals(bytes(), decode(decoder, 80, IAC));
+        assertArrayEquals(bytes('b'), decode(decoder, TelnetDecoder.SE, 'b'));
+    }
+}